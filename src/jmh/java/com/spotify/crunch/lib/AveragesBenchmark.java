@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import org.apache.crunch.Aggregator;
+import org.apache.crunch.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.crunch.fn.Aggregators.SUM_DOUBLES;
+import static org.apache.crunch.fn.Aggregators.SUM_LONGS;
+import static org.apache.crunch.fn.Aggregators.pairAggregator;
+
+/**
+ * Per-value cost of the (sum, count) aggregation done by Averages.meanValue in its combiner and reducer, including the
+ * mapping of each value to a (value, 1) pair
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AveragesBenchmark {
+  private static final int VALUES = 10000;
+
+  private List<Long> values;
+  private Aggregator<Pair<Double, Long>> aggregator;
+
+  @Setup
+  public void setup() {
+    values = BenchmarkData.longs(VALUES);
+    aggregator = pairAggregator(SUM_DOUBLES(), SUM_LONGS());
+    aggregator.initialize(new Configuration());
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public Iterable<Pair<Double, Long>> meanValueAggregation() {
+    aggregator.reset();
+    for (Long value: values) {
+      aggregator.update(Pair.of(value.doubleValue(), 1L));
+    }
+    return aggregator.results();
+  }
+}
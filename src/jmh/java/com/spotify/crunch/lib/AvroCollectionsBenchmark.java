@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.spotify.crunch.test.NestAvroRecord;
+import com.spotify.crunch.test.TestAvroRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-record cost of extracting flat and nested, string and non-string fields from Avro records
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AvroCollectionsBenchmark {
+  private static final int RECORDS = 10000;
+
+  private List<TestAvroRecord> testRecords;
+  private List<NestAvroRecord> nestRecords;
+  private AvroCollections.AvroExtractMapFn<TestAvroRecord, String> flatString;
+  private AvroCollections.AvroExtractMapFn<TestAvroRecord, Long> flatLong;
+  private AvroCollections.AvroExtractMapFn<NestAvroRecord, String> nestedString;
+  private AvroCollections.AvroExtractMapFn<NestAvroRecord, Long> nestedLong;
+
+  @Setup
+  public void setup() {
+    testRecords = BenchmarkData.testRecords(RECORDS);
+    nestRecords = BenchmarkData.nestRecords(RECORDS);
+    flatString = new AvroCollections.AvroExtractMapFn<TestAvroRecord, String>(TestAvroRecord.class, "fieldA");
+    flatLong = new AvroCollections.AvroExtractMapFn<TestAvroRecord, Long>(TestAvroRecord.class, "fieldC");
+    nestedString = new AvroCollections.AvroExtractMapFn<NestAvroRecord, String>(NestAvroRecord.class, "fieldY.fieldA");
+    nestedLong = new AvroCollections.AvroExtractMapFn<NestAvroRecord, Long>(NestAvroRecord.class, "fieldY.fieldC");
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void extractFlatString(Blackhole blackhole) {
+    for (TestAvroRecord record: testRecords) {
+      blackhole.consume(flatString.map(record));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void extractFlatLong(Blackhole blackhole) {
+    for (TestAvroRecord record: testRecords) {
+      blackhole.consume(flatLong.map(record));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void extractNestedString(Blackhole blackhole) {
+    for (NestAvroRecord record: nestRecords) {
+      blackhole.consume(nestedString.map(record));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void extractNestedLong(Blackhole blackhole) {
+    for (NestAvroRecord record: nestRecords) {
+      blackhole.consume(nestedLong.map(record));
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.Lists;
+import com.spotify.crunch.test.NestAvroRecord;
+import com.spotify.crunch.test.TestAvroRecord;
+import org.apache.crunch.Emitter;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generated data for the benchmarks, with realistic sizes and a fixed seed so runs are comparable
+ */
+class BenchmarkData {
+
+  private static final String[] WORDS = {
+          "spotify:track:4uLU6hMCjMI75M1A2tKUQC", "spotify:track:7GhIk7Il098yCjg4BQjzvb",
+          "spotify:album:6akEvsycLGftJxYudPjmqK", "spotify:artist:0OdUWJ0sBjDrqHygGUXeCF",
+          "spotify:user:spotify:playlist:37i9dQZF1DXcBWIGoYBM5M", "SE", "US", "GB", "DE", "BR"
+  };
+
+  static List<TestAvroRecord> testRecords(int n) {
+    Random random = new Random(42);
+    List<TestAvroRecord> records = Lists.newArrayListWithCapacity(n);
+    for (int i = 0; i < n; i++) {
+      records.add(testRecord(random));
+    }
+    return records;
+  }
+
+  static List<NestAvroRecord> nestRecords(int n) {
+    Random random = new Random(42);
+    List<NestAvroRecord> records = Lists.newArrayListWithCapacity(n);
+    for (int i = 0; i < n; i++) {
+      records.add(NestAvroRecord.newBuilder()
+              .setFieldX(WORDS[random.nextInt(WORDS.length)])
+              .setFieldY(testRecord(random))
+              .build());
+    }
+    return records;
+  }
+
+  static List<String> strings(int n, int distinct) {
+    Random random = new Random(42);
+    List<String> strings = Lists.newArrayListWithCapacity(n);
+    for (int i = 0; i < n; i++) {
+      strings.add(WORDS[random.nextInt(WORDS.length)] + ":" + random.nextInt(distinct));
+    }
+    return strings;
+  }
+
+  static List<Long> longs(int n) {
+    Random random = new Random(42);
+    List<Long> longs = Lists.newArrayListWithCapacity(n);
+    for (int i = 0; i < n; i++) {
+      longs.add((long) random.nextInt(1000000));
+    }
+    return longs;
+  }
+
+  private static TestAvroRecord testRecord(Random random) {
+    return TestAvroRecord.newBuilder()
+            .setFieldA(WORDS[random.nextInt(WORDS.length)])
+            .setFieldB(random.nextBoolean() ? WORDS[random.nextInt(WORDS.length)] : null)
+            .setFieldC(random.nextInt(1000000))
+            .build();
+  }
+
+  /**
+   * Emitter which hands everything to a JMH Blackhole, so that the output isn't optimized away
+   */
+  static class BlackholeEmitter<T> implements Emitter<T> {
+    private final Blackhole blackhole;
+
+    BlackholeEmitter(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void emit(T emitted) {
+      blackhole.consume(emitted);
+    }
+
+    @Override
+    public void flush() {
+    }
+  }
+}
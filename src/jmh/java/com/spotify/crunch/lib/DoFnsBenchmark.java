@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.spotify.crunch.test.TestAvroRecord;
+import org.apache.crunch.DoFn;
+import org.apache.crunch.Emitter;
+import org.apache.crunch.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.crunch.types.avro.Avros.specifics;
+
+/**
+ * Per-value cost of detaching the values of a group of 1000 Avro records before handing them to a reducer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DoFnsBenchmark {
+  private static final int VALUES = 1000;
+
+  private List<TestAvroRecord> group;
+  private DoFn<Pair<String, Iterable<TestAvroRecord>>, TestAvroRecord> detaching;
+  private DoFn<Pair<String, Iterable<TestAvroRecord>>, TestAvroRecord> detachingPooled;
+
+  private static class PassThroughFn extends DoFn<Pair<String, Iterable<TestAvroRecord>>, TestAvroRecord> {
+    @Override
+    public void process(Pair<String, Iterable<TestAvroRecord>> input, Emitter<TestAvroRecord> emitter) {
+      for (TestAvroRecord record: input.second()) {
+        emitter.emit(record);
+      }
+    }
+  }
+
+  @Setup
+  public void setup() {
+    group = BenchmarkData.testRecords(VALUES);
+    detaching = DoFns.detach(new PassThroughFn(), specifics(TestAvroRecord.class));
+    detaching.setConfiguration(new Configuration());
+    detaching.initialize();
+    detachingPooled = DoFns.detachPooled(new PassThroughFn(), specifics(TestAvroRecord.class));
+    detachingPooled.setConfiguration(new Configuration());
+    detachingPooled.initialize();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public void detach(Blackhole blackhole) {
+    detaching.process(Pair.<String, Iterable<TestAvroRecord>>of("key", group),
+            new BenchmarkData.BlackholeEmitter<TestAvroRecord>(blackhole));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public void detachPooled(Blackhole blackhole) {
+    detachingPooled.process(Pair.<String, Iterable<TestAvroRecord>>of("key", group),
+            new BenchmarkData.BlackholeEmitter<TestAvroRecord>(blackhole));
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.Lists;
+import org.apache.crunch.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-value cost of the in-memory percentile calculations, for a group of 10000 values
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PercentilesBenchmark {
+  private static final int VALUES = 10000;
+
+  private List<Double> percentiles;
+  private List<Long> values;
+  private List<Long> sortedValues;
+  private Percentiles.InMemoryPercentiles<String, Long> inMemoryPercentiles;
+
+  @Setup
+  public void setup() {
+    percentiles = Lists.newArrayList(0.5, 0.9, 0.99, 0.999);
+    values = BenchmarkData.longs(VALUES);
+    sortedValues = Lists.newArrayList(values);
+    Collections.sort(sortedValues);
+    inMemoryPercentiles = new Percentiles.InMemoryPercentiles<String, Long>(percentiles);
+    inMemoryPercentiles.initialize();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public Pair<String, Percentiles.Result<Long>> inMemoryPercentiles() {
+    return inMemoryPercentiles.map(Pair.<String, Iterable<Long>>of("key", values));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public Collection<Pair<Double, Long>> findPercentiles() {
+    return Percentiles.findPercentiles(sortedValues.iterator(), VALUES, percentiles);
+  }
+}
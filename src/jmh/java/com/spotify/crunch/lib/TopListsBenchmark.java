@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.Lists;
+import org.apache.crunch.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.crunch.types.avro.Avros.strings;
+
+/**
+ * Per-group cost of the reducer of TopLists.topNYbyX, for groups of 10000 sorted (negated count, value) pairs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TopListsBenchmark {
+  private static final int VALUES = 10000;
+
+  @Param({"10", "1000"})
+  public int n;
+
+  private List<Pair<Long, String>> group;
+  private TopLists.TopNFn<String, String> topNFn;
+
+  @Setup
+  public void setup() {
+    group = Lists.newArrayListWithCapacity(VALUES);
+    List<String> values = BenchmarkData.strings(VALUES, 1000);
+    for (int i = 0; i < VALUES; i++) {
+      group.add(Pair.of((long) i - VALUES, values.get(i)));
+    }
+    topNFn = new TopLists.TopNFn<String, String>(strings(), n);
+    topNFn.setConfiguration(new Configuration());
+    topNFn.initialize();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public Pair<String, Collection<Pair<Long, String>>> topNYbyX() {
+    return topNFn.map(Pair.<String, Iterable<Pair<Long, String>>>of("key", group));
+  }
+}
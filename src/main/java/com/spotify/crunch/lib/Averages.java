@@ -15,9 +15,12 @@
  */
 package com.spotify.crunch.lib;
 
+import com.google.common.base.Supplier;
 import org.apache.crunch.*;
 import org.apache.crunch.types.PTypeFamily;
 
+import java.util.List;
+
 import static org.apache.crunch.fn.Aggregators.*;
 
 public class Averages {
@@ -30,23 +33,39 @@ public class Averages {
    * @return PTable&lt;K, Double&gt; of (key, mean(values)) pairs
    */
   public static <K, V extends Number> PTable<K, Double> meanValue(PTable<K, V> table) {
-    PTypeFamily ptf = table.getTypeFamily();
-    PTable<K, Pair<Double, Long>> withCounts = table.mapValues(new MapFn<V, Pair<Double, Long>>() {
+    return meanValue(table, null);
+  }
 
+  /**
+   * Calculate the mean average value by key for a table with numeric values, grouping with the given options.
+   * @param table PTable of (key, value) pairs to operate on
+   * @param options GroupingOptions for the shuffle, or null to plan it (see Parallelism)
+   * @param <K> Key type, can be any type
+   * @param <V> Value type, must be numeric (ie. extend java.lang.Number)
+   * @return PTable&lt;K, Double&gt; of (key, mean(values)) pairs
+   */
+  public static <K, V extends Number> PTable<K, Double> meanValue(final PTable<K, V> table, GroupingOptions options) {
+    final PTypeFamily ptf = table.getTypeFamily();
+    final GroupingOptions planned = Parallelism.plan(table, true, options);
+    List<Object> operation = Derived.operation("Averages.meanValue.sums", options, planned,
+            DoFns.inMapperKeys(table));
+    PTable<K, Pair<Double, Long>> sums = Derived.get(table, operation, new Supplier<PTable<K, Pair<Double, Long>>>() {
       @Override
-      public Pair<Double, Long> map(V input) {
-        return Pair.of(input.doubleValue(), 1L);
+      public PTable<K, Pair<Double, Long>> get() {
+        PTable<K, Pair<Double, Long>> withCounts = table.parallelDo("withCounts", DoFns.instrumentIfEnabled(table,
+                DoFns.<K, V>sumAndCountInMapper(table.getKeyType(), DoFns.inMapperKeys(table)),
+                "Averages.meanValue.withCounts"), ptf.tableOf(table.getKeyType(), ptf.pairs(ptf.doubles(), ptf.longs())));
+        return withCounts.groupByKey(planned).combineValues(pairAggregator(SUM_DOUBLES(), SUM_LONGS()));
       }
-    }, ptf.pairs(ptf.doubles(), ptf.longs()));
-    PGroupedTable<K, Pair<Double, Long>> grouped = withCounts.groupByKey();
+    });
 
-    return grouped.combineValues(pairAggregator(SUM_DOUBLES(), SUM_LONGS()))
-            .mapValues(new MapFn<Pair<Double, Long>, Double>() {
+    return sums
+            .mapValues(MapFns.instrumentIfEnabled(table, new MapFn<Pair<Double, Long>, Double>() {
              @Override
              public Double map(Pair<Double, Long> input) {
                return input.first() / input.second();
              }
-            }, ptf.doubles());
+            }, "Averages.meanValue.divide"), ptf.doubles());
   }
 
 }
@@ -16,19 +16,38 @@
 package com.spotify.crunch.lib;
 
 import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
 import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.mapred.FsInput;
+import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificRecord;
+import org.apache.avro.util.Utf8;
 import org.apache.crunch.*;
+import org.apache.crunch.io.From;
+import org.apache.crunch.io.avro.AvroPathPerKeyTarget;
+import org.apache.crunch.lib.join.JoinUtils;
 import org.apache.crunch.types.PTableType;
 import org.apache.crunch.types.PType;
+import org.apache.crunch.types.PTypeFamily;
+import org.apache.crunch.types.avro.AvroType;
+import org.apache.crunch.types.avro.Avros;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.ReflectionUtils;
 
 import static com.spotify.crunch.lib.MapFns.*;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class AvroCollections {
   /**
@@ -43,7 +62,8 @@ public class AvroCollections {
    */
   public static <T extends SpecificRecord, F> PTable<F, T> keyByAvroField(PCollection<T> collection, String fieldPath, PType<F> fieldType) {
     Class<T> recordType = collection.getPType().getTypeClass();
-    return collection.by(new AvroExtractMapFn<T, F>(recordType, fieldPath), fieldType);
+    return collection.by(MapFns.instrumentIfEnabled(collection, new AvroExtractMapFn<T, F>(recordType, fieldPath),
+            "AvroCollections.keyByAvroField"), fieldType);
   }
 
   /**
@@ -57,7 +77,8 @@ public class AvroCollections {
    */
   public static <R extends SpecificRecord, A> PCollection<A> extract(PCollection<R> collection, String pathA, PType<A> pType) {
     Class<R> recordType = collection.getPType().getTypeClass();
-    return collection.parallelDo(new AvroExtractMapFn<R, A>(recordType, pathA), pType);
+    return collection.parallelDo(MapFns.instrumentIfEnabled(collection, new AvroExtractMapFn<R, A>(recordType, pathA),
+            "AvroCollections.extract"), pType);
   }
 
   /**
@@ -73,8 +94,9 @@ public class AvroCollections {
    */
   public static <R extends SpecificRecord, A, B> PTable<A, B> extract(PCollection<R> collection, String pathA, String pathB, PTableType<A, B> pType) {
     Class<R> recordType = collection.getPType().getTypeClass();
-    return collection.parallelDo(
-            pairFn(new AvroExtractMapFn<R, A>(recordType, pathA), new AvroExtractMapFn<R, B>(recordType, pathB)), pType);
+    return collection.parallelDo(MapFns.instrumentIfEnabled(collection,
+            pairFn(new AvroExtractMapFn<R, A>(recordType, pathA), new AvroExtractMapFn<R, B>(recordType, pathB)),
+            "AvroCollections.extract"), pType);
   }
 
   /**
@@ -92,20 +114,349 @@ public class AvroCollections {
    */
   public static <R extends SpecificRecord, A, B, C> PCollection<Tuple3<A, B, C>> extract(PCollection<R> collection, String pathA, String pathB, String pathC, PType<Tuple3<A, B, C>> pType) {
     Class<R> recordType = collection.getPType().getTypeClass();
-    return collection.parallelDo(
+    return collection.parallelDo(MapFns.instrumentIfEnabled(collection,
             tuple3Fn(
                     new AvroExtractMapFn<R, A>(recordType, pathA),
                     new AvroExtractMapFn<R, B>(recordType, pathB),
                     new AvroExtractMapFn<R, C>(recordType, pathC)),
+            "AvroCollections.extract"),
             pType);
   }
 
+  /**
+   * Partition a PCollection of Avro records into a fixed number of buckets by the value of a field, sorting the records
+   * within each bucket by that field. The result is keyed by the name of the bucket directory each record belongs in,
+   * which is in the form "bucket-00003-of-00016" so that the bucket count is recorded alongside the data. Each bucket
+   * is produced by exactly one reducer, so writing the result to an AvroPathPerKeyTarget gives a single sorted file per
+   * bucket directory. Use writeBucketed to do exactly that.
+   *
+   * The bucket of a record is determined by the hashCode of the field value (String hashCode for character data), so
+   * the field type must have a hashCode which is stable between JVMs, such as strings and numbers. Records with a null
+   * value for the field can't be bucketed (and would never match in a join), so they fail the task with an error
+   * naming the field; filter them out first.
+   *
+   * @param collection PCollection of Avro records to process
+   * @param fieldPath The Avro schema field name of the field to bucket on. Use . separated names for nested records
+   * @param fieldType PType of the field you wish to bucket on
+   * @param numBuckets Number of buckets (and reducers) to partition the data into
+   * @param <T> Avro record type
+   * @param <F> Field type
+   * @return PTable of (bucket directory name, record) pairs, sorted by the field value within each bucket
+   */
+  public static <T extends SpecificRecord, F> PTable<String, T> bucketByAvroField(PCollection<T> collection,
+          final String fieldPath, PType<F> fieldType, final int numBuckets) {
+    if (numBuckets < 1) {
+      throw new PlanTimeException("Number of buckets must be positive, was " + numBuckets);
+    }
+    PTypeFamily ptf = collection.getTypeFamily();
+    PType<T> recordType = collection.getPType();
+    PTable<Pair<Integer, F>, T> byBucket = keyByAvroField(collection, fieldPath, fieldType)
+            .parallelDo(new MapFn<Pair<F, T>, Pair<Pair<Integer, F>, T>>() {
+              @Override
+              public Pair<Pair<Integer, F>, T> map(Pair<F, T> input) {
+                if (input.first() == null) {
+                  throw new CrunchRuntimeException("Can't bucket a record with a null value for " + fieldPath);
+                }
+                return Pair.of(Pair.of(bucketOf(input.first(), numBuckets), input.first()), input.second());
+              }
+            }, ptf.tableOf(ptf.pairs(ptf.ints(), fieldType), recordType));
+
+    GroupingOptions options = GroupingOptions.builder()
+            .numReducers(numBuckets)
+            .partitionerClass(JoinUtils.getPartitionerClass(ptf))
+            .build();
+    return byBucket.groupByKey(options).ungroup()
+            .parallelDo(new MapFn<Pair<Pair<Integer, F>, T>, Pair<String, T>>() {
+              @Override
+              public Pair<String, T> map(Pair<Pair<Integer, F>, T> input) {
+                return Pair.of(bucketName(input.first().first(), numBuckets), input.second());
+              }
+            }, ptf.tableOf(ptf.strings(), recordType));
+  }
+
+  /**
+   * Write a PCollection of Avro records to a directory of buckets, partitioned and sorted by the value of a field, so
+   * that it can later be joined to another bucketed collection without a shuffle using sortMergeJoin. Both sides of such
+   * a join must be bucketed on fields of the same type into the same number of buckets.
+   * @param collection PCollection of Avro records to write
+   * @param fieldPath The Avro schema field name of the field to bucket on. Use . separated names for nested records
+   * @param fieldType PType of the field you wish to bucket on
+   * @param numBuckets Number of buckets to partition the data into
+   * @param path Output directory, which will contain one subdirectory per non-empty bucket
+   * @param <T> Avro record type
+   * @param <F> Field type
+   */
+  public static <T extends SpecificRecord, F> void writeBucketed(PCollection<T> collection, String fieldPath,
+          PType<F> fieldType, int numBuckets, String path) {
+    bucketByAvroField(collection, fieldPath, fieldType, numBuckets).write(new AvroPathPerKeyTarget(path));
+  }
+
+  /**
+   * Inner join two Avro datasets which have previously been written with writeBucketed, using a map-side merge of the
+   * matching buckets from each side instead of a reduce-side join. Each bucket of the left side is streamed through a
+   * map task which reads the corresponding bucket of the right side in parallel, so neither side is shuffled.
+   *
+   * Both datasets must already exist when the pipeline is planned, and must have the same number of buckets. The right
+   * side records for a single key are held in memory while they are joined, so the right side should be the one with
+   * the fewest records per key (typically a dimension table with unique keys).
+   *
+   * @param pipeline Pipeline to read the left side with
+   * @param leftPath Directory written by writeBucketed for the left side
+   * @param leftType Avro record class of the left side
+   * @param leftFieldPath Field path the left side was bucketed on
+   * @param rightPath Directory written by writeBucketed for the right side
+   * @param rightType Avro record class of the right side
+   * @param rightFieldPath Field path the right side was bucketed on
+   * @param keyType Avro PType of the join key
+   * @param <L> Left record type
+   * @param <R> Right record type
+   * @param <K> Join key type
+   * @return PTable of each join key with every (left, right) pair of records sharing that key
+   */
+  public static <L extends SpecificRecord, R extends SpecificRecord, K> PTable<K, Pair<L, R>> sortMergeJoin(
+          Pipeline pipeline, String leftPath, Class<L> leftType, String leftFieldPath,
+          String rightPath, Class<R> rightType, String rightFieldPath, PType<K> keyType) {
+    if (!(keyType instanceof AvroType)) {
+      throw new PlanTimeException("Sort-merge joins read Avro records, so the key type must be an Avro PType, got "
+              + keyType);
+    }
+    Configuration conf = pipeline.getConfiguration();
+    Map<Integer, Path> leftBuckets = listBuckets(new Path(leftPath), conf);
+    Map<Integer, Path> rightBuckets = listBuckets(new Path(rightPath), conf);
+    int numBuckets = bucketCount(leftBuckets, rightBuckets);
+
+    PTableType<K, Pair<L, R>> resultType = Avros.tableOf(keyType,
+            Avros.pairs(Avros.specifics(leftType), Avros.specifics(rightType)));
+    PTable<K, Pair<L, R>> result = pipeline.emptyPTable(resultType);
+    for (Map.Entry<Integer, Path> leftBucket: leftBuckets.entrySet()) {
+      Path rightBucket = rightBuckets.get(leftBucket.getKey());
+      if (rightBucket == null) {
+        continue;
+      }
+      PCollection<L> left = pipeline.read(From.avroFile(leftBucket.getValue(), leftType));
+      result = result.union(left.parallelDo("merge " + bucketName(leftBucket.getKey(), numBuckets),
+              DoFns.instrumentIfEnabled(left, new SortMergeJoinFn<L, R, K>(
+                      new AvroExtractMapFn<L, K>(leftType, leftFieldPath),
+                      new AvroExtractMapFn<R, K>(rightType, rightFieldPath),
+                      rightType, rightBucket.toString()), "AvroCollections.sortMergeJoin"),
+              resultType));
+    }
+    return result;
+  }
+
+  private static final Pattern BUCKET_NAME = Pattern.compile("bucket-(\\d+)-of-(\\d+)");
+
+  static int bucketOf(Object key, int numBuckets) {
+    if (key == null) {
+      return 0;
+    }
+    int hash = key instanceof CharSequence ? key.toString().hashCode() : key.hashCode();
+    return (hash & Integer.MAX_VALUE) % numBuckets;
+  }
+
+  static String bucketName(int bucket, int numBuckets) {
+    return String.format("bucket-%05d-of-%05d", bucket, numBuckets);
+  }
+
+  private static Map<Integer, Path> listBuckets(Path path, Configuration conf) {
+    Map<Integer, Path> buckets = Maps.newTreeMap();
+    try {
+      FileSystem fs = path.getFileSystem(conf);
+      if (!fs.exists(path)) {
+        throw new PlanTimeException("Bucketed dataset " + path + " does not exist");
+      }
+      for (FileStatus status: fs.listStatus(path)) {
+        Matcher matcher = BUCKET_NAME.matcher(status.getPath().getName());
+        if (status.isDirectory() && matcher.matches()) {
+          buckets.put(Integer.parseInt(matcher.group(1)), status.getPath());
+        }
+      }
+    } catch (IOException e) {
+      throw new PlanTimeException("Could not list buckets in " + path, e);
+    }
+    return buckets;
+  }
+
+  private static int bucketCount(Map<Integer, Path> leftBuckets, Map<Integer, Path> rightBuckets) {
+    Integer numBuckets = null;
+    for (Path bucket: Iterables.concat(leftBuckets.values(), rightBuckets.values())) {
+      Matcher matcher = BUCKET_NAME.matcher(bucket.getName());
+      matcher.matches();
+      int count = Integer.parseInt(matcher.group(2));
+      if (numBuckets != null && numBuckets != count) {
+        throw new PlanTimeException("Bucketed datasets must have the same number of buckets, found " + numBuckets
+                + " and " + count);
+      }
+      numBuckets = count;
+    }
+    return numBuckets == null ? 0 : numBuckets;
+  }
+
+  /**
+   * Compare two join keys in the order that Avro sorts them in the shuffle: character data by its UTF-8 bytes, and
+   * everything else by its natural ordering. Nulls (which bucketByAvroField never writes) sort first.
+   */
+  @SuppressWarnings("unchecked") // keys of a bucketed dataset are all of the same Comparable type
+  static int compareKeys(Object a, Object b) {
+    if (a == null || b == null) {
+      return a == null ? (b == null ? 0 : -1) : 1;
+    }
+    if (a instanceof CharSequence && b instanceof CharSequence) {
+      return asUtf8((CharSequence) a).compareTo(asUtf8((CharSequence) b));
+    }
+    return ((Comparable<Object>) a).compareTo(b);
+  }
+
+  private static Utf8 asUtf8(CharSequence charSequence) {
+    return charSequence instanceof Utf8 ? (Utf8) charSequence : new Utf8(charSequence.toString());
+  }
+
+  /**
+   * Position a reader over a file of records sorted by key at a block boundary before the first record with a key
+   * equal to or greater than key, by bisecting over the sync markers of the file until less than minBytes are left
+   * between the bounds. Records before that position are skipped without being read.
+   */
+  static <R> void seekBefore(DataFileReader<R> reader, long length, MapFn<R, ?> keyFn, Object key, long minBytes)
+          throws IOException {
+    long start = reader.previousSync();
+    long lo = start;
+    long hi = length;
+    while (hi - lo > minBytes) {
+      long mid = lo + (hi - lo) / 2;
+      reader.sync(mid);
+      // every record before a block whose first key is less than key also has a smaller key
+      if (reader.hasNext() && compareKeys(keyFn.map(reader.next()), key) < 0) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo == start) {
+      reader.seek(start);
+    } else {
+      reader.sync(lo);
+    }
+  }
+
+  /**
+   * DoFn which streams the sorted records of one bucket of the left side of a join against a reader over the matching
+   * sorted bucket of the right side, emitting every pair of records with equal keys. A large left bucket file may be
+   * split over several map tasks, so each task first seeks the right side to the first key of its split.
+   */
+  private static class SortMergeJoinFn<L extends SpecificRecord, R extends SpecificRecord, K>
+          extends DoFn<L, Pair<K, Pair<L, R>>> {
+    private static final long SEEK_MIN_BYTES = 1 << 20;
+
+    private final AvroExtractMapFn<L, K> leftKeyFn;
+    private final AvroExtractMapFn<R, K> rightKeyFn;
+    private final Class<R> rightType;
+    private final String rightBucket;
+
+    private transient List<DataFileReader<R>> readers;
+    private transient long rightLength;
+    private transient boolean positioned;
+    private transient R nextRight;
+    private transient K nextRightKey;
+    private transient K groupKey;
+    private transient List<R> group;
+
+    public SortMergeJoinFn(AvroExtractMapFn<L, K> leftKeyFn, AvroExtractMapFn<R, K> rightKeyFn, Class<R> rightType,
+            String rightBucket) {
+      this.leftKeyFn = leftKeyFn;
+      this.rightKeyFn = rightKeyFn;
+      this.rightType = rightType;
+      this.rightBucket = rightBucket;
+    }
+
+    @Override
+    public void initialize() {
+      Configuration conf = getConfiguration() == null ? new Configuration() : getConfiguration();
+      readers = Lists.newArrayList();
+      group = Lists.newArrayList();
+      groupKey = null;
+      positioned = false;
+      try {
+        Path path = new Path(rightBucket);
+        FileSystem fs = path.getFileSystem(conf);
+        for (FileStatus status: fs.listStatus(path)) {
+          String name = status.getPath().getName();
+          if (status.isFile() && !name.startsWith("_") && !name.startsWith(".")) {
+            readers.add(new DataFileReader<R>(new FsInput(status.getPath(), conf),
+                    new SpecificDatumReader<R>(rightType)));
+            rightLength = status.getLen();
+          }
+        }
+      } catch (IOException e) {
+        throw new CrunchRuntimeException("Could not open bucket " + rightBucket, e);
+      }
+      if (readers.size() > 1) {
+        throw new CrunchRuntimeException("Expected a single sorted file in bucket " + rightBucket + ", found "
+                + readers.size());
+      }
+    }
+
+    private void advance() {
+      if (!readers.isEmpty() && readers.get(0).hasNext()) {
+        nextRight = readers.get(0).next();
+        nextRightKey = rightKeyFn.map(nextRight);
+      } else {
+        nextRight = null;
+        nextRightKey = null;
+      }
+    }
+
+    @Override
+    public void process(L left, Emitter<Pair<K, Pair<L, R>>> emitter) {
+      K key = leftKeyFn.map(left);
+      if (key == null) {
+        return;
+      }
+      if (!positioned) {
+        if (!readers.isEmpty()) {
+          try {
+            seekBefore(readers.get(0), rightLength, rightKeyFn, key, SEEK_MIN_BYTES);
+          } catch (IOException e) {
+            throw new CrunchRuntimeException("Could not seek in bucket " + rightBucket, e);
+          }
+        }
+        advance();
+        positioned = true;
+      }
+      if (groupKey == null || compareKeys(groupKey, key) != 0) {
+        while (nextRight != null && compareKeys(nextRightKey, key) < 0) {
+          advance();
+        }
+        group.clear();
+        groupKey = key;
+        while (nextRight != null && compareKeys(nextRightKey, key) == 0) {
+          group.add(nextRight);
+          advance();
+        }
+      }
+      for (R right: group) {
+        emitter.emit(Pair.of(key, Pair.of(left, right)));
+      }
+    }
+
+    @Override
+    public void cleanup(Emitter<Pair<K, Pair<L, R>>> emitter) {
+      for (DataFileReader<R> reader: readers) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          throw new CrunchRuntimeException(e);
+        }
+      }
+      readers.clear();
+    }
+  }
+
   /**
    * MapFn to extract a field from an Avro record
    * @param <T> Avro record class
    * @param <F> Field type
    */
-  private static class AvroExtractMapFn<T extends SpecificRecord, F> extends MapFn<T, F> {
+  static class AvroExtractMapFn<T extends SpecificRecord, F> extends MapFn<T, F> {
     private final List<Integer> indices;
     private boolean targetIsString = false;
 
@@ -152,6 +503,7 @@ public class AvroCollections {
     }
 
     @Override
+    @SuppressWarnings("unchecked") // callers name the type of the field with the F they ask for
     public F map(T record) {
       Object fieldValue = record;
       for (int i : indices) {
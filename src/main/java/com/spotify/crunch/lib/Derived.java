@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.PTable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the intermediate collections which the library derives from its inputs, so that several library calls on
+ * the same collection in a pipeline (such as TopLists.topNYbyX and TopLists.globalToplist, or Percentiles and
+ * Averages) share one stage for each identical computation instead of each planning its own shuffle.
+ *
+ * Collections are cached by the identity of the collection they are derived from, and by an operation name and
+ * parameters, which include any configuration the derived collection depends on. The cache only holds on to them
+ * weakly, so it does not keep the collections of finished pipelines alive. It can be turned off by setting
+ * crunch.lib.derived.cache to false in the pipeline configuration.
+ */
+class Derived {
+  static final String ENABLED_PROPERTY = "crunch.lib.derived.cache";
+
+  private static final Map<PCollection<?>, Map<List<Object>, PCollection<?>>> CACHE =
+          new MapMaker().weakKeys().makeMap();
+
+  /**
+   * The collection derived from source by operation, computing it with derive unless it has been derived before
+   * @param source Collection which the derived collection is computed from
+   * @param operation Name and parameters of the computation, which must have consistent equals and hashCode methods
+   * @param derive Computes the derived collection
+   */
+  static synchronized <T extends PCollection<?>> T get(PCollection<?> source, List<Object> operation,
+          Supplier<T> derive) {
+    if (!source.getPipeline().getConfiguration().getBoolean(ENABLED_PROPERTY, true)) {
+      return derive.get();
+    }
+    Map<List<Object>, PCollection<?>> derived = CACHE.get(source);
+    if (derived == null) {
+      derived = new MapMaker().weakValues().makeMap();
+      CACHE.put(source, derived);
+    }
+    // only collections derived by the same operation, and so of the same type, are cached under it
+    @SuppressWarnings("unchecked")
+    T collection = (T) derived.get(operation);
+    if (collection == null) {
+      collection = derive.get();
+      derived.put(operation, collection);
+    }
+    return collection;
+  }
+
+  /**
+   * The keys of a table like PTable.keys(), shared by all the library calls which count or otherwise process them
+   */
+  static <K> PCollection<K> keys(final PTable<K, ?> table) {
+    return get(table, Lists.<Object>newArrayList("keys"), new Supplier<PCollection<K>>() {
+      @Override
+      public PCollection<K> get() {
+        return table.keys();
+      }
+    });
+  }
+
+  /**
+   * Name and parameters of an operation which groups with options: options given by the user are compared by
+   * identity, as their configuration can't be compared, and planned ones (see Parallelism.plan) by their number of
+   * reducers
+   * @param name Name of the operation
+   * @param options GroupingOptions given by the user, or null
+   * @param planned GroupingOptions planned from them
+   * @param params Any other parameters of the operation
+   */
+  static List<Object> operation(String name, GroupingOptions options, GroupingOptions planned, Object... params) {
+    List<Object> operation = Lists.<Object>newArrayList(name, options != null ? options : planned.getNumReducers());
+    operation.addAll(Arrays.asList(params));
+    return operation;
+  }
+}
@@ -16,17 +16,91 @@
 package com.spotify.crunch.lib;
 
 import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.crunch.CrunchRuntimeException;
 import org.apache.crunch.DoFn;
 import org.apache.crunch.Emitter;
+import org.apache.crunch.MapFn;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.PTable;
 import org.apache.crunch.Pair;
+import org.apache.crunch.ParallelDoOptions;
+import org.apache.crunch.ReadableData;
 import org.apache.crunch.types.PType;
+import org.apache.crunch.types.avro.AvroMode;
+import org.apache.crunch.types.avro.AvroType;
+import org.apache.crunch.types.writable.WritableType;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.counters.GenericCounter;
+import org.apache.hadoop.util.ReflectionUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class DoFns {
+  /** Default maximum number of records kept in the pool of detachPooled(...) */
+  public static final int DEFAULT_MAX_POOLED_RECORDS = 10000;
+  static final String IN_MAPPER_KEYS_PROPERTY = "crunch.lib.inmapper.keys";
+  static final int DEFAULT_IN_MAPPER_KEYS = 10000;
+
   /**
    * "Reduce" DoFn wrapper which detaches the values in the iterable, preventing the unexpected behaviour related to
    * object reuse often observed when using Avro. Wrap your DoFn in a detach(...) and pass in a PType for the Iterable
@@ -53,6 +127,314 @@ public class DoFns {
     return new DetachingDoFn<K, V, T>(reduceFn, valueType);
   }
 
+  /**
+   * "Reduce" DoFn wrapper which detaches the values in the iterable like detach(...), but also makes the Iterable safe
+   * to iterate over more than once. The first maxValuesInMemory values of each group are held in memory as detached
+   * objects, and any further values are serialized to a local temporary file using the value PType, so that memory
+   * usage stays bounded even for very large groups.
+   *
+   * Use this instead of collecting the group into a List yourself when your reducer needs several passes over the
+   * values and some keys may have more values than fit in memory. The whole group is read before the wrapped DoFn is
+   * called, so there is no benefit over detach(...) for single-pass reducers.
+   *
+   * @param reduceFn Underlying DoFn to wrap
+   * @param valueType PType of the object contained within the Iterable. Must be from the Avro or Writable type family
+   * @param maxValuesInMemory Maximum number of values per group to hold in memory before spilling to disk
+   * @param <K> Reduce key
+   * @param <V> Iterable value
+   * @param <T> Output type of DoFn
+   * @return DoFn which will detach values for you, and hand you a re-iterable Iterable
+   */
+  public static <K, V, T> DoFn<Pair<K, Iterable<V>>, T> detach(final DoFn<Pair<K, Iterable<V>>, T> reduceFn,
+          final PType<V> valueType, int maxValuesInMemory) {
+    return new SpillingDetachingDoFn<K, V, T>(reduceFn, valueType, spillSerializer(valueType), maxValuesInMemory);
+  }
+
+  /**
+   * "Reduce" DoFn wrapper which detaches the values in the iterable like detach(...), but instead of allocating a new
+   * object graph for every value it deep-copies each value into a record drawn from a pool kept for the lifetime of the
+   * task. Records, nested records, Utf8 strings and byte buffers are all reused; arrays and maps are still copied into
+   * new objects.
+   *
+   * The pool is recycled at the start of every call to process, so the detached values are only valid until the next
+   * key is processed. Emitting them (or collections of them) is safe as long as the next stage serializes its input, as
+   * the output of a reducer always does, but you must not hold on to them between calls yourself. On a MemPipeline,
+   * which hands emitted objects to the next stage as they are, every value is detached into a new record instead, as
+   * with detach(...). The pool holds up to DEFAULT_MAX_POOLED_RECORDS records; values beyond that in a group are
+   * detached into new records.
+   *
+   * @param reduceFn Underlying DoFn to wrap
+   * @param valueType PType of the Avro specific record contained within the Iterable
+   * @param <K> Reduce key
+   * @param <V> Iterable value
+   * @param <T> Output type of DoFn
+   * @return DoFn which will detach values into pooled objects for you
+   */
+  public static <K, V extends SpecificRecord, T> DoFn<Pair<K, Iterable<V>>, T> detachPooled(
+          final DoFn<Pair<K, Iterable<V>>, T> reduceFn, final PType<V> valueType) {
+    return detachPooled(reduceFn, valueType, DEFAULT_MAX_POOLED_RECORDS);
+  }
+
+  /**
+   * Like detachPooled(reduceFn, valueType), with a limit on the number of records kept in the pool for the lifetime of
+   * the task.
+   *
+   * @param reduceFn Underlying DoFn to wrap
+   * @param valueType PType of the Avro specific record contained within the Iterable
+   * @param maxPooledRecords Maximum number of records to keep in the pool
+   * @param <K> Reduce key
+   * @param <V> Iterable value
+   * @param <T> Output type of DoFn
+   * @return DoFn which will detach values into pooled objects for you
+   */
+  public static <K, V extends SpecificRecord, T> DoFn<Pair<K, Iterable<V>>, T> detachPooled(
+          final DoFn<Pair<K, Iterable<V>>, T> reduceFn, final PType<V> valueType, int maxPooledRecords) {
+    if (!(valueType instanceof AvroType) || !((AvroType<V>) valueType).hasSpecific()) {
+      throw new PlanTimeException("Pooled detaching requires an Avro specific record PType, got " + valueType);
+    }
+    if (maxPooledRecords < 0) {
+      throw new PlanTimeException("maxPooledRecords must not be negative, was " + maxPooledRecords);
+    }
+    return new PooledDetachingDoFn<K, V, T>(reduceFn, (AvroType<V>) valueType, maxPooledRecords);
+  }
+
+  /**
+   * DoFn wrapper which buffers its input into batches of up to batchSize elements, and hands each batch to the wrapped
+   * DoFn as a List. Any incomplete batch left over at the end of the task is processed in cleanup. This lets functions
+   * which are cheaper per element when working on many elements at once (vectorized calculations, model scoring, lookups
+   * against external stores) amortize their per-call overhead.
+   *
+   * Input values are buffered as they are, so this is only safe for input types whose objects are not reused by Crunch
+   * between calls, such as Strings and boxed primitives. Use batch(batchFn, batchSize, inputType) for anything else.
+   *
+   * @param batchFn Underlying DoFn to hand batches to
+   * @param batchSize Maximum number of elements in each batch
+   * @param <S> Input type
+   * @param <T> Output type of DoFn
+   * @return DoFn which will batch up inputs for you
+   */
+  public static <S, T> DoFn<S, T> batch(final DoFn<List<S>, T> batchFn, int batchSize) {
+    return new BatchingDoFn<S, T>(batchFn, batchSize, null);
+  }
+
+  /**
+   * DoFn wrapper which buffers its input into batches of up to batchSize elements, detaching each element with the
+   * provided PType before it is buffered. This works in both map and reduce stages; to batch up the groups arriving at a
+   * reducer, pass the PGroupedTableType of the grouped table, which detaches the values of each group into a List.
+   *
+   * @param batchFn Underlying DoFn to hand batches to
+   * @param batchSize Maximum number of elements in each batch
+   * @param inputType PType of the input, used to detach each input before it is buffered
+   * @param <S> Input type
+   * @param <T> Output type of DoFn
+   * @return DoFn which will batch up inputs for you
+   */
+  public static <S, T> DoFn<S, T> batch(final DoFn<List<S>, T> batchFn, int batchSize, final PType<S> inputType) {
+    return new BatchingDoFn<S, T>(batchFn, batchSize, inputType);
+  }
+
+  /**
+   * DoFn wrapper which runs the wrapped DoFn on a pool of worker threads inside the task, so that CPU-heavy functions
+   * (parsing, decoding, feature extraction) can make use of more than one core per task. Each worker thread gets its
+   * own copy of the wrapped DoFn, created by serializing the original, which is initialized and cleaned up along with
+   * the task. Outputs are emitted in the order of the inputs they were produced from.
+   *
+   * At most queueDepth inputs are in flight at any time; once that many are waiting, reading further input blocks until
+   * the oldest one has finished, so memory usage stays bounded. All output is emitted from the task thread. Counters
+   * incremented by the wrapped DoFn are collected per worker and added to the task's counters from the task thread,
+   * whenever outputs are emitted and when the task ends.
+   *
+   * Inputs are handed to the workers as they are, and outputs are buffered as they are until they are emitted, so this
+   * is only safe for types whose objects are not reused between calls, such as Strings and boxed primitives. Use the
+   * overloads taking PTypes for anything else, or for wrapped DoFns which reuse the objects they emit.
+   *
+   * @param fn Underlying DoFn to run in parallel. Must not depend on seeing all inputs in a single instance
+   * @param threads Number of worker threads
+   * @param queueDepth Maximum number of inputs being processed or waiting to be emitted at once
+   * @param <S> Input type
+   * @param <T> Output type of DoFn
+   * @return DoFn which will run the wrapped DoFn on several threads
+   */
+  public static <S, T> DoFn<S, T> parallel(final DoFn<S, T> fn, int threads, int queueDepth) {
+    return new ParallelDoFn<S, T>(fn, threads, queueDepth, null, null, true);
+  }
+
+  /**
+   * DoFn wrapper which runs the wrapped DoFn on a pool of worker threads inside the task like parallel(fn, threads,
+   * queueDepth), detaching each input with the provided PType before handing it over to a worker thread. If ordered is
+   * false, outputs are emitted as soon as they are ready rather than in the order of their inputs, which keeps all the
+   * threads busy when the time taken per input varies a lot.
+   *
+   * @param fn Underlying DoFn to run in parallel. Must not depend on seeing all inputs in a single instance
+   * @param threads Number of worker threads
+   * @param queueDepth Maximum number of inputs being processed or waiting to be emitted at once
+   * @param inputType PType of the input, used to detach each input before it is handed to a worker thread
+   * @param ordered Whether outputs must be emitted in the order of their inputs
+   * @param <S> Input type
+   * @param <T> Output type of DoFn
+   * @return DoFn which will run the wrapped DoFn on several threads
+   */
+  public static <S, T> DoFn<S, T> parallel(final DoFn<S, T> fn, int threads, int queueDepth, final PType<S> inputType,
+          boolean ordered) {
+    return new ParallelDoFn<S, T>(fn, threads, queueDepth, inputType, null, ordered);
+  }
+
+  /**
+   * DoFn wrapper which runs the wrapped DoFn on a pool of worker threads inside the task like parallel(fn, threads,
+   * queueDepth, inputType, ordered), also detaching each output with the provided PType before it is buffered. This is
+   * needed when the wrapped DoFn reuses the objects it emits.
+   *
+   * @param fn Underlying DoFn to run in parallel. Must not depend on seeing all inputs in a single instance
+   * @param threads Number of worker threads
+   * @param queueDepth Maximum number of inputs being processed or waiting to be emitted at once
+   * @param inputType PType of the input, used to detach each input before it is handed to a worker thread
+   * @param outputType PType of the output, used to detach each output before it is buffered
+   * @param ordered Whether outputs must be emitted in the order of their inputs
+   * @param <S> Input type
+   * @param <T> Output type of DoFn
+   * @return DoFn which will run the wrapped DoFn on several threads
+   */
+  public static <S, T> DoFn<S, T> parallel(final DoFn<S, T> fn, int threads, int queueDepth, final PType<S> inputType,
+          final PType<T> outputType, boolean ordered) {
+    return new ParallelDoFn<S, T>(fn, threads, queueDepth, inputType, outputType, ordered);
+  }
+
+  /**
+   * DoFn wrapper which looks up a key of each input in a medium-sized table, and hands the input along with the value
+   * found for it (or null if there is none) to the wrapped DoFn. This avoids both the shuffle of a reduce-side join and
+   * loading the table into a HashMap in the heap of every task.
+   *
+   * The table is materialized and shipped to the tasks through the distributed cache. The first task on each node to
+   * need it writes the table into a local file as an open-addressing hash table of serialized keys and values, which is
+   * then memory-mapped by every task on the node using the same table, so lookups read from the shared page cache rather
+   * than from a copy on the heap. The file is written to crunch.lib.lookup.dir, which must be a local directory shared
+   * by the tasks on a node, and is removed when the task that wrote it exits. By default this is crunch-lib-lookup
+   * within the first of the application's local directories on YARN, which are also removed when the application
+   * finishes, so the files of killed or failed tasks don't pile up; outside of YARN it is within hadoop.tmp.dir.
+   *
+   * The returned DoFn must be run with its getParallelDoOptions(), so that the table is materialized first. If a key
+   * appears more than once in the table, one of its values is picked arbitrarily.
+   *
+   * @param fn Underlying DoFn, handed each input paired with the value found for it
+   * @param keyFn Extracts the key to look up from each input
+   * @param table Table to look keys up in. Key and value types must be from the Avro or Writable type family
+   * @param <S> Input type
+   * @param <K> Key type of the table
+   * @param <V> Value type of the table
+   * @param <T> Output type of DoFn
+   * @return DoFn which will look up values for you
+   */
+  public static <S, K, V, T> LookupDoFn<S, K, V, T> withLookup(DoFn<Pair<S, V>, T> fn, MapFn<S, K> keyFn,
+          PTable<K, V> table) {
+    return new LookupDoFn<S, K, V, T>(fn, keyFn, table.asReadable(true),
+            new MappedTable<K, V>(table.getKeyType(), table.getValueType()));
+  }
+
+  /**
+   * DoFn which counts the occurrences of each distinct input within a map task, and emits (input, count) pairs. The
+   * counts are kept in an open-addressing hash table of up to maxKeys distinct inputs with primitive long counters,
+   * which is emitted and cleared when it is full and when the task ends. For skewed, repetitive inputs this emits far
+   * fewer records than pairing every input with a count of 1 and leaving it to a combiner, which still has to
+   * serialize, sort and spill all of them. Follow it with groupByKey().combineValues(Aggregators.SUM_LONGS()).
+   *
+   * @param type PType of the input, used to detach inputs before they are kept as keys of the table. Its objects must
+   *             have consistent equals and hashCode methods
+   * @param maxKeys Maximum number of distinct inputs to keep counts for at once, or 0 to emit a count of 1 per input
+   * @param <S> Input type
+   * @return DoFn emitting partial counts per distinct input
+   */
+  public static <S> DoFn<S, Pair<S, Long>> countInMapper(PType<S> type, int maxKeys) {
+    return new CountInMapperFn<S>(type, maxKeys);
+  }
+
+  /**
+   * DoFn which sums up the values of each key within a map task, and emits (key, (sum, count)) pairs, with the same
+   * in-mapper hash table as countInMapper. Follow it with
+   * groupByKey().combineValues(Aggregators.pairAggregator(SUM_DOUBLES(), SUM_LONGS())).
+   *
+   * @param keyType PType of the keys, used to detach them before they are kept in the table. Its objects must have
+   *                consistent equals and hashCode methods
+   * @param maxKeys Maximum number of keys to keep sums for at once, or 0 to emit a (value, 1) pair per input
+   * @param <K> Key type
+   * @param <V> Value type (must extend java.lang.Number)
+   * @return DoFn emitting partial sums and counts per key
+   */
+  public static <K, V extends Number> DoFn<Pair<K, V>, Pair<K, Pair<Double, Long>>> sumAndCountInMapper(
+          PType<K> keyType, int maxKeys) {
+    return new SumAndCountInMapperFn<K, V>(keyType, maxKeys);
+  }
+
+  static int inMapperKeys(PCollection<?> collection) {
+    return collection.getPipeline().getConfiguration().getInt(IN_MAPPER_KEYS_PROPERTY, DEFAULT_IN_MAPPER_KEYS);
+  }
+
+  /**
+   * DoFn wrapper which records how much work the wrapped DoFn does into Hadoop counters in the group
+   * "crunch-lib: name". This lets you find out which of several functions fused into the same task is responsible for
+   * most of its running time. The counters recorded are:
+   *
+   * inputRecords / outputRecords: the number of records going in and coming out of the DoFn.
+   * sampledNanos: the time spent processing the records which were timed, excluding time spent in later functions
+   * receiving the output. Only one in every crunch.lib.instrument.sample.interval records (default 100) is timed, to
+   * keep the overhead low.
+   * extrapolatedNanos: an estimate of the total time spent processing all records, extrapolated from the sampled
+   * records of each task. This is not a measured time.
+   *
+   * Each instrumented function records at most 4 counters (6 for instrumentGrouped), so that a dozen or so functions
+   * can be instrumented within Hadoop's default limit of 120 counters per job.
+   *
+   * Instrumentation can be switched on for the functions used internally by this library by setting
+   * crunch.lib.instrument to true in the pipeline configuration.
+   *
+   * @param fn Underlying DoFn to instrument
+   * @param name Name to record counters under
+   * @param <S> Input type
+   * @param <T> Output type of DoFn
+   * @return DoFn which will record counters for the wrapped DoFn
+   */
+  public static <S, T> DoFn<S, T> instrument(final DoFn<S, T> fn, String name) {
+    return new InstrumentedDoFn<S, T>(fn, name);
+  }
+
+  /**
+   * "Reduce" DoFn wrapper which records the same counters as instrument(...), and in addition:
+   *
+   * groupedValues: the number of values in all the groups processed, whether or not the wrapped DoFn read them all.
+   * Values the wrapped DoFn doesn't read (such as after the first n in a top-n) are read and counted after it returns.
+   * largeGroups: the number of groups with at least crunch.lib.instrument.large.group values (default 10000), which
+   * shows how skewed the keys seen by the reducer are.
+   *
+   * @param reduceFn Underlying DoFn to instrument
+   * @param name Name to record counters under
+   * @param <K> Reduce key
+   * @param <V> Iterable value
+   * @param <T> Output type of DoFn
+   * @return DoFn which will record counters for the wrapped DoFn
+   */
+  public static <K, V, T> DoFn<Pair<K, Iterable<V>>, T> instrumentGrouped(final DoFn<Pair<K, Iterable<V>>, T> reduceFn,
+          String name) {
+    return new InstrumentedGroupedDoFn<K, V, T>(reduceFn, name);
+  }
+
+  static <S, T> DoFn<S, T> instrumentIfEnabled(PCollection<?> collection, DoFn<S, T> fn, String name) {
+    return Instrumentation.isEnabled(collection) ? instrument(fn, name) : fn;
+  }
+
+  /**
+   * Whether a function is run by a MemPipeline, which hands the objects emitted by a function to the next one as they
+   * are instead of serializing them, so that functions must not reuse the objects they emit. MemPipeline runs functions
+   * with a stand-in task context, whose task attempt belongs to a job without a job tracker identifier. A function
+   * without any context is being driven directly by its caller, and is not considered to run in memory.
+   */
+  static boolean runsInMemory(TaskInputOutputContext<?, ?, ?, ?> context) {
+    return context != null && context.getTaskAttemptID().getJobID().getJtIdentifier().isEmpty();
+  }
+
+  static <K, V, T> DoFn<Pair<K, Iterable<V>>, T> instrumentGroupedIfEnabled(PCollection<?> collection,
+          DoFn<Pair<K, Iterable<V>>, T> reduceFn, String name) {
+    return Instrumentation.isEnabled(collection) ? instrumentGrouped(reduceFn, name) : reduceFn;
+  }
+
   private static class DetachFunction<T> implements Function<T, T>, Serializable {
     private final PType<T> pType;
 
@@ -68,8 +450,8 @@ public class DoFns {
 
   private static class DetachingDoFn<K, V, T> extends DoFn<Pair<K, Iterable<V>>, T> {
 
-    private final DoFn<Pair<K, Iterable<V>>, T> reduceFn;
-    private final PType<V> valueType;
+    protected final DoFn<Pair<K, Iterable<V>>, T> reduceFn;
+    protected final PType<V> valueType;
 
     public DetachingDoFn(DoFn<Pair<K, Iterable<V>>, T> reduceFn, PType<V> valueType) {
       this.reduceFn = reduceFn;
@@ -99,8 +481,1420 @@ public class DoFns {
       reduceFn.process(Pair.of(input.first(), detachIterable(input.second(), valueType)), emitter);
     }
 
+    @Override
+    public void cleanup(Emitter<T> emitter) {
+      reduceFn.cleanup(emitter);
+    }
+
     public Iterable<V> detachIterable(Iterable<V> iterable, final PType<V> pType) {
       return Iterables.transform(iterable, new DetachFunction<V>(pType));
     }
   }
+
+  /**
+   * Per-task record counts and timings for an instrumented function, which are accumulated locally and written out to
+   * counters when the task finishes.
+   */
+  static class Instrumentation implements Serializable {
+    static final String ENABLED_PROPERTY = "crunch.lib.instrument";
+    static final String SAMPLE_INTERVAL_PROPERTY = "crunch.lib.instrument.sample.interval";
+    static final String LARGE_GROUP_PROPERTY = "crunch.lib.instrument.large.group";
+    private static final int DEFAULT_SAMPLE_INTERVAL = 100;
+    private static final long DEFAULT_LARGE_GROUP = 10000;
+
+    private final String group;
+    private transient int sampleInterval;
+    private transient long largeGroup;
+    private transient long inputs;
+    private transient long outputs;
+    private transient long sampledInputs;
+    private transient long sampledNanos;
+    private transient boolean grouped;
+    private transient long groupedValues;
+    private transient long largeGroups;
+
+    Instrumentation(String name) {
+      this.group = "crunch-lib: " + name;
+    }
+
+    static boolean isEnabled(PCollection<?> collection) {
+      return collection.getPipeline().getConfiguration().getBoolean(ENABLED_PROPERTY, false);
+    }
+
+    String getGroup() {
+      return group;
+    }
+
+    void initialize(Configuration conf) {
+      sampleInterval = Math.max(1, conf == null ? DEFAULT_SAMPLE_INTERVAL
+              : conf.getInt(SAMPLE_INTERVAL_PROPERTY, DEFAULT_SAMPLE_INTERVAL));
+      largeGroup = conf == null ? DEFAULT_LARGE_GROUP : conf.getLong(LARGE_GROUP_PROPERTY, DEFAULT_LARGE_GROUP);
+      inputs = 0;
+      outputs = 0;
+      sampledInputs = 0;
+      sampledNanos = 0;
+      grouped = false;
+      groupedValues = 0;
+      largeGroups = 0;
+    }
+
+    /**
+     * Record an input, returning whether it should be timed
+     */
+    boolean input() {
+      return inputs++ % sampleInterval == 0;
+    }
+
+    void output() {
+      outputs++;
+    }
+
+    void sample(long nanos) {
+      sampledInputs++;
+      sampledNanos += nanos;
+    }
+
+    void groupSize(long size) {
+      grouped = true;
+      groupedValues += size;
+      if (size >= largeGroup) {
+        largeGroups++;
+      }
+    }
+
+    Map<String, Long> counters() {
+      Map<String, Long> counters = Maps.newLinkedHashMap();
+      counters.put("inputRecords", inputs);
+      counters.put("outputRecords", outputs);
+      counters.put("sampledNanos", sampledNanos);
+      counters.put("extrapolatedNanos", sampledInputs == 0 ? 0 : (long) ((double) sampledNanos * inputs / sampledInputs));
+      if (grouped) {
+        counters.put("groupedValues", groupedValues);
+        counters.put("largeGroups", largeGroups);
+      }
+      return counters;
+    }
+  }
+
+  private static class InstrumentedDoFn<S, T> extends DoFn<S, T> {
+
+    private final DoFn<S, T> fn;
+    protected final Instrumentation instrumentation;
+    private transient CountingEmitter<T> countingEmitter;
+
+    public InstrumentedDoFn(DoFn<S, T> fn, String name) {
+      this.fn = fn;
+      this.instrumentation = new Instrumentation(name);
+    }
+
+    @Override
+    public void setContext(TaskInputOutputContext<?, ?, ?, ?> context) {
+      super.setContext(context);
+      fn.setContext(context);
+    }
+
+    @Override
+    public void setConfiguration(Configuration configuration) {
+      super.setConfiguration(configuration);
+      fn.setConfiguration(configuration);
+    }
+
+    @Override
+    public void configure(Configuration configuration) {
+      super.configure(configuration);
+      fn.configure(configuration);
+    }
+
+    @Override
+    public float scaleFactor() {
+      return fn.scaleFactor();
+    }
+
+    @Override
+    public void initialize() {
+      fn.initialize();
+      instrumentation.initialize(getConfiguration());
+    }
+
+    @Override
+    public void process(S input, Emitter<T> emitter) {
+      CountingEmitter<T> counting = countingEmitter(emitter);
+      if (instrumentation.input()) {
+        counting.downstreamNanos = 0;
+        counting.timed = true;
+        long start = System.nanoTime();
+        fn.process(input, counting);
+        instrumentation.sample(System.nanoTime() - start - counting.downstreamNanos);
+        counting.timed = false;
+      } else {
+        fn.process(input, counting);
+      }
+    }
+
+    @Override
+    public void cleanup(Emitter<T> emitter) {
+      fn.cleanup(countingEmitter(emitter));
+      for (Map.Entry<String, Long> counter: instrumentation.counters().entrySet()) {
+        increment(instrumentation.getGroup(), counter.getKey(), counter.getValue());
+      }
+    }
+
+    private CountingEmitter<T> countingEmitter(Emitter<T> emitter) {
+      if (countingEmitter == null || countingEmitter.emitter != emitter) {
+        countingEmitter = new CountingEmitter<T>(emitter, instrumentation);
+      }
+      return countingEmitter;
+    }
+  }
+
+  private static class InstrumentedGroupedDoFn<K, V, T> extends InstrumentedDoFn<Pair<K, Iterable<V>>, T> {
+
+    public InstrumentedGroupedDoFn(DoFn<Pair<K, Iterable<V>>, T> reduceFn, String name) {
+      super(reduceFn, name);
+    }
+
+    @Override
+    public void process(Pair<K, Iterable<V>> input, Emitter<T> emitter) {
+      CountingIterable<V> counted = new CountingIterable<V>(input.second());
+      super.process(Pair.of(input.first(), (Iterable<V>) counted), emitter);
+      instrumentation.groupSize(counted.drain());
+    }
+  }
+
+  /**
+   * Iterable over the values of a group which counts the values read through it, and can read the rest of the values
+   * which weren't read to find the size of the whole group
+   */
+  private static class CountingIterable<V> implements Iterable<V> {
+    private final Iterable<V> values;
+    private CountingIterator last;
+    private long max = 0;
+
+    public CountingIterable(Iterable<V> values) {
+      this.values = values;
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+      if (last != null) {
+        max = Math.max(max, last.count);
+      }
+      last = new CountingIterator(values.iterator());
+      return last;
+    }
+
+    /**
+     * Read the values remaining in the last iterator, or in a new one if none was created
+     * @return the number of values in the group
+     */
+    public long drain() {
+      CountingIterator iterator = last == null ? (CountingIterator) iterator() : last;
+      while (iterator.hasNext()) {
+        iterator.next();
+      }
+      return Math.max(max, iterator.count);
+    }
+
+    private class CountingIterator implements Iterator<V> {
+      private final Iterator<V> iterator;
+      private long count = 0;
+
+      public CountingIterator(Iterator<V> iterator) {
+        this.iterator = iterator;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public V next() {
+        V value = iterator.next();
+        count++;
+        return value;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    }
+  }
+
+  /**
+   * Emitter which counts outputs, and when timing the current input also measures the time spent in later functions
+   */
+  private static class CountingEmitter<T> implements Emitter<T> {
+    private final Emitter<T> emitter;
+    private final Instrumentation instrumentation;
+    private boolean timed = false;
+    private long downstreamNanos = 0;
+
+    public CountingEmitter(Emitter<T> emitter, Instrumentation instrumentation) {
+      this.emitter = emitter;
+      this.instrumentation = instrumentation;
+    }
+
+    @Override
+    public void emit(T value) {
+      instrumentation.output();
+      if (timed) {
+        long start = System.nanoTime();
+        emitter.emit(value);
+        downstreamNanos += System.nanoTime() - start;
+      } else {
+        emitter.emit(value);
+      }
+    }
+
+    @Override
+    public void flush() {
+      emitter.flush();
+    }
+  }
+
+  private static class BatchingDoFn<S, T> extends DoFn<S, T> {
+
+    private final DoFn<List<S>, T> batchFn;
+    private final int batchSize;
+    private final PType<S> inputType;
+    private transient List<S> batch;
+
+    public BatchingDoFn(DoFn<List<S>, T> batchFn, int batchSize, PType<S> inputType) {
+      if (batchSize < 1) {
+        throw new PlanTimeException("Batch size must be positive, was " + batchSize);
+      }
+      this.batchFn = batchFn;
+      this.batchSize = batchSize;
+      this.inputType = inputType;
+    }
+
+    @Override
+    public void setContext(TaskInputOutputContext<?, ?, ?, ?> context) {
+      super.setContext(context);
+      batchFn.setContext(context);
+    }
+
+    @Override
+    public void configure(Configuration configuration) {
+      super.configure(configuration);
+      batchFn.configure(configuration);
+    }
+
+    @Override
+    public void initialize() {
+      batchFn.initialize();
+      if (inputType != null) {
+        inputType.initialize(getConfiguration() == null ? new Configuration() : getConfiguration());
+      }
+      batch = Lists.newArrayListWithCapacity(batchSize);
+    }
+
+    @Override
+    public void process(S input, Emitter<T> emitter) {
+      batch.add(inputType == null ? input : inputType.getDetachedValue(input));
+      if (batch.size() >= batchSize) {
+        flush(emitter);
+      }
+    }
+
+    @Override
+    public void cleanup(Emitter<T> emitter) {
+      if (!batch.isEmpty()) {
+        flush(emitter);
+      }
+      batchFn.cleanup(emitter);
+    }
+
+    private void flush(Emitter<T> emitter) {
+      List<S> full = batch;
+      batch = Lists.newArrayListWithCapacity(batchSize);
+      batchFn.process(full, emitter);
+    }
+  }
+
+  private static class ParallelDoFn<S, T> extends DoFn<S, T> {
+
+    private final DoFn<S, T> fn;
+    private final int threads;
+    private final int queueDepth;
+    private final PType<S> inputType;
+    private final PType<T> outputType;
+    private final boolean ordered;
+    private transient List<DoFn<S, T>> workerFns;
+    private transient ThreadLocal<DoFn<S, T>> workerFn;
+    private transient WorkerContext workerContext;
+    private transient ExecutorService executor;
+    private transient CompletionService<List<T>> completed;
+    private transient Deque<Future<List<T>>> inFlight;
+    private transient int pending;
+
+    public ParallelDoFn(DoFn<S, T> fn, int threads, int queueDepth, PType<S> inputType, PType<T> outputType,
+            boolean ordered) {
+      if (threads < 1 || queueDepth < threads) {
+        throw new PlanTimeException("Need at least one thread and a queue depth of at least the number of threads, got "
+                + threads + " threads and queue depth " + queueDepth);
+      }
+      this.fn = fn;
+      this.threads = threads;
+      this.queueDepth = queueDepth;
+      this.inputType = inputType;
+      this.outputType = outputType;
+      this.ordered = ordered;
+    }
+
+    @Override
+    public void configure(Configuration configuration) {
+      super.configure(configuration);
+      fn.configure(configuration);
+    }
+
+    @Override
+    public float scaleFactor() {
+      return fn.scaleFactor();
+    }
+
+    @Override
+    public void initialize() {
+      Configuration conf = getConfiguration() == null ? new Configuration() : getConfiguration();
+      if (inputType != null) {
+        inputType.initialize(conf);
+      }
+      if (outputType != null) {
+        outputType.initialize(conf);
+      }
+      workerContext = getContext() == null ? null : new WorkerContext(getContext());
+      workerFns = Lists.newArrayList();
+      final Queue<DoFn<S, T>> idle = new ConcurrentLinkedQueue<DoFn<S, T>>();
+      for (int i = 0; i < threads; i++) {
+        DoFn<S, T> copy = copyOf(fn);
+        if (workerContext != null) {
+          copy.setContext(workerContext.proxy());
+        } else {
+          copy.setConfiguration(conf);
+        }
+        copy.initialize();
+        workerFns.add(copy);
+        idle.add(copy);
+      }
+      workerFn = new ThreadLocal<DoFn<S, T>>() {
+        @Override
+        protected DoFn<S, T> initialValue() {
+          return idle.remove();
+        }
+      };
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int n = 0;
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "crunch-lib-parallel-" + n++);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      completed = new ExecutorCompletionService<List<T>>(executor);
+      inFlight = Lists.newLinkedList();
+      pending = 0;
+    }
+
+    @Override
+    public void process(S input, Emitter<T> emitter) {
+      final S value = inputType == null ? input : inputType.getDetachedValue(input);
+      while (pending >= queueDepth) {
+        emitNext(emitter);
+      }
+      Callable<List<T>> task = new Callable<List<T>>() {
+        @Override
+        public List<T> call() {
+          CollectingEmitter<T> output = new CollectingEmitter<T>(outputType);
+          workerFn.get().process(value, output);
+          return output.values;
+        }
+      };
+      if (ordered) {
+        inFlight.add(executor.submit(task));
+      } else {
+        // completed futures are taken from the completion service, so only their number needs tracking
+        completed.submit(task);
+      }
+      pending++;
+    }
+
+    @Override
+    public void cleanup(Emitter<T> emitter) {
+      while (pending > 0) {
+        emitNext(emitter);
+      }
+      executor.shutdown();
+      for (DoFn<S, T> copy: workerFns) {
+        CollectingEmitter<T> output = new CollectingEmitter<T>(outputType);
+        copy.cleanup(output);
+        for (T value: output.values) {
+          emitter.emit(value);
+        }
+      }
+      if (workerContext != null) {
+        workerContext.flush();
+      }
+    }
+
+    private void emitNext(Emitter<T> emitter) {
+      try {
+        Future<List<T>> next = ordered ? inFlight.removeFirst() : completed.take();
+        pending--;
+        for (T value: next.get()) {
+          emitter.emit(value);
+        }
+        if (workerContext != null) {
+          workerContext.flush();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CrunchRuntimeException(e);
+      } catch (ExecutionException e) {
+        executor.shutdownNow();
+        throw new CrunchRuntimeException("Parallel DoFn failed", e);
+      }
+    }
+
+    @SuppressWarnings("unchecked") // a deserialized copy has the same class as the original
+    private static <F extends Serializable> F copyOf(F original) {
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(original);
+        out.close();
+        return (F) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+      } catch (IOException e) {
+        throw new CrunchRuntimeException("Could not copy " + original, e);
+      } catch (ClassNotFoundException e) {
+        throw new CrunchRuntimeException("Could not copy " + original, e);
+      }
+    }
+  }
+
+  private static class CollectingEmitter<T> implements Emitter<T> {
+    private final PType<T> type;
+    private final List<T> values = Lists.newArrayList();
+
+    public CollectingEmitter(PType<T> type) {
+      this.type = type;
+    }
+
+    @Override
+    public void emit(T value) {
+      values.add(type == null ? value : type.getDetachedValue(value));
+    }
+
+    @Override
+    public void flush() {
+    }
+  }
+
+  /**
+   * Task context handed to the copies of a DoFn which ParallelDoFn runs on worker threads. The counters of a task
+   * context are not thread-safe, so counter increments are collected in counters of its own, which the task thread adds
+   * to the real ones in flush(). Everything else is delegated to the task's context.
+   */
+  static class WorkerContext implements InvocationHandler {
+    private final TaskInputOutputContext<?, ?, ?, ?> context;
+    private final ConcurrentMap<Object, GenericCounter> counters = new ConcurrentHashMap<Object, GenericCounter>();
+
+    public WorkerContext(TaskInputOutputContext<?, ?, ?, ?> context) {
+      this.context = context;
+    }
+
+    public TaskInputOutputContext<?, ?, ?, ?> proxy() {
+      return (TaskInputOutputContext<?, ?, ?, ?>) Proxy.newProxyInstance(TaskInputOutputContext.class.getClassLoader(),
+              new Class<?>[] { TaskInputOutputContext.class }, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getName().equals("getCounter")) {
+        // counters are keyed by their enum, or by a list of their group and name
+        Object key = args.length == 1 ? args[0] : Arrays.asList(args);
+        GenericCounter counter = counters.get(key);
+        if (counter == null) {
+          counters.putIfAbsent(key, new GenericCounter(key.toString(), key.toString()));
+          counter = counters.get(key);
+        }
+        return counter;
+      }
+      try {
+        return method.invoke(context, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+
+    public void flush() {
+      for (Map.Entry<Object, GenericCounter> entry: counters.entrySet()) {
+        long value;
+        GenericCounter counter = entry.getValue();
+        synchronized (counter) {
+          value = counter.getValue();
+          counter.setValue(0);
+        }
+        if (value != 0) {
+          if (entry.getKey() instanceof Enum) {
+            context.getCounter((Enum<?>) entry.getKey()).increment(value);
+          } else {
+            List<?> groupAndName = (List<?>) entry.getKey();
+            context.getCounter((String) groupAndName.get(0), (String) groupAndName.get(1)).increment(value);
+          }
+        }
+      }
+    }
+  }
+
+  private static class PooledDetachingDoFn<K, V extends SpecificRecord, T> extends DetachingDoFn<K, V, T> {
+    private final int maxPooledRecords;
+    private transient RecordPool<V> pool;
+
+    public PooledDetachingDoFn(DoFn<Pair<K, Iterable<V>>, T> reduceFn, AvroType<V> valueType, int maxPooledRecords) {
+      super(reduceFn, valueType);
+      this.maxPooledRecords = maxPooledRecords;
+    }
+
+    @Override
+    public void initialize() {
+      super.initialize();
+      pool = runsInMemory(getContext()) ? null
+              : new RecordPool<V>(((AvroType<V>) valueType).getSchema(), maxPooledRecords);
+    }
+
+    @Override
+    public void process(Pair<K, Iterable<V>> input, Emitter<T> emitter) {
+      if (pool != null) {
+        pool.recycle();
+      }
+      super.process(input, emitter);
+    }
+
+    @Override
+    public Iterable<V> detachIterable(Iterable<V> iterable, PType<V> pType) {
+      return pool == null ? super.detachIterable(iterable, pType) : Iterables.transform(iterable, pool);
+    }
+  }
+
+  /**
+   * Pool of up to maxRecords Avro records which values are deep-copied into, handing out the same records again after
+   * each recycle. Values beyond the first maxRecords after a recycle are copied into new records which aren't kept.
+   */
+  static class RecordPool<V> implements Function<V, V> {
+    private final Schema schema;
+    private final int maxRecords;
+    private final List<V> records = Lists.newArrayList();
+    private int next = 0;
+
+    public RecordPool(Schema schema, int maxRecords) {
+      this.schema = schema;
+      this.maxRecords = maxRecords;
+    }
+
+    public void recycle() {
+      next = 0;
+    }
+
+    int size() {
+      return records.size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // copyInto returns an object of the type described by schema, which is V's
+    public V apply(V value) {
+      if (next < records.size()) {
+        V copy = (V) copyInto(records.get(next), value, schema);
+        records.set(next++, copy);
+        return copy;
+      }
+      V copy = (V) copyInto(null, value, schema);
+      if (records.size() < maxRecords) {
+        records.add(copy);
+        next++;
+      }
+      return copy;
+    }
+
+    private static Object copyInto(Object target, Object value, Schema schema) {
+      if (value == null) {
+        return null;
+      }
+      switch (schema.getType()) {
+        case RECORD:
+          IndexedRecord source = (IndexedRecord) value;
+          IndexedRecord record = (IndexedRecord) SpecificData.get().newRecord(target, schema);
+          for (Schema.Field field: schema.getFields()) {
+            int pos = field.pos();
+            record.put(pos, copyInto(record.get(pos), source.get(pos), field.schema()));
+          }
+          return record;
+        case UNION:
+          return copyInto(target, value, schema.getTypes().get(SpecificData.get().resolveUnion(schema, value)));
+        case STRING:
+          if (value instanceof Utf8) {
+            Utf8 utf8 = (Utf8) value;
+            Utf8 copy = target instanceof Utf8 ? (Utf8) target : new Utf8();
+            copy.setByteLength(utf8.getByteLength());
+            System.arraycopy(utf8.getBytes(), 0, copy.getBytes(), 0, utf8.getByteLength());
+            return copy;
+          }
+          return value.toString();
+        case BYTES:
+          ByteBuffer bytes = (ByteBuffer) value;
+          ByteBuffer buffer = target instanceof ByteBuffer && ((ByteBuffer) target).capacity() >= bytes.remaining()
+                  ? (ByteBuffer) target : ByteBuffer.allocate(bytes.remaining());
+          buffer.clear();
+          buffer.put(bytes.duplicate());
+          buffer.flip();
+          return buffer;
+        case ARRAY:
+        case MAP:
+        case FIXED:
+          return SpecificData.get().deepCopy(schema, value);
+        default:
+          return value;
+      }
+    }
+  }
+
+  private static class SpillingDetachingDoFn<K, V, T> extends DetachingDoFn<K, V, T> {
+    private final SpillSerializer<V> serializer;
+    private final int maxValuesInMemory;
+    private transient SpillableIterable<V> group;
+
+    public SpillingDetachingDoFn(DoFn<Pair<K, Iterable<V>>, T> reduceFn, PType<V> valueType,
+            SpillSerializer<V> serializer, int maxValuesInMemory) {
+      super(reduceFn, valueType);
+      if (maxValuesInMemory < 0) {
+        throw new PlanTimeException("maxValuesInMemory must not be negative, was " + maxValuesInMemory);
+      }
+      this.serializer = serializer;
+      this.maxValuesInMemory = maxValuesInMemory;
+    }
+
+    @Override
+    public void initialize() {
+      super.initialize();
+      serializer.initialize(getConfiguration() == null ? new Configuration() : getConfiguration());
+      group = new SpillableIterable<V>(valueType, serializer, maxValuesInMemory);
+    }
+
+    @Override
+    public void process(Pair<K, Iterable<V>> input, Emitter<T> emitter) {
+      group.reset(input.second());
+      reduceFn.process(Pair.of(input.first(), (Iterable<V>) group), emitter);
+    }
+
+    @Override
+    public void cleanup(Emitter<T> emitter) {
+      super.cleanup(emitter);
+      group.close();
+    }
+  }
+
+  /**
+   * Re-iterable buffer over a single group of values, holding the first values in memory and spilling the rest to a
+   * local temporary file which is reused for every group processed by the task. Iterators over spilled values which
+   * are not read to the end are closed when the next group is buffered, or when the task ends.
+   */
+  static class SpillableIterable<V> implements Iterable<V> {
+    private final PType<V> valueType;
+    private final SpillSerializer<V> serializer;
+    private final int maxValuesInMemory;
+    private final List<V> inMemory = Lists.newArrayList();
+    private final List<DataInputStream> openStreams = Lists.newArrayList();
+    private File spillFile;
+    private long spilled;
+
+    public SpillableIterable(PType<V> valueType, SpillSerializer<V> serializer, int maxValuesInMemory) {
+      this.valueType = valueType;
+      this.serializer = serializer;
+      this.maxValuesInMemory = maxValuesInMemory;
+    }
+
+    public void reset(Iterable<V> values) {
+      closeStreams();
+      inMemory.clear();
+      spilled = 0;
+      DataOutputStream out = null;
+      try {
+        for (V value: values) {
+          if (inMemory.size() < maxValuesInMemory) {
+            inMemory.add(valueType.getDetachedValue(value));
+          } else {
+            if (out == null) {
+              if (spillFile == null) {
+                spillFile = File.createTempFile("crunch-lib-spill", ".bin");
+                spillFile.deleteOnExit();
+              }
+              out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            }
+            serializer.write(value, out);
+            spilled++;
+          }
+        }
+        if (out != null) {
+          out.close();
+          out = null;
+        }
+      } catch (IOException e) {
+        throw new CrunchRuntimeException("Could not spill values to " + spillFile, e);
+      } finally {
+        Closeables.closeQuietly(out);
+      }
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+      if (spilled == 0) {
+        return Collections.unmodifiableList(inMemory).iterator();
+      }
+      return Iterators.concat(Collections.unmodifiableList(inMemory).iterator(), readSpilled());
+    }
+
+    private Iterator<V> readSpilled() {
+      final DataInputStream in;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+      } catch (IOException e) {
+        throw new CrunchRuntimeException("Could not read spilled values from " + spillFile, e);
+      }
+      openStreams.add(in);
+      final long count = spilled;
+      return new AbstractIterator<V>() {
+        private long read = 0;
+
+        @Override
+        protected V computeNext() {
+          try {
+            if (read++ < count) {
+              return serializer.read(in);
+            }
+            in.close();
+            openStreams.remove(in);
+            return endOfData();
+          } catch (IOException e) {
+            throw new CrunchRuntimeException("Could not read spilled values from " + spillFile, e);
+          }
+        }
+      };
+    }
+
+    int openStreams() {
+      return openStreams.size();
+    }
+
+    private void closeStreams() {
+      for (DataInputStream in: openStreams) {
+        Closeables.closeQuietly(in);
+      }
+      openStreams.clear();
+    }
+
+    public void close() {
+      closeStreams();
+      inMemory.clear();
+      if (spillFile != null) {
+        spillFile.delete();
+        spillFile = null;
+      }
+    }
+  }
+
+  /**
+   * Open-addressing hash table from keys to a primitive long and double accumulator each, with linear probing. The
+   * table holds at most maxKeys non-null keys in at least twice as many slots, and is only ever cleared as a whole.
+   */
+  static class PrimitiveHashTable<K> {
+    private final int maxKeys;
+    private final int mask;
+    private final Object[] keys;
+    final long[] longs;
+    final double[] doubles;
+    private int size = 0;
+
+    public PrimitiveHashTable(int maxKeys, boolean withDoubles) {
+      int capacity = Integer.highestOneBit(Math.max(1, maxKeys) * 2 - 1) << 1;
+      this.maxKeys = maxKeys;
+      this.mask = capacity - 1;
+      this.keys = new Object[capacity];
+      this.longs = new long[capacity];
+      this.doubles = withDoubles ? new double[capacity] : null;
+    }
+
+    /**
+     * @return the slot of the key, or the complement of the free slot to insert it at if it isn't in the table
+     */
+    public int find(K key) {
+      int h = key.hashCode() * 0x9E3779B9;
+      for (int slot = (h ^ (h >>> 16)) & mask; ; slot = (slot + 1) & mask) {
+        if (keys[slot] == null) {
+          return ~slot;
+        } else if (keys[slot].equals(key)) {
+          return slot;
+        }
+      }
+    }
+
+    public int capacity() {
+      return keys.length;
+    }
+
+    /**
+     * @return the key in a slot, or null if the slot is free
+     */
+    @SuppressWarnings("unchecked")
+    public K key(int slot) {
+      // only keys of type K are ever inserted
+      return (K) keys[slot];
+    }
+
+    public int insert(int freeSlot, K key) {
+      int slot = ~freeSlot;
+      keys[slot] = key;
+      size++;
+      return slot;
+    }
+
+    public boolean isFull() {
+      return size >= maxKeys;
+    }
+
+    public void clear() {
+      Arrays.fill(keys, null);
+      Arrays.fill(longs, 0);
+      if (doubles != null) {
+        Arrays.fill(doubles, 0);
+      }
+      size = 0;
+    }
+  }
+
+  private static class CountInMapperFn<S> extends DoFn<S, Pair<S, Long>> {
+    private final PType<S> type;
+    private final int maxKeys;
+    private transient PrimitiveHashTable<S> table;
+
+    public CountInMapperFn(PType<S> type, int maxKeys) {
+      this.type = type;
+      this.maxKeys = maxKeys;
+    }
+
+    @Override
+    public void initialize() {
+      type.initialize(getConfiguration() == null ? new Configuration() : getConfiguration());
+      table = maxKeys > 0 ? new PrimitiveHashTable<S>(maxKeys, false) : null;
+    }
+
+    @Override
+    public void process(S input, Emitter<Pair<S, Long>> emitter) {
+      if (table == null || input == null) {
+        emitter.emit(Pair.of(input, 1L));
+        return;
+      }
+      int slot = table.find(input);
+      if (slot < 0) {
+        if (table.isFull()) {
+          cleanup(emitter);
+          slot = table.find(input);
+        }
+        slot = table.insert(slot, type.getDetachedValue(input));
+      }
+      table.longs[slot]++;
+    }
+
+    @Override
+    public void cleanup(Emitter<Pair<S, Long>> emitter) {
+      if (table != null) {
+        for (int slot = 0; slot < table.capacity(); slot++) {
+          S key = table.key(slot);
+          if (key != null) {
+            emitter.emit(Pair.of(key, table.longs[slot]));
+          }
+        }
+        table.clear();
+      }
+    }
+  }
+
+  private static class SumAndCountInMapperFn<K, V extends Number> extends DoFn<Pair<K, V>, Pair<K, Pair<Double, Long>>> {
+    private final PType<K> keyType;
+    private final int maxKeys;
+    private transient PrimitiveHashTable<K> table;
+
+    public SumAndCountInMapperFn(PType<K> keyType, int maxKeys) {
+      this.keyType = keyType;
+      this.maxKeys = maxKeys;
+    }
+
+    @Override
+    public void initialize() {
+      keyType.initialize(getConfiguration() == null ? new Configuration() : getConfiguration());
+      table = maxKeys > 0 ? new PrimitiveHashTable<K>(maxKeys, true) : null;
+    }
+
+    @Override
+    public void process(Pair<K, V> input, Emitter<Pair<K, Pair<Double, Long>>> emitter) {
+      if (table == null || input.first() == null) {
+        emitter.emit(Pair.of(input.first(), Pair.of(input.second().doubleValue(), 1L)));
+        return;
+      }
+      int slot = table.find(input.first());
+      if (slot < 0) {
+        if (table.isFull()) {
+          cleanup(emitter);
+          slot = table.find(input.first());
+        }
+        slot = table.insert(slot, keyType.getDetachedValue(input.first()));
+      }
+      table.doubles[slot] += input.second().doubleValue();
+      table.longs[slot]++;
+    }
+
+    @Override
+    public void cleanup(Emitter<Pair<K, Pair<Double, Long>>> emitter) {
+      if (table != null) {
+        for (int slot = 0; slot < table.capacity(); slot++) {
+          K key = table.key(slot);
+          if (key != null) {
+            emitter.emit(Pair.of(key, Pair.of(table.doubles[slot], table.longs[slot])));
+          }
+        }
+        table.clear();
+      }
+    }
+  }
+
+  /**
+   * DoFn returned by withLookup(...), which has to be run with the ParallelDoOptions from getParallelDoOptions()
+   * @param <S> Input type
+   * @param <K> Key type of the table
+   * @param <V> Value type of the table
+   * @param <T> Output type of DoFn
+   */
+  public static class LookupDoFn<S, K, V, T> extends DoFn<S, T> {
+    private final DoFn<Pair<S, V>, T> fn;
+    private final MapFn<S, K> keyFn;
+    private final ReadableData<Pair<K, V>> data;
+    private final MappedTable<K, V> table;
+
+    LookupDoFn(DoFn<Pair<S, V>, T> fn, MapFn<S, K> keyFn, ReadableData<Pair<K, V>> data, MappedTable<K, V> table) {
+      this.fn = fn;
+      this.keyFn = keyFn;
+      this.data = data;
+      this.table = table;
+    }
+
+    /**
+     * @return options for the parallelDo running this DoFn, making it depend on the materialized table
+     */
+    public ParallelDoOptions getParallelDoOptions() {
+      return ParallelDoOptions.builder().sourceTargets(data.getSourceTargets()).build();
+    }
+
+    @Override
+    public void setContext(TaskInputOutputContext<?, ?, ?, ?> context) {
+      super.setContext(context);
+      fn.setContext(context);
+      keyFn.setContext(context);
+    }
+
+    @Override
+    public void setConfiguration(Configuration configuration) {
+      super.setConfiguration(configuration);
+      fn.setConfiguration(configuration);
+      keyFn.setConfiguration(configuration);
+    }
+
+    @Override
+    public void configure(Configuration configuration) {
+      super.configure(configuration);
+      data.configure(configuration);
+      fn.configure(configuration);
+      keyFn.configure(configuration);
+    }
+
+    @Override
+    public void initialize() {
+      Configuration conf = getConfiguration() == null ? new Configuration() : getConfiguration();
+      table.initialize(data, getContext(), conf);
+      keyFn.initialize();
+      fn.initialize();
+    }
+
+    @Override
+    public void process(S input, Emitter<T> emitter) {
+      fn.process(Pair.of(input, table.get(keyFn.map(input))), emitter);
+    }
+
+    @Override
+    public void cleanup(Emitter<T> emitter) {
+      fn.cleanup(emitter);
+      table.close();
+    }
+  }
+
+  /**
+   * Open-addressing hash table of serialized keys and values in a local file, which is memory-mapped and read in place.
+   * The file holds a header (a magic number and the number of slots), one 8-byte slot per power of two at least twice
+   * the number of entries, holding the position of an entry or 0 if empty, and then the entries themselves: key length,
+   * key bytes, value length, value bytes. The file is mapped in segments of 2^segmentBits bytes and entries are padded
+   * so they never cross the end of a segment.
+   */
+  static class MappedTable<K, V> implements Serializable {
+    private static final long MAGIC = 0x43524c4b55503031L;
+    private static final int HEADER_BYTES = 16;
+
+    private final String id;
+    private final SpillSerializer<K> keySerializer;
+    private final SpillSerializer<V> valueSerializer;
+    private final int segmentBits;
+    private transient DataOutputBuffer keyBuffer;
+    private transient ByteBuffer[] segments;
+    private transient ByteBuffer[] views;
+    private transient ByteBufferInputStream value;
+    private transient DataInputStream valueIn;
+    private transient long slotMask;
+
+    public MappedTable(PType<K> keyType, PType<V> valueType) {
+      this(keyType, valueType, 30);
+    }
+
+    MappedTable(PType<K> keyType, PType<V> valueType, int segmentBits) {
+      this.id = UUID.randomUUID().toString();
+      this.keySerializer = spillSerializer(keyType);
+      this.valueSerializer = spillSerializer(valueType);
+      this.segmentBits = segmentBits;
+    }
+
+    /**
+     * Maps the file holding the table for this node, writing it from the table's data if no other task has yet
+     */
+    public void initialize(ReadableData<Pair<K, V>> data, TaskInputOutputContext<?, ?, ?, ?> context,
+            Configuration conf) {
+      File dir = directory(conf);
+      File file = new File(dir, id + ".lookup");
+      try {
+        for (int attempt = 0; ; attempt++) {
+          if (!file.exists()) {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+              throw new IOException("Could not create " + dir);
+            }
+            File tmp = File.createTempFile(id, ".tmp", dir);
+            tmp.deleteOnExit();
+            initialize(conf);
+            // two passes over the data, one to size the slots and one to write the entries
+            write(data.read(context), data.read(context), tmp);
+            if (tmp.renameTo(file)) {
+              file.deleteOnExit();
+            } else {
+              tmp.delete();
+            }
+          }
+          try {
+            open(file, conf);
+            return;
+          } catch (FileNotFoundException e) {
+            // removed by the task that wrote it in the meantime
+            if (attempt > 0) {
+              throw e;
+            }
+          }
+        }
+      } catch (IOException e) {
+        throw new CrunchRuntimeException("Could not set up lookup table in " + file, e);
+      }
+    }
+
+    /**
+     * The directory to write the table to: crunch.lib.lookup.dir, or else within the application's local directories
+     * on YARN (which are removed along with the application, even if a task is killed before removing its table) or
+     * hadoop.tmp.dir
+     */
+    static File directory(Configuration conf) {
+      String dir = conf.get("crunch.lib.lookup.dir");
+      if (dir != null) {
+        return new File(dir);
+      }
+      String localDirs = System.getenv("LOCAL_DIRS");
+      if (localDirs != null && !localDirs.isEmpty()) {
+        // every container of the application on a node gets the same list, so they all pick the same directory
+        return new File(localDirs.split(",")[0], "crunch-lib-lookup");
+      }
+      return new File(conf.get("hadoop.tmp.dir", System.getProperty("java.io.tmpdir")), "crunch-lib-lookup");
+    }
+
+    void initialize(Configuration conf) {
+      keySerializer.initialize(conf);
+      valueSerializer.initialize(conf);
+      keyBuffer = new DataOutputBuffer();
+    }
+
+    void write(Iterable<Pair<K, V>> sizingPass, Iterable<Pair<K, V>> entries, File file) throws IOException {
+      long count = 0;
+      for (Pair<K, V> ignored: sizingPass) {
+        count++;
+      }
+      long numSlots = 2;
+      while (numSlots < 2 * count) {
+        numSlots <<= 1;
+      }
+      long dataStart = HEADER_BYTES + 8 * numSlots;
+      long segmentSize = 1L << segmentBits;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      DataOutputStream out = null;
+      try {
+        raf.setLength(dataStart);
+        raf.writeLong(MAGIC);
+        raf.writeLong(numSlots);
+        ByteBuffer[] slots = map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, dataStart);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        DataOutputBuffer valueBuffer = new DataOutputBuffer();
+        long position = dataStart;
+        for (Pair<K, V> entry: entries) {
+          keyBuffer.reset();
+          keySerializer.write(entry.first(), keyBuffer);
+          valueBuffer.reset();
+          valueSerializer.write(entry.second(), valueBuffer);
+          long size = 8 + keyBuffer.getLength() + valueBuffer.getLength();
+          if (size > segmentSize) {
+            throw new IOException("Entry of " + size + " bytes does not fit into a segment of " + segmentSize);
+          }
+          if (position >> segmentBits != (position + size - 1) >> segmentBits) {
+            long next = ((position >> segmentBits) + 1) << segmentBits;
+            for (; position < next; position++) {
+              out.write(0);
+            }
+          }
+          out.writeInt(keyBuffer.getLength());
+          out.write(keyBuffer.getData(), 0, keyBuffer.getLength());
+          out.writeInt(valueBuffer.getLength());
+          out.write(valueBuffer.getData(), 0, valueBuffer.getLength());
+
+          long slot = hash() & (numSlots - 1);
+          while (getLong(slots, HEADER_BYTES + 8 * slot) != 0) {
+            slot = (slot + 1) & (numSlots - 1);
+          }
+          putLong(slots, HEADER_BYTES + 8 * slot, position);
+          position += size;
+        }
+      } finally {
+        Closeables.closeQuietly(out);
+        raf.close();
+      }
+    }
+
+    void open(File file, Configuration conf) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        if (raf.readLong() != MAGIC) {
+          throw new IOException("Not a lookup table: " + file);
+        }
+        slotMask = raf.readLong() - 1;
+        segments = map(raf.getChannel(), FileChannel.MapMode.READ_ONLY, raf.length());
+      } finally {
+        raf.close();
+      }
+      // values are read in place through a view of their segment, limited to the value
+      views = new ByteBuffer[segments.length];
+      for (int i = 0; i < segments.length; i++) {
+        views[i] = segments[i].duplicate();
+      }
+      value = new ByteBufferInputStream();
+      valueIn = new DataInputStream(value);
+      if (keyBuffer == null) {
+        initialize(conf);
+      }
+    }
+
+    public V get(K key) {
+      keyBuffer.reset();
+      try {
+        keySerializer.write(key, keyBuffer);
+        for (long slot = hash() & slotMask; ; slot = (slot + 1) & slotMask) {
+          long position = getLong(segments, HEADER_BYTES + 8 * slot);
+          if (position == 0) {
+            return null;
+          }
+          ByteBuffer segment = segments[(int) (position >> segmentBits)];
+          int offset = (int) (position & ((1L << segmentBits) - 1));
+          if (keyEquals(segment, offset)) {
+            offset += 4 + keyBuffer.getLength();
+            ByteBuffer view = views[(int) (position >> segmentBits)];
+            view.clear();
+            view.position(offset + 4);
+            view.limit(offset + 4 + segment.getInt(offset));
+            value.buffer = view;
+            return valueSerializer.read(valueIn);
+          }
+        }
+      } catch (IOException e) {
+        throw new CrunchRuntimeException(e);
+      }
+    }
+
+    public void close() {
+      // the mapping is released when the buffers are garbage collected
+      segments = null;
+      views = null;
+    }
+
+    /**
+     * FNV-1a hash of the serialized key with a final mix, which unlike a Guava Hasher allocates nothing per lookup
+     */
+    private long hash() {
+      byte[] key = keyBuffer.getData();
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0; i < keyBuffer.getLength(); i++) {
+        h = (h ^ (key[i] & 0xff)) * 0x100000001b3L;
+      }
+      return Similarity.hash(h, 0);
+    }
+
+    private boolean keyEquals(ByteBuffer segment, int offset) {
+      int length = keyBuffer.getLength();
+      if (segment.getInt(offset) != length) {
+        return false;
+      }
+      byte[] key = keyBuffer.getData();
+      for (int i = 0; i < length; i++) {
+        if (segment.get(offset + 4 + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private ByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long length) throws IOException {
+      long segmentSize = 1L << segmentBits;
+      ByteBuffer[] mapped = new ByteBuffer[(int) ((length + segmentSize - 1) >> segmentBits)];
+      for (int i = 0; i < mapped.length; i++) {
+        long start = i * segmentSize;
+        mapped[i] = channel.map(mode, start, Math.min(segmentSize, length - start));
+      }
+      return mapped;
+    }
+
+    private long getLong(ByteBuffer[] buffers, long position) {
+      return buffers[(int) (position >> segmentBits)].getLong((int) (position & ((1L << segmentBits) - 1)));
+    }
+
+    private void putLong(ByteBuffer[] buffers, long position, long value) {
+      buffers[(int) (position >> segmentBits)].putLong((int) (position & ((1L << segmentBits) - 1)), value);
+    }
+  }
+
+  /**
+   * InputStream over the remaining bytes of a ByteBuffer, which can be pointed at another buffer for each read
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private ByteBuffer buffer;
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int read = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, read);
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  static <V> SpillSerializer<V> spillSerializer(PType<V> valueType) {
+    if (valueType instanceof AvroType) {
+      return new AvroSpillSerializer<V>((AvroType<V>) valueType);
+    } else if (valueType instanceof WritableType) {
+      return new WritableSpillSerializer<V>((WritableType<V, ?>) valueType);
+    }
+    throw new PlanTimeException("Cannot spill values of unsupported PType " + valueType);
+  }
+
+  /**
+   * Writes and reads single values to and from a stream in the serialized form of their PType
+   */
+  static abstract class SpillSerializer<V> implements Serializable {
+    public abstract void initialize(Configuration conf);
+    public abstract void write(V value, DataOutputStream out) throws IOException;
+    public abstract V read(DataInputStream in) throws IOException;
+  }
+
+  private static class AvroSpillSerializer<V> extends SpillSerializer<V> {
+    private final AvroType<V> avroType;
+    private transient DatumWriter<Object> writer;
+    private transient DatumReader<Object> reader;
+    private transient BinaryEncoder encoder;
+    private transient BinaryDecoder decoder;
+
+    public AvroSpillSerializer(AvroType<V> avroType) {
+      this.avroType = avroType;
+    }
+
+    @Override
+    public void initialize(Configuration conf) {
+      avroType.initialize(conf);
+      AvroMode mode = AvroMode.fromType(avroType);
+      writer = mode.getWriter(avroType.getSchema());
+      reader = mode.getReader(avroType.getSchema());
+    }
+
+    @Override
+    public void write(V value, DataOutputStream out) throws IOException {
+      encoder = EncoderFactory.get().directBinaryEncoder(out, encoder);
+      writer.write(avroType.getOutputMapFn().map(value), encoder);
+      encoder.flush();
+    }
+
+    @Override
+    public V read(DataInputStream in) throws IOException {
+      decoder = DecoderFactory.get().directBinaryDecoder(in, decoder);
+      return avroType.getInputMapFn().map(reader.read(null, decoder));
+    }
+  }
+
+  private static class WritableSpillSerializer<V> extends SpillSerializer<V> {
+    private final WritableType<V, ?> writableType;
+    private transient Configuration conf;
+
+    public WritableSpillSerializer(WritableType<V, ?> writableType) {
+      this.writableType = writableType;
+    }
+
+    @Override
+    public void initialize(Configuration conf) {
+      this.conf = conf;
+      writableType.initialize(conf);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // the output MapFn of a WritableType<V, ?> is raw, but maps V to a Writable
+    public void write(V value, DataOutputStream out) throws IOException {
+      ((Writable) writableType.getOutputMapFn().map(value)).write(out);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // the input MapFn of a WritableType<V, ?> maps its serialization class to V
+    public V read(DataInputStream in) throws IOException {
+      Writable writable = ReflectionUtils.newInstance(writableType.getSerializationClass(), conf);
+      writable.readFields(in);
+      return (V) writableType.getInputMapFn().map(writable);
+    }
+  }
 }
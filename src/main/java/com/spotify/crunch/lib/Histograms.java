@@ -0,0 +1,667 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.crunch.Aggregator;
+import org.apache.crunch.CrunchRuntimeException;
+import org.apache.crunch.DoFn;
+import org.apache.crunch.Emitter;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.MapFn;
+import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
+import org.apache.crunch.types.PType;
+import org.apache.crunch.types.PTypeFamily;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Histograms of numeric values per key, which are cheaper to compute than exact percentiles and can be merged
+ */
+public class Histograms {
+
+  /**
+   * Build a histogram of the values of each key in a numerically-valued table, with the given bucket layout.
+   *
+   * Partial histograms are built map-side for up to 10000 keys at a time and merged in a combiner and reducer, so only
+   * about one histogram per key and map task is shuffled. Histograms built with the same layout, such as those of
+   * different days, can be merged with merge, and percentile estimates can be read from them with percentiles.
+   *
+   * @param table numerically-valued PTable
+   * @param layout Bucket layout of the histograms
+   * @param <K> Key type of the table
+   * @param <V> Value type of the table (must extend java.lang.Number)
+   * @return PTable of each key with the histogram of its values
+   */
+  public static <K, V extends Number> PTable<K, Histogram> histograms(PTable<K, V> table, Layout layout) {
+    return histograms(table, layout, 10000);
+  }
+
+  /**
+   * Build a histogram of the values of each key in a numerically-valued table, with the given bucket layout, keeping
+   * at most maxKeysInMemory partial histograms in memory in each map task.
+   *
+   * @param table numerically-valued PTable
+   * @param layout Bucket layout of the histograms
+   * @param maxKeysInMemory Maximum number of keys to keep partial histograms for in memory in each map task, after
+   *                        which the histograms are emitted and started over
+   * @param <K> Key type of the table
+   * @param <V> Value type of the table (must extend java.lang.Number)
+   * @return PTable of each key with the histogram of its values
+   */
+  public static <K, V extends Number> PTable<K, Histogram> histograms(PTable<K, V> table, Layout layout,
+          int maxKeysInMemory) {
+    return histograms(table, layout, maxKeysInMemory, null);
+  }
+
+  /**
+   * Build a histogram of the values of each key in a numerically-valued table like histograms(table, layout,
+   * maxKeysInMemory), grouping with the given options.
+   *
+   * @param table numerically-valued PTable
+   * @param layout Bucket layout of the histograms
+   * @param maxKeysInMemory Maximum number of keys to keep partial histograms for in memory in each map task
+   * @param options GroupingOptions for the shuffle, or null to plan it (see Parallelism)
+   * @param <K> Key type of the table
+   * @param <V> Value type of the table (must extend java.lang.Number)
+   * @return PTable of each key with the histogram of its values
+   */
+  public static <K, V extends Number> PTable<K, Histogram> histograms(PTable<K, V> table, Layout layout,
+          int maxKeysInMemory, GroupingOptions options) {
+    PTypeFamily ptf = table.getTypeFamily();
+    return table
+            .parallelDo("histograms", DoFns.instrumentIfEnabled(table,
+                    new PartialHistogramsFn<K, V>(table.getKeyType(), layout, maxKeysInMemory),
+                    "Histograms.histograms"),
+                    ptf.tableOf(table.getKeyType(), Histogram.pType(ptf)))
+            .groupByKey(Parallelism.plan(table, true, options))
+            .combineValues(new MergeHistograms());
+  }
+
+  /**
+   * Merge all the histograms of each key into one, for example to combine the daily histograms of a week.
+   * All histograms must have the same layout.
+   *
+   * @param histograms PTable of histograms, possibly several per key
+   * @param <K> Key type of the table
+   * @return PTable with a single histogram per key
+   */
+  public static <K> PTable<K, Histogram> merge(PTable<K, Histogram> histograms) {
+    return merge(histograms, null);
+  }
+
+  /**
+   * Merge all the histograms of each key into one like merge(histograms), grouping with the given options.
+   *
+   * @param histograms PTable of histograms, possibly several per key
+   * @param options GroupingOptions for the shuffle, or null to plan it (see Parallelism)
+   * @param <K> Key type of the table
+   * @return PTable with a single histogram per key
+   */
+  public static <K> PTable<K, Histogram> merge(PTable<K, Histogram> histograms, GroupingOptions options) {
+    return histograms.groupByKey(Parallelism.plan(histograms, true, options)).combineValues(new MergeHistograms());
+  }
+
+  /**
+   * @return Aggregator merging histograms with the same layout, for use with combineValues or Rollups
+   */
+  public static Aggregator<Histogram> mergeAggregator() {
+    return new MergeHistograms();
+  }
+
+  /**
+   * Estimate a set of percentiles for each key from its histogram. Each percentile is interpolated linearly within
+   * the bucket holding it, so it is accurate to within the width of that bucket.
+   *
+   * @param histograms PTable of histograms
+   * @param p1 First percentile (in the range 0.0 - 1.0)
+   * @param pn More percentiles (in the range 0.0 - 1.0)
+   * @param <K> Key type of the table
+   * @return PTable of each key with the number of values and the estimated percentiles
+   */
+  public static <K> PTable<K, Percentiles.Result<Double>> percentiles(PTable<K, Histogram> histograms,
+          double p1, double... pn) {
+    final List<Double> percentileList = Lists.newArrayList(p1);
+    for (double p: pn) {
+      percentileList.add(p);
+    }
+    PTypeFamily ptf = histograms.getTypeFamily();
+    return histograms.mapValues(MapFns.instrumentIfEnabled(histograms, new MapFn<Histogram, Percentiles.Result<Double>>() {
+      @Override
+      public Percentiles.Result<Double> map(Histogram input) {
+        List<Pair<Double, Double>> results = Lists.newArrayList();
+        for (double percentile: percentileList) {
+          results.add(Pair.of(percentile, input.percentile(percentile)));
+        }
+        return new Percentiles.Result<Double>(input.getTotalCount(), results);
+      }
+    }, "Histograms.percentiles"), Percentiles.Result.pType(ptf.doubles()));
+  }
+
+  /**
+   * Builds histograms for the keys seen map-side, emitting them when there are too many keys or the task ends
+   */
+  private static class PartialHistogramsFn<K, V extends Number> extends DoFn<Pair<K, V>, Pair<K, Histogram>> {
+    private final PType<K> keyType;
+    private final Layout layout;
+    private final int maxKeysInMemory;
+    private transient Map<K, Histogram> histograms;
+
+    public PartialHistogramsFn(PType<K> keyType, Layout layout, int maxKeysInMemory) {
+      this.keyType = keyType;
+      this.layout = layout;
+      this.maxKeysInMemory = maxKeysInMemory;
+    }
+
+    @Override
+    public void initialize() {
+      keyType.initialize(getConfiguration() == null ? new Configuration() : getConfiguration());
+      histograms = Maps.newHashMap();
+    }
+
+    @Override
+    public void process(Pair<K, V> input, Emitter<Pair<K, Histogram>> emitter) {
+      Histogram histogram = histograms.get(input.first());
+      if (histogram == null) {
+        if (histograms.size() >= maxKeysInMemory) {
+          cleanup(emitter);
+        }
+        histogram = new Histogram(layout);
+        histograms.put(keyType.getDetachedValue(input.first()), histogram);
+      }
+      histogram.add(input.second().doubleValue());
+    }
+
+    @Override
+    public void cleanup(Emitter<Pair<K, Histogram>> emitter) {
+      for (Map.Entry<K, Histogram> histogram: histograms.entrySet()) {
+        emitter.emit(Pair.of(histogram.getKey(), histogram.getValue()));
+      }
+      histograms.clear();
+    }
+  }
+
+  private static class MergeHistograms implements Aggregator<Histogram> {
+    private transient Histogram merged;
+
+    @Override
+    public void initialize(Configuration conf) {
+    }
+
+    @Override
+    public void reset() {
+      merged = null;
+    }
+
+    @Override
+    public void update(Histogram value) {
+      if (merged == null) {
+        merged = new Histogram(value.getLayout());
+      }
+      merged.merge(value);
+    }
+
+    @Override
+    public Iterable<Histogram> results() {
+      return Collections.singletonList(merged);
+    }
+  }
+
+  /**
+   * How values are assigned to the buckets of a Histogram. Layouts are identified by their string form, such as
+   * "linear:0.0:10.0:100", which is stored along with every histogram.
+   */
+  public static abstract class Layout implements Serializable {
+
+    /**
+     * numBuckets buckets of the same width, starting at min. Values outside the range of the buckets are counted in
+     * the first or the last bucket.
+     * @param min Lower bound of the first bucket
+     * @param width Width of each bucket
+     * @param numBuckets Number of buckets
+     * @return Layout
+     */
+    public static Layout linear(double min, double width, int numBuckets) {
+      if (width <= 0 || numBuckets < 1) {
+        throw new PlanTimeException("Linear layout needs a positive width and number of buckets, got " + width +
+                " and " + numBuckets);
+      }
+      return new LinearLayout(min, width, numBuckets);
+    }
+
+    /**
+     * numBuckets buckets which are each base times wider than the previous one, starting at min, so the relative
+     * error of a value is the same across the whole range. Values outside the range of the buckets (including values
+     * of zero or below) are counted in the first or the last bucket.
+     * @param min Lower bound of the first bucket, must be positive
+     * @param base Ratio of the bounds of each bucket, must be greater than 1
+     * @param numBuckets Number of buckets
+     * @return Layout
+     */
+    public static Layout log(double min, double base, int numBuckets) {
+      if (min <= 0 || base <= 1 || numBuckets < 1) {
+        throw new PlanTimeException("Log layout needs a positive min, a base above 1 and a positive number of " +
+                "buckets, got " + min + ", " + base + " and " + numBuckets);
+      }
+      return new LogLayout(min, base, numBuckets);
+    }
+
+    /**
+     * HDR-style buckets for non-negative integer values (such as latencies in microseconds) up to Long.MAX_VALUE.
+     * Values below 2^significantBits get a bucket each, and every power of two above that is split into
+     * 2^significantBits buckets, so the relative error of a value is at most 2^-significantBits. Fractions are rounded
+     * down and negative values are counted in the first bucket.
+     * @param significantBits Number of significant bits of each value to keep (1 - 20)
+     * @return Layout
+     */
+    public static Layout hdr(int significantBits) {
+      if (significantBits < 1 || significantBits > 20) {
+        throw new PlanTimeException("HDR layout needs between 1 and 20 significant bits, got " + significantBits);
+      }
+      return new HdrLayout(significantBits);
+    }
+
+    /**
+     * Parse a layout from its string form
+     * @param spec String form of a layout, as returned by toString()
+     * @return Layout
+     */
+    public static Layout parse(String spec) {
+      String[] parts = spec.split(":");
+      try {
+        if (parts[0].equals("linear") && parts.length == 4) {
+          return linear(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), Integer.parseInt(parts[3]));
+        } else if (parts[0].equals("log") && parts.length == 4) {
+          return log(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), Integer.parseInt(parts[3]));
+        } else if (parts[0].equals("hdr") && parts.length == 2) {
+          return hdr(Integer.parseInt(parts[1]));
+        }
+      } catch (NumberFormatException e) {
+        throw new CrunchRuntimeException("Invalid histogram layout " + spec, e);
+      }
+      throw new CrunchRuntimeException("Invalid histogram layout " + spec);
+    }
+
+    /**
+     * @return Number of buckets
+     */
+    public abstract int numBuckets();
+
+    /**
+     * @param value Value
+     * @return Index of the bucket the value is counted in
+     */
+    public abstract int bucket(double value);
+
+    /**
+     * @param bucket Bucket index
+     * @return Lowest value of the bucket
+     */
+    public abstract double lowerBound(int bucket);
+
+    /**
+     * @param bucket Bucket index
+     * @return Lowest value of the next bucket
+     */
+    public abstract double upperBound(int bucket);
+
+    int clamp(double bucket) {
+      return (int) Math.max(0, Math.min(numBuckets() - 1, Math.floor(bucket)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Layout && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+      return toString().hashCode();
+    }
+  }
+
+  private static class LinearLayout extends Layout {
+    private final double min;
+    private final double width;
+    private final int numBuckets;
+
+    public LinearLayout(double min, double width, int numBuckets) {
+      this.min = min;
+      this.width = width;
+      this.numBuckets = numBuckets;
+    }
+
+    @Override
+    public int numBuckets() {
+      return numBuckets;
+    }
+
+    @Override
+    public int bucket(double value) {
+      return clamp((value - min) / width);
+    }
+
+    @Override
+    public double lowerBound(int bucket) {
+      return min + bucket * width;
+    }
+
+    @Override
+    public double upperBound(int bucket) {
+      return min + (bucket + 1) * width;
+    }
+
+    @Override
+    public String toString() {
+      return "linear:" + min + ":" + width + ":" + numBuckets;
+    }
+  }
+
+  private static class LogLayout extends Layout {
+    private final double min;
+    private final double base;
+    private final int numBuckets;
+
+    public LogLayout(double min, double base, int numBuckets) {
+      this.min = min;
+      this.base = base;
+      this.numBuckets = numBuckets;
+    }
+
+    @Override
+    public int numBuckets() {
+      return numBuckets;
+    }
+
+    @Override
+    public int bucket(double value) {
+      return value <= min ? 0 : clamp(Math.log(value / min) / Math.log(base));
+    }
+
+    @Override
+    public double lowerBound(int bucket) {
+      return min * Math.pow(base, bucket);
+    }
+
+    @Override
+    public double upperBound(int bucket) {
+      return min * Math.pow(base, bucket + 1);
+    }
+
+    @Override
+    public String toString() {
+      return "log:" + min + ":" + base + ":" + numBuckets;
+    }
+  }
+
+  private static class HdrLayout extends Layout {
+    private final int significantBits;
+    private final int subBuckets;
+
+    public HdrLayout(int significantBits) {
+      this.significantBits = significantBits;
+      this.subBuckets = 1 << significantBits;
+    }
+
+    @Override
+    public int numBuckets() {
+      return subBuckets * (64 - significantBits);
+    }
+
+    @Override
+    public int bucket(double value) {
+      long v = value <= 0 ? 0 : (long) value;
+      if (v < subBuckets) {
+        return (int) v;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(v) - significantBits;
+      return subBuckets * (shift + 1) + (int) (v >> shift) - subBuckets;
+    }
+
+    @Override
+    public double lowerBound(int bucket) {
+      if (bucket < subBuckets) {
+        return bucket;
+      }
+      int shift = bucket / subBuckets - 1;
+      return Math.scalb((double) (subBuckets + bucket % subBuckets), shift);
+    }
+
+    @Override
+    public double upperBound(int bucket) {
+      if (bucket < subBuckets) {
+        return bucket + 1;
+      }
+      int shift = bucket / subBuckets - 1;
+      return Math.scalb((double) (subBuckets + bucket % subBuckets + 1), shift);
+    }
+
+    @Override
+    public String toString() {
+      return "hdr:" + significantBits;
+    }
+  }
+
+  /**
+   * Counts of values per bucket of a Layout. Only the range of buckets between the lowest and the highest one counted
+   * is held in memory, and only non-empty buckets are serialized.
+   */
+  public static class Histogram {
+    private final Layout layout;
+    private int offset = 0;
+    private long[] counts = new long[0];
+    private long totalCount = 0;
+
+    public Histogram(Layout layout) {
+      this.layout = layout;
+    }
+
+    public Layout getLayout() {
+      return layout;
+    }
+
+    /**
+     * Count a value once
+     * @param value Value
+     */
+    public void add(double value) {
+      addToBucket(layout.bucket(value), 1);
+    }
+
+    /**
+     * Count a value a number of times
+     * @param value Value
+     * @param count Number of times to count it
+     */
+    public void add(double value, long count) {
+      addToBucket(layout.bucket(value), count);
+    }
+
+    /**
+     * Add the counts of another histogram with the same layout to this one
+     * @param other Histogram to add
+     */
+    public void merge(Histogram other) {
+      if (!layout.equals(other.layout)) {
+        throw new CrunchRuntimeException("Cannot merge histograms with layouts " + layout + " and " + other.layout);
+      }
+      for (int i = 0; i < other.counts.length; i++) {
+        if (other.counts[i] != 0) {
+          addToBucket(other.offset + i, other.counts[i]);
+        }
+      }
+    }
+
+    /**
+     * @param bucket Bucket index
+     * @return Number of values counted in the bucket
+     */
+    public long getCount(int bucket) {
+      return bucket < offset || bucket >= offset + counts.length ? 0 : counts[bucket - offset];
+    }
+
+    /**
+     * @return Number of values counted
+     */
+    public long getTotalCount() {
+      return totalCount;
+    }
+
+    /**
+     * Estimate a percentile by linear interpolation within the bucket holding it
+     * @param percentile Percentile (in the range 0.0 - 1.0)
+     * @return Estimated value of the percentile, or NaN if the histogram is empty
+     */
+    public double percentile(double percentile) {
+      if (totalCount == 0) {
+        return Double.NaN;
+      }
+      double rank = percentile * totalCount;
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != 0 && seen + counts[i] >= rank) {
+          double lower = layout.lowerBound(offset + i);
+          double upper = layout.upperBound(offset + i);
+          return lower + (upper - lower) * Math.max(0, rank - seen) / counts[i];
+        }
+        seen += counts[i];
+      }
+      return layout.upperBound(offset + counts.length - 1);
+    }
+
+    private void addToBucket(int bucket, long count) {
+      if (counts.length == 0) {
+        offset = bucket;
+        counts = new long[1];
+      } else if (bucket < offset || bucket >= offset + counts.length) {
+        // grow by at least half the current range in the direction needed, so growing is amortized
+        int slack = counts.length / 2;
+        int lo = bucket < offset ? Math.max(0, Math.min(bucket, offset - slack)) : offset;
+        int hi = bucket < offset ? offset + counts.length
+                : Math.min(layout.numBuckets(), Math.max(bucket + 1, offset + counts.length + slack));
+        long[] grown = new long[hi - lo];
+        System.arraycopy(counts, 0, grown, offset - lo, counts.length);
+        offset = lo;
+        counts = grown;
+      }
+      counts[bucket - offset] += count;
+      totalCount += count;
+    }
+
+    /**
+     * @return The non-empty buckets as runs of (number of buckets skipped, count) varints
+     */
+    ByteBuffer toBytes() {
+      DataOutputBuffer out = new DataOutputBuffer();
+      try {
+        int previous = -1;
+        for (int i = 0; i < counts.length; i++) {
+          if (counts[i] != 0) {
+            WritableUtils.writeVInt(out, offset + i - previous - 1);
+            WritableUtils.writeVLong(out, counts[i]);
+            previous = offset + i;
+          }
+        }
+      } catch (IOException e) {
+        throw new CrunchRuntimeException(e);
+      }
+      return ByteBuffer.wrap(Arrays.copyOf(out.getData(), out.getLength()));
+    }
+
+    static Histogram fromBytes(Layout layout, ByteBuffer bytes) {
+      Histogram histogram = new Histogram(layout);
+      DataInputBuffer in = new DataInputBuffer();
+      byte[] data = new byte[bytes.remaining()];
+      bytes.duplicate().get(data);
+      in.reset(data, data.length);
+      try {
+        int bucket = -1;
+        while (in.getPosition() < data.length) {
+          bucket += WritableUtils.readVInt(in) + 1;
+          histogram.addToBucket(bucket, WritableUtils.readVLong(in));
+        }
+      } catch (IOException e) {
+        throw new CrunchRuntimeException(e);
+      }
+      return histogram;
+    }
+
+    /**
+     * Create a PType for histograms, stored as the string form of the layout and the sparse bucket counts
+     * @param ptf Type family to create the derived type in
+     * @return PType for serializing Histogram
+     */
+    public static PType<Histogram> pType(PTypeFamily ptf) {
+      return ptf.derived(Histogram.class, new MapFn<Pair<String, ByteBuffer>, Histogram>() {
+        @Override
+        public Histogram map(Pair<String, ByteBuffer> input) {
+          return fromBytes(Layout.parse(input.first()), input.second());
+        }
+      }, new MapFn<Histogram, Pair<String, ByteBuffer>>() {
+        @Override
+        public Pair<String, ByteBuffer> map(Histogram input) {
+          return Pair.of(input.layout.toString(), input.toBytes());
+        }
+      }, ptf.pairs(ptf.strings(), ptf.bytes()));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      Histogram histogram = (Histogram) o;
+
+      if (totalCount != histogram.totalCount) return false;
+      if (!layout.equals(histogram.layout)) return false;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != histogram.getCount(offset + i)) return false;
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = layout.hashCode();
+      result = 31 * result + (int) (totalCount ^ (totalCount >>> 32));
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder("Histogram(").append(layout);
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != 0) {
+          builder.append(", ").append(offset + i).append('=').append(counts[i]);
+        }
+      }
+      return builder.append(')').toString();
+    }
+  }
+}
@@ -16,27 +16,51 @@
 package com.spotify.crunch.lib;
 
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import org.apache.crunch.*;
+import org.apache.crunch.fn.CompositeMapFn;
 import org.apache.crunch.types.PType;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 public class MapFns {
 
   private static abstract class CompoundMapFn<S, T> extends MapFn<S, T> {
-    private MapFn<S, ?>[] mapFns;
-    public CompoundMapFn(MapFn<S, ?>... mapFns) {
+    private List<MapFn<S, ?>> mapFns;
+    private transient List<SharedMapFn<?, ?>> shared;
+    public CompoundMapFn(List<MapFn<S, ?>> mapFns) {
       this.mapFns = mapFns;
     }
     @Override
     public void initialize() {
+      shared = Lists.newArrayList();
       for (MapFn<S, ?> mapFn : mapFns) {
         mapFn.initialize();
+        SharedMapFn.collect(mapFn, shared);
       }
     }
 
+    /**
+     * Combine the outputs of the MapFns for one input
+     */
+    protected abstract T combine(S input);
+
+    @Override
+    public final T map(S input) {
+      // inputs are often reused, so shared results are only kept for the extractions of one record
+      for (SharedMapFn<?, ?> fn : shared) {
+        fn.reset();
+      }
+      return combine(input);
+    }
+
     @Override
     public void configure(Configuration conf) {
       for (MapFn<S, ?> mapFn : mapFns) {
@@ -50,9 +74,9 @@ public class MapFns {
    * Combine two "extraction" MapFns into a single MapFn to Pair
    */
   public static <T, A, B> MapFn<T, Pair<A, B>> pairFn(final MapFn<T, A> aFn, final MapFn<T, B> bFn) {
-    return new CompoundMapFn<T, Pair<A, B>>(aFn, bFn) {
+    return new CompoundMapFn<T, Pair<A, B>>(Arrays.<MapFn<T, ?>>asList(aFn, bFn)) {
       @Override
-      public Pair<A, B> map(T input) {
+      protected Pair<A, B> combine(T input) {
         return Pair.of(aFn.map(input), bFn.map(input));
       }
     };
@@ -62,9 +86,9 @@ public class MapFns {
    * Combine three "extraction" MapFns into a single MapFn to Tuple3
    */
   public static <T, A, B, C> MapFn<T, Tuple3<A, B, C>> tuple3Fn(final MapFn<T, A> aFn, final MapFn<T, B> bFn, final MapFn<T, C> cFn) {
-    return new CompoundMapFn<T, Tuple3<A, B, C>>(aFn, bFn, cFn) {
+    return new CompoundMapFn<T, Tuple3<A, B, C>>(Arrays.<MapFn<T, ?>>asList(aFn, bFn, cFn)) {
       @Override
-      public Tuple3<A, B, C> map(T input) {
+      protected Tuple3<A, B, C> combine(T input) {
         return Tuple3.of(aFn.map(input), bFn.map(input), cFn.map(input));
       }
     };
@@ -74,11 +98,548 @@ public class MapFns {
    * Combine four "extraction" MapFns into a single MapFn to Tuple4
    */
   public static <T, A, B, C, D> MapFn<T, Tuple4<A, B, C, D>> tuple4Fn(final MapFn<T, A> aFn, final MapFn<T, B> bFn, final MapFn<T, C> cFn, final MapFn<T, D> dFn) {
-    return new CompoundMapFn<T, Tuple4<A, B, C, D>>(aFn, bFn, cFn, dFn) {
+    return new CompoundMapFn<T, Tuple4<A, B, C, D>>(Arrays.<MapFn<T, ?>>asList(aFn, bFn, cFn, dFn)) {
       @Override
-      public Tuple4<A, B, C, D> map(T input) {
+      protected Tuple4<A, B, C, D> combine(T input) {
         return Tuple4.of(aFn.map(input), bFn.map(input), cFn.map(input), dFn.map(input));
       }
     };
   }
+
+  /**
+   * Combine any number of "extraction" MapFns into a single MapFn to TupleN, for extractions wider than tuple4Fn
+   */
+  @SafeVarargs
+  public static <T> MapFn<T, TupleN> tupleNFn(MapFn<T, ?>... fns) {
+    final List<MapFn<T, ?>> mapFns = Lists.newArrayListWithCapacity(fns.length);
+    for (MapFn<T, ?> fn : fns) {
+      mapFns.add(fn);
+    }
+    return new CompoundMapFn<T, TupleN>(mapFns) {
+      @Override
+      protected TupleN combine(T input) {
+        Object[] values = new Object[mapFns.size()];
+        for (int i = 0; i < mapFns.size(); i++) {
+          values[i] = mapFns.get(i).map(input);
+        }
+        return new TupleN(values);
+      }
+    };
+  }
+
+  /**
+   * Like pairFn, but writes the output into a single mutable Pair per task instead of allocating one per input.
+   *
+   * The output is only valid until the next call. This is safe when the next stage serializes it straight away (such as
+   * a groupByKey or a write to a target), but not when a later stage in the same task keeps references to it. On a
+   * MemPipeline, which keeps the emitted objects as they are, a new Pair is returned for every input, like pairFn
+   * (see DoFns.runsInMemory).
+   */
+  public static <T, A, B> MapFn<T, Pair<A, B>> pairFnReusing(final MapFn<T, A> aFn, final MapFn<T, B> bFn) {
+    return new CompoundMapFn<T, Pair<A, B>>(Arrays.<MapFn<T, ?>>asList(aFn, bFn)) {
+      private transient ReusablePair<A, B> output;
+
+      @Override
+      public void initialize() {
+        super.initialize();
+        output = DoFns.runsInMemory(getContext()) ? null : new ReusablePair<A, B>();
+      }
+
+      @Override
+      protected Pair<A, B> combine(T input) {
+        if (output == null) {
+          return Pair.of(aFn.map(input), bFn.map(input));
+        }
+        return output.set(aFn.map(input), bFn.map(input));
+      }
+    };
+  }
+
+  /**
+   * Like tuple3Fn, but writes the output into a single mutable Tuple3 per task. The same contract as for pairFnReusing
+   * applies: the output is only valid until the next call.
+   */
+  public static <T, A, B, C> MapFn<T, Tuple3<A, B, C>> tuple3FnReusing(final MapFn<T, A> aFn, final MapFn<T, B> bFn, final MapFn<T, C> cFn) {
+    return new CompoundMapFn<T, Tuple3<A, B, C>>(Arrays.<MapFn<T, ?>>asList(aFn, bFn, cFn)) {
+      private transient ReusableTuple3<A, B, C> output;
+
+      @Override
+      public void initialize() {
+        super.initialize();
+        output = DoFns.runsInMemory(getContext()) ? null : new ReusableTuple3<A, B, C>();
+      }
+
+      @Override
+      protected Tuple3<A, B, C> combine(T input) {
+        if (output == null) {
+          return Tuple3.of(aFn.map(input), bFn.map(input), cFn.map(input));
+        }
+        return output.set(aFn.map(input), bFn.map(input), cFn.map(input));
+      }
+    };
+  }
+
+  /**
+   * Like tuple4Fn, but writes the output into a single mutable Tuple4 per task. The same contract as for pairFnReusing
+   * applies: the output is only valid until the next call.
+   */
+  public static <T, A, B, C, D> MapFn<T, Tuple4<A, B, C, D>> tuple4FnReusing(final MapFn<T, A> aFn, final MapFn<T, B> bFn, final MapFn<T, C> cFn, final MapFn<T, D> dFn) {
+    return new CompoundMapFn<T, Tuple4<A, B, C, D>>(Arrays.<MapFn<T, ?>>asList(aFn, bFn, cFn, dFn)) {
+      private transient ReusableTuple4<A, B, C, D> output;
+
+      @Override
+      public void initialize() {
+        super.initialize();
+        output = DoFns.runsInMemory(getContext()) ? null : new ReusableTuple4<A, B, C, D>();
+      }
+
+      @Override
+      protected Tuple4<A, B, C, D> combine(T input) {
+        if (output == null) {
+          return Tuple4.of(aFn.map(input), bFn.map(input), cFn.map(input), dFn.map(input));
+        }
+        return output.set(aFn.map(input), bFn.map(input), cFn.map(input), dFn.map(input));
+      }
+    };
+  }
+
+  /**
+   * Like tupleNFn, but writes the output into a single mutable TupleN per task. The same contract as for pairFnReusing
+   * applies: the output is only valid until the next call.
+   */
+  @SafeVarargs
+  public static <T> MapFn<T, TupleN> tupleNFnReusing(MapFn<T, ?>... fns) {
+    final List<MapFn<T, ?>> mapFns = Lists.newArrayListWithCapacity(fns.length);
+    for (MapFn<T, ?> fn : fns) {
+      mapFns.add(fn);
+    }
+    return new CompoundMapFn<T, TupleN>(mapFns) {
+      private transient ReusableTupleN output;
+
+      @Override
+      public void initialize() {
+        super.initialize();
+        output = DoFns.runsInMemory(getContext()) ? null : new ReusableTupleN(mapFns.size());
+      }
+
+      @Override
+      protected TupleN combine(T input) {
+        Object[] values = output == null ? new Object[mapFns.size()] : output.values;
+        for (int i = 0; i < mapFns.size(); i++) {
+          values[i] = mapFns.get(i).map(input);
+        }
+        return output == null ? new TupleN(values) : output;
+      }
+    };
+  }
+
+  /**
+   * A Pair whose values can be overwritten, for stages which emit one Pair per input that is serialized straight away.
+   * As Pair.equals requires the same class, it is only equal to other ReusablePairs with the same values.
+   */
+  static class ReusablePair<K, V> extends Pair<K, V> {
+    private K first;
+    private V second;
+
+    public ReusablePair() {
+      super(null, null);
+    }
+
+    public ReusablePair<K, V> set(K first, V second) {
+      this.first = first;
+      this.second = second;
+      return this;
+    }
+
+    @Override
+    public K first() {
+      return first;
+    }
+
+    @Override
+    public V second() {
+      return second;
+    }
+
+    @Override
+    public Object get(int index) {
+      switch (index) {
+        case 0: return first;
+        case 1: return second;
+        default: throw new ArrayIndexOutOfBoundsException();
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return Pair.of(first, second).hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Pair<?, ?> other = (Pair<?, ?>) obj;
+      return Objects.equal(first, other.first()) && Objects.equal(second, other.second());
+    }
+
+    @Override
+    public int compareTo(Pair<K, V> o) {
+      return Pair.of(first, second).compareTo(Pair.of(o.first(), o.second()));
+    }
+
+    @Override
+    public String toString() {
+      return Pair.of(first, second).toString();
+    }
+  }
+
+  /**
+   * A Tuple3 whose values can be overwritten, see ReusablePair
+   */
+  static class ReusableTuple3<V1, V2, V3> extends Tuple3<V1, V2, V3> {
+    private V1 first;
+    private V2 second;
+    private V3 third;
+
+    public ReusableTuple3() {
+      super(null, null, null);
+    }
+
+    public ReusableTuple3<V1, V2, V3> set(V1 first, V2 second, V3 third) {
+      this.first = first;
+      this.second = second;
+      this.third = third;
+      return this;
+    }
+
+    @Override
+    public V1 first() {
+      return first;
+    }
+
+    @Override
+    public V2 second() {
+      return second;
+    }
+
+    @Override
+    public V3 third() {
+      return third;
+    }
+
+    @Override
+    public Object get(int index) {
+      switch (index) {
+        case 0: return first;
+        case 1: return second;
+        case 2: return third;
+        default: throw new ArrayIndexOutOfBoundsException();
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return Tuple3.of(first, second, third).hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Tuple3<?, ?, ?> other = (Tuple3<?, ?, ?>) obj;
+      return Objects.equal(first, other.first()) && Objects.equal(second, other.second())
+              && Objects.equal(third, other.third());
+    }
+
+    @Override
+    public String toString() {
+      return Tuple3.of(first, second, third).toString();
+    }
+  }
+
+  /**
+   * A Tuple4 whose values can be overwritten, see ReusablePair
+   */
+  static class ReusableTuple4<V1, V2, V3, V4> extends Tuple4<V1, V2, V3, V4> {
+    private V1 first;
+    private V2 second;
+    private V3 third;
+    private V4 fourth;
+
+    public ReusableTuple4() {
+      super(null, null, null, null);
+    }
+
+    public ReusableTuple4<V1, V2, V3, V4> set(V1 first, V2 second, V3 third, V4 fourth) {
+      this.first = first;
+      this.second = second;
+      this.third = third;
+      this.fourth = fourth;
+      return this;
+    }
+
+    @Override
+    public V1 first() {
+      return first;
+    }
+
+    @Override
+    public V2 second() {
+      return second;
+    }
+
+    @Override
+    public V3 third() {
+      return third;
+    }
+
+    @Override
+    public V4 fourth() {
+      return fourth;
+    }
+
+    @Override
+    public Object get(int index) {
+      switch (index) {
+        case 0: return first;
+        case 1: return second;
+        case 2: return third;
+        case 3: return fourth;
+        default: throw new ArrayIndexOutOfBoundsException();
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return Tuple4.of(first, second, third, fourth).hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Tuple4<?, ?, ?, ?> other = (Tuple4<?, ?, ?, ?>) obj;
+      return Objects.equal(first, other.first()) && Objects.equal(second, other.second())
+              && Objects.equal(third, other.third()) && Objects.equal(fourth, other.fourth());
+    }
+
+    @Override
+    public String toString() {
+      return Tuple4.of(first, second, third, fourth).toString();
+    }
+  }
+
+  /**
+   * A TupleN whose values can be overwritten, see ReusablePair
+   */
+  static class ReusableTupleN extends TupleN {
+    private final Object[] values;
+
+    public ReusableTupleN(int size) {
+      super(new Object[size]);
+      this.values = new Object[size];
+    }
+
+    @Override
+    public Object[] getValues() {
+      return values;
+    }
+
+    @Override
+    public Object get(int index) {
+      return values[index];
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+
+    @Override
+    public int hashCode() {
+      return new TupleN(values).hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj != null && getClass() == obj.getClass() && Arrays.equals(values, ((TupleN) obj).getValues());
+    }
+
+    @Override
+    public String toString() {
+      return new TupleN(values).toString();
+    }
+  }
+
+  /**
+   * Wrap a MapFn so that calling it again with the same input object (by identity) for the same record returns the
+   * previous output instead of computing it again. Use the same shared instance as the first step of several
+   * extractors in pairFn, tuple3Fn, tuple4Fn or tupleNFn or their reusing variants (for example through
+   * CompositeMapFn), and an expensive step such as parsing a log line will only be done once per record. These reset
+   * the cached output before each record, so reused and modified input objects are safe; used anywhere else, the
+   * wrapped MapFn is called every time. The output is shared by all callers.
+   */
+  public static <S, T> MapFn<S, T> shared(MapFn<S, T> fn) {
+    return new SharedMapFn<S, T>(fn);
+  }
+
+  private static class SharedMapFn<S, T> extends MapFn<S, T> {
+    private final MapFn<S, T> fn;
+    private transient boolean managed;
+    private transient boolean cached;
+    private transient S lastInput;
+    private transient T lastOutput;
+
+    public SharedMapFn(MapFn<S, T> fn) {
+      this.fn = fn;
+    }
+
+    @Override
+    public void setContext(TaskInputOutputContext<?, ?, ?, ?> context) {
+      super.setContext(context);
+      fn.setContext(context);
+    }
+
+    @Override
+    public void setConfiguration(Configuration configuration) {
+      super.setConfiguration(configuration);
+      fn.setConfiguration(configuration);
+    }
+
+    @Override
+    public void configure(Configuration conf) {
+      super.configure(conf);
+      fn.configure(conf);
+    }
+
+    @Override
+    public void initialize() {
+      fn.initialize();
+      reset();
+    }
+
+    /**
+     * Forget the cached output, before the extractions of the next record
+     */
+    void reset() {
+      cached = false;
+      lastInput = null;
+      lastOutput = null;
+    }
+
+    /**
+     * Add the SharedMapFns which fn calls to shared, and leave their caching to the caller from now on
+     */
+    static void collect(MapFn<?, ?> fn, List<SharedMapFn<?, ?>> shared) {
+      if (fn instanceof SharedMapFn) {
+        SharedMapFn<?, ?> sharedFn = (SharedMapFn<?, ?>) fn;
+        sharedFn.managed = true;
+        shared.add(sharedFn);
+        collect(sharedFn.fn, shared);
+      } else if (fn instanceof CompositeMapFn) {
+        collect(((CompositeMapFn<?, ?, ?>) fn).getFirst(), shared);
+        collect(((CompositeMapFn<?, ?, ?>) fn).getSecond(), shared);
+      } else if (fn instanceof InstrumentedMapFn) {
+        collect(((InstrumentedMapFn<?, ?>) fn).fn, shared);
+      } else if (fn instanceof CompoundMapFn) {
+        for (MapFn<?, ?> mapFn : ((CompoundMapFn<?, ?>) fn).mapFns) {
+          collect(mapFn, shared);
+        }
+      }
+    }
+
+    @Override
+    public T map(S input) {
+      if (!managed) {
+        return fn.map(input);
+      }
+      if (!cached || input != lastInput) {
+        lastOutput = fn.map(input);
+        lastInput = input;
+        cached = true;
+      }
+      return lastOutput;
+    }
+
+    @Override
+    public void cleanup(Emitter<T> emitter) {
+      fn.cleanup(emitter);
+      reset();
+    }
+  }
+
+  /**
+   * Wrap a MapFn so that it records input and output counts and sampled timings into Hadoop counters, in the same way
+   * as DoFns.instrument(...). The result is still a MapFn, so it can be used anywhere the original could.
+   */
+  public static <S, T> MapFn<S, T> instrument(final MapFn<S, T> fn, String name) {
+    return new InstrumentedMapFn<S, T>(fn, name);
+  }
+
+  static <S, T> MapFn<S, T> instrumentIfEnabled(PCollection<?> collection, MapFn<S, T> fn, String name) {
+    return DoFns.Instrumentation.isEnabled(collection) ? instrument(fn, name) : fn;
+  }
+
+  private static class InstrumentedMapFn<S, T> extends MapFn<S, T> {
+    private final MapFn<S, T> fn;
+    private final DoFns.Instrumentation instrumentation;
+
+    public InstrumentedMapFn(MapFn<S, T> fn, String name) {
+      this.fn = fn;
+      this.instrumentation = new DoFns.Instrumentation(name);
+    }
+
+    @Override
+    public void setContext(TaskInputOutputContext<?, ?, ?, ?> context) {
+      super.setContext(context);
+      fn.setContext(context);
+    }
+
+    @Override
+    public void setConfiguration(Configuration configuration) {
+      super.setConfiguration(configuration);
+      fn.setConfiguration(configuration);
+    }
+
+    @Override
+    public void configure(Configuration conf) {
+      super.configure(conf);
+      fn.configure(conf);
+    }
+
+    @Override
+    public float scaleFactor() {
+      return fn.scaleFactor();
+    }
+
+    @Override
+    public void initialize() {
+      fn.initialize();
+      instrumentation.initialize(getConfiguration());
+    }
+
+    @Override
+    public T map(S input) {
+      instrumentation.output();
+      if (instrumentation.input()) {
+        long start = System.nanoTime();
+        T output = fn.map(input);
+        instrumentation.sample(System.nanoTime() - start);
+        return output;
+      }
+      return fn.map(input);
+    }
+
+    @Override
+    public void cleanup(Emitter<T> emitter) {
+      fn.cleanup(emitter);
+      for (Map.Entry<String, Long> counter: instrumentation.counters().entrySet()) {
+        increment(instrumentation.getGroup(), counter.getKey(), counter.getValue());
+      }
+    }
+  }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.base.Supplier;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.PTable;
+import org.apache.crunch.types.PTypeFamily;
+import org.apache.crunch.util.PartitionUtils;
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.List;
+
+import static org.apache.crunch.fn.Aggregators.SUM_LONGS;
+
+/**
+ * Planning of the number of reducers of a shuffle from the estimated number of bytes going into it.
+ *
+ * The methods of this library which group data take optional GroupingOptions. When none are given, the number of
+ * reducers is left to Crunch, which divides the estimated size of the data before the library's own processing by
+ * crunch.bytes.per.reduce.task. If crunch.lib.plan.reducers is set to true in the pipeline configuration, the library
+ * instead plans each shuffle against crunch.lib.bytes.per.reducer (by default the same as
+ * crunch.bytes.per.reduce.task), taking into account how much smaller the shuffled data is than the input for stages
+ * which combine values map-side (crunch.lib.plan.combine.ratio, by default 0.1). The result is capped at
+ * crunch.max.reducers.
+ */
+public class Parallelism {
+  static final String ENABLED_PROPERTY = "crunch.lib.plan.reducers";
+  static final String BYTES_PER_REDUCER_PROPERTY = "crunch.lib.bytes.per.reducer";
+  static final String COMBINE_RATIO_PROPERTY = "crunch.lib.plan.combine.ratio";
+  static final float DEFAULT_COMBINE_RATIO = 0.1f;
+
+  /**
+   * Grouping options with the number of reducers needed for a shuffle of estimatedBytes, according to the
+   * configured bytes per reducer.
+   * @param estimatedBytes Estimated number of bytes shuffled
+   * @param conf Pipeline configuration
+   * @return GroupingOptions setting only the number of reducers
+   */
+  public static GroupingOptions forBytes(long estimatedBytes, Configuration conf) {
+    long bytesPerReducer = Math.max(1, conf.getLong(BYTES_PER_REDUCER_PROPERTY,
+            conf.getLong(PartitionUtils.BYTES_PER_REDUCE_TASK, PartitionUtils.DEFAULT_BYTES_PER_REDUCE_TASK)));
+    long reducers = 1 + Math.max(0, estimatedBytes - 1) / bytesPerReducer;
+    int maxReducers = conf.getInt(PartitionUtils.MAX_REDUCERS, PartitionUtils.DEFAULT_MAX_REDUCERS);
+    if (maxReducers > 0) {
+      reducers = Math.min(reducers, maxReducers);
+    }
+    return GroupingOptions.builder().numReducers((int) reducers).build();
+  }
+
+  /**
+   * Grouping options for shuffling a collection, estimating its size from the metadata of its sources (and the scale
+   * factors of the functions in between).
+   * @param collection Collection which is shuffled, or from which the shuffled data is derived
+   * @param shuffleRatio Estimated ratio between the bytes shuffled and the size of the collection
+   * @return GroupingOptions setting only the number of reducers
+   */
+  public static GroupingOptions forCollection(PCollection<?> collection, double shuffleRatio) {
+    return forBytes((long) (collection.getSize() * shuffleRatio), collection.getPipeline().getConfiguration());
+  }
+
+  /**
+   * Grouping options for shuffling a table, estimating its size from a sample (see SPTables.skewReport). This is
+   * more accurate than forCollection for data whose size can't be known from its sources, but runs the pipeline up to
+   * the table, and a job to sample it, at planning time.
+   * @param table Table which is shuffled, or from which the shuffled data is derived
+   * @param sampleRate Fraction of records to sample (in the range 0.0 - 1.0)
+   * @param shuffleRatio Estimated ratio between the bytes shuffled and the size of the table
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return GroupingOptions setting only the number of reducers
+   */
+  public static <K, V> GroupingOptions forSample(PTable<K, V> table, double sampleRate, double shuffleRatio) {
+    SPTables.SkewReport<K> report = SPTables.skewReport(table, sampleRate, 1).materialize().iterator().next();
+    return forBytes((long) (report.getEstimatedBytes() * shuffleRatio), table.getPipeline().getConfiguration());
+  }
+
+  /**
+   * The options to group with in a library method: the ones given if any, or planned ones if planning is enabled, or
+   * else options leaving the number of reducers to Crunch
+   */
+  static GroupingOptions plan(PCollection<?> input, boolean combined, GroupingOptions options) {
+    if (options != null) {
+      return options;
+    }
+    Configuration conf = input.getPipeline().getConfiguration();
+    if (!conf.getBoolean(ENABLED_PROPERTY, false)) {
+      return GroupingOptions.builder().build();
+    }
+    return forCollection(input, combined ? conf.getFloat(COMBINE_RATIO_PROPERTY, DEFAULT_COMBINE_RATIO) : 1.0);
+  }
+
+  /**
+   * Count the occurrences of each distinct element like PCollection.count(), grouping with the given options (or
+   * planned ones) and counting in-mapper first (see DoFns.countInMapper). Repeated counts of the same collection with
+   * the same options share one stage (see Derived).
+   */
+  static <S> PTable<S, Long> count(final PCollection<S> collection, GroupingOptions options) {
+    final GroupingOptions planned = plan(collection, true, options);
+    List<Object> operation = Derived.operation("count", options, planned, DoFns.inMapperKeys(collection));
+    return Derived.get(collection, operation, new Supplier<PTable<S, Long>>() {
+      @Override
+      public PTable<S, Long> get() {
+        PTypeFamily ptf = collection.getTypeFamily();
+        return collection.parallelDo("count", DoFns.instrumentIfEnabled(collection,
+                DoFns.countInMapper(collection.getPType(), DoFns.inMapperKeys(collection)), "Parallelism.count"),
+                ptf.tableOf(collection.getPType(), ptf.longs()))
+                .groupByKey(planned)
+                .combineValues(SUM_LONGS());
+      }
+    });
+  }
+}
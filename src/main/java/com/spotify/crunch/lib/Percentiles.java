@@ -2,10 +2,13 @@ package com.spotify.crunch.lib;
 
 import com.google.common.base.Function;
 import com.google.common.collect.*;
+import org.apache.crunch.GroupingOptions;
 import org.apache.crunch.MapFn;
 import org.apache.crunch.PTable;
 import org.apache.crunch.Pair;
 import org.apache.crunch.lib.SecondarySort;
+import org.apache.crunch.lib.join.DefaultJoinStrategy;
+import org.apache.crunch.lib.join.JoinType;
 import org.apache.crunch.types.PType;
 import org.apache.crunch.types.PTypeFamily;
 
@@ -33,19 +36,42 @@ public class Percentiles {
    */
   public static <K, V extends Number> PTable<K, Result<V>> distributed(PTable<K, V> table,
           double p1, double... pn) {
+    return distributed(table, null, p1, pn);
+  }
+
+  /**
+   * Calculate a set of percentiles for each key in a numerically-valued table like distributed(table, p1, pn),
+   * grouping with the given options. The counting shuffle uses the options as they are, while the join and the sort
+   * only take the number of reducers from them.
+   *
+   * @param table numerically-valued PTable
+   * @param options GroupingOptions for the shuffles, or null to plan them (see Parallelism)
+   * @param p1 First percentile (in the range 0.0 - 1.0)
+   * @param pn More percentiles (in the range 0.0 - 1.0)
+   * @param <K> Key type of the table
+   * @param <V> Value type of the table (must extends java.lang.Number)
+   * @return PTable of each key with a collection of pairs of the percentile provided and it's result.
+   */
+  public static <K, V extends Number> PTable<K, Result<V>> distributed(PTable<K, V> table, GroupingOptions options,
+          double p1, double... pn) {
     final List<Double> percentileList = createListFromVarargs(p1, pn);
 
     PTypeFamily ptf = table.getTypeFamily();
-    PTable<K, Long> totalCounts = table.keys().count();
-    PTable<K, Pair<Long, V>> countValuePairs = totalCounts.join(table);
+    PTable<K, Long> totalCounts = Parallelism.count(Derived.keys(table), options);
+    int numReducers = Parallelism.plan(table, false, options).getNumReducers();
+    PTable<K, Pair<Long, V>> countValuePairs =
+            new DefaultJoinStrategy<K, Long, V>(numReducers).join(totalCounts, table, JoinType.INNER_JOIN);
     PTable<K, Pair<V, Long>> valueCountPairs =
-            countValuePairs.mapValues(new SwapPairComponents<Long, V>(), ptf.pairs(table.getValueType(), ptf.longs()));
+            countValuePairs.mapValues(
+                    MapFns.instrumentIfEnabled(table, new SwapPairComponents<Long, V>(), "Percentiles.distributed.swap"),
+                    ptf.pairs(table.getValueType(), ptf.longs()));
 
 
     return SecondarySort.sortAndApply(
             valueCountPairs,
-            new DistributedPercentiles<K, V>(percentileList),
-            ptf.tableOf(table.getKeyType(), Result.pType(table.getValueType())));
+            DoFns.instrumentGroupedIfEnabled(table, new DistributedPercentiles<K, V>(percentileList),
+                    "Percentiles.distributed"),
+            ptf.tableOf(table.getKeyType(), Result.pType(table.getValueType())), numReducers);
   }
 
   /**
@@ -67,13 +93,31 @@ public class Percentiles {
    */
   public static <K, V extends Comparable> PTable<K, Result<V>> inMemory(PTable<K, V> table,
           double p1, double... pn) {
+    return inMemory(table, null, p1, pn);
+  }
+
+  /**
+   * Calculate a set of percentiles for each key in a numerically-valued table like inMemory(table, p1, pn), grouping
+   * with the given options.
+   *
+   * @param table numerically-valued PTable
+   * @param options GroupingOptions for the shuffle, or null to plan it (see Parallelism)
+   * @param p1 First percentile (in the range 0.0 - 1.0)
+   * @param pn More percentiles (in the range 0.0 - 1.0)
+   * @param <K> Key type of the table
+   * @param <V> Value type of the table (must extends java.lang.Number)
+   * @return PTable of each key with a collection of pairs of the percentile provided and it's result.
+   */
+  public static <K, V extends Comparable> PTable<K, Result<V>> inMemory(PTable<K, V> table, GroupingOptions options,
+          double p1, double... pn) {
     final List<Double> percentileList = createListFromVarargs(p1, pn);
 
     PTypeFamily ptf = table.getTypeFamily();
 
     return table
-            .groupByKey()
-            .parallelDo(new InMemoryPercentiles<K, V>(percentileList),
+            .groupByKey(Parallelism.plan(table, false, options))
+            .parallelDo(DoFns.instrumentGroupedIfEnabled(table, new InMemoryPercentiles<K, V>(percentileList),
+                                "Percentiles.inMemory"),
                         ptf.tableOf(table.getKeyType(), Result.pType(table.getValueType())));
   }
 
@@ -92,7 +136,7 @@ public class Percentiles {
     }
   }
 
-  private static <V> Collection<Pair<Double, V>> findPercentiles(Iterator<V> sortedCollectionIterator,
+  static <V> Collection<Pair<Double, V>> findPercentiles(Iterator<V> sortedCollectionIterator,
           long collectionSize, List<Double> percentiles) {
     Collection<Pair<Double, V>> output = Lists.newArrayList();
     Multimap<Long, Double> percentileIndices = ArrayListMultimap.create();
@@ -115,7 +159,7 @@ public class Percentiles {
     return output;
   }
 
-  private static class InMemoryPercentiles<K, V extends Comparable> extends
+  static class InMemoryPercentiles<K, V extends Comparable> extends
           MapFn<Pair<K, Iterable<V>>, Pair<K, Result<V>>> {
     private final List<Double> percentileList;
 
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.Lists;
+import org.apache.crunch.Aggregator;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.MapFn;
+import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
+import org.apache.crunch.types.PTableType;
+import org.apache.crunch.types.PType;
+import org.apache.crunch.types.PTypeFamily;
+
+import java.util.List;
+
+/**
+ * Aggregates of per-key metrics over time buckets of several sizes (such as minutes, hours and days), where each
+ * coarser level is computed from the previous one rather than from the raw data.
+ *
+ * The metric must be expressible as a mergeable state with an Aggregator, such as a Pair of sum and count for a mean
+ * (merged with Aggregators.pairAggregator(SUM_DOUBLES(), SUM_LONGS())) or a Histograms.Histogram for percentiles
+ * (merged with Histograms.mergeAggregator()). Buckets are identified by the timestamp they start at, and are aligned
+ * to multiples of their size from timestamp 0.
+ */
+public class Rollups {
+
+  /**
+   * Merge the states of each key within each time bucket.
+   * @param states PTable of keys to (timestamp, state) pairs, usually one per raw event
+   * @param bucketSize Size of the time buckets, in the unit of the timestamps
+   * @param aggregator Merges states
+   * @param <K> Key type
+   * @param <A> State type
+   * @return PTable of (key, bucket start) pairs to the merged state of the bucket
+   */
+  public static <K, A> PTable<Pair<K, Long>, A> rollup(PTable<K, Pair<Long, A>> states, long bucketSize,
+          Aggregator<A> aggregator) {
+    return rollup(states, bucketSize, aggregator, null);
+  }
+
+  /**
+   * Merge the states of each key within each time bucket like rollup(states, bucketSize, aggregator), grouping with
+   * the given options.
+   * @param states PTable of keys to (timestamp, state) pairs, usually one per raw event
+   * @param bucketSize Size of the time buckets, in the unit of the timestamps
+   * @param aggregator Merges states
+   * @param options GroupingOptions for the shuffle, or null to plan it (see Parallelism)
+   * @param <K> Key type
+   * @param <A> State type
+   * @return PTable of (key, bucket start) pairs to the merged state of the bucket
+   */
+  public static <K, A> PTable<Pair<K, Long>, A> rollup(PTable<K, Pair<Long, A>> states, final long bucketSize,
+          Aggregator<A> aggregator, GroupingOptions options) {
+    checkBucketSize(bucketSize);
+    PTypeFamily ptf = states.getTypeFamily();
+    @SuppressWarnings("unchecked")
+    PType<A> stateType = (PType<A>) states.getValueType().getSubTypes().get(1);
+    PTableType<Pair<K, Long>, A> tableType = ptf.tableOf(ptf.pairs(states.getKeyType(), ptf.longs()), stateType);
+    return states
+            .parallelDo("rollup", MapFns.instrumentIfEnabled(states, new MapFn<Pair<K, Pair<Long, A>>, Pair<Pair<K, Long>, A>>() {
+              @Override
+              public Pair<Pair<K, Long>, A> map(Pair<K, Pair<Long, A>> input) {
+                return Pair.of(Pair.of(input.first(), bucketStart(input.second().first(), bucketSize)),
+                        input.second().second());
+              }
+            }, "Rollups.rollup"), tableType)
+            .groupByKey(Parallelism.plan(states, true, options))
+            .combineValues(aggregator);
+  }
+
+  /**
+   * Merge rolled-up states into coarser time buckets, such as from hours into days. Only the states are read, not the
+   * data they were computed from.
+   * @param rolledUp PTable of (key, bucket start) pairs to states, as returned by rollup or coarsen
+   * @param bucketSize Size of the coarser time buckets, which must be a multiple of the size of the existing ones
+   * @param aggregator Merges states
+   * @param <K> Key type
+   * @param <A> State type
+   * @return PTable of (key, bucket start) pairs to the merged state of the coarser bucket
+   */
+  public static <K, A> PTable<Pair<K, Long>, A> coarsen(PTable<Pair<K, Long>, A> rolledUp, long bucketSize,
+          Aggregator<A> aggregator) {
+    return coarsen(rolledUp, bucketSize, aggregator, null);
+  }
+
+  /**
+   * Merge rolled-up states into coarser time buckets like coarsen(rolledUp, bucketSize, aggregator), grouping with the
+   * given options.
+   * @param rolledUp PTable of (key, bucket start) pairs to states, as returned by rollup or coarsen
+   * @param bucketSize Size of the coarser time buckets, which must be a multiple of the size of the existing ones
+   * @param aggregator Merges states
+   * @param options GroupingOptions for the shuffle, or null to plan it (see Parallelism)
+   * @param <K> Key type
+   * @param <A> State type
+   * @return PTable of (key, bucket start) pairs to the merged state of the coarser bucket
+   */
+  public static <K, A> PTable<Pair<K, Long>, A> coarsen(PTable<Pair<K, Long>, A> rolledUp, final long bucketSize,
+          Aggregator<A> aggregator, GroupingOptions options) {
+    checkBucketSize(bucketSize);
+    return rolledUp
+            .parallelDo("coarsen", MapFns.instrumentIfEnabled(rolledUp, new MapFn<Pair<Pair<K, Long>, A>, Pair<Pair<K, Long>, A>>() {
+              @Override
+              public Pair<Pair<K, Long>, A> map(Pair<Pair<K, Long>, A> input) {
+                return Pair.of(Pair.of(input.first().first(), bucketStart(input.first().second(), bucketSize)),
+                        input.second());
+              }
+            }, "Rollups.coarsen"), rolledUp.getPTableType())
+            .groupByKey(Parallelism.plan(rolledUp, true, options))
+            .combineValues(aggregator);
+  }
+
+  /**
+   * Compute a hierarchy of rollups, where the first level is rolled up from the states and every following level is
+   * coarsened from the one before.
+   * @param states PTable of keys to (timestamp, state) pairs, usually one per raw event
+   * @param aggregator Merges states
+   * @param bucketSizes Sizes of the time buckets of each level, each a multiple of the one before
+   * @param <K> Key type
+   * @param <A> State type
+   * @return List with a PTable of (key, bucket start) pairs to merged states for each bucket size, in the same order
+   */
+  public static <K, A> List<PTable<Pair<K, Long>, A>> levels(PTable<K, Pair<Long, A>> states,
+          Aggregator<A> aggregator, long... bucketSizes) {
+    if (bucketSizes.length == 0) {
+      throw new PlanTimeException("At least one bucket size is needed");
+    }
+    for (int i = 1; i < bucketSizes.length; i++) {
+      if (bucketSizes[i - 1] <= 0 || bucketSizes[i] % bucketSizes[i - 1] != 0) {
+        throw new PlanTimeException("Bucket size " + bucketSizes[i] + " is not a multiple of " + bucketSizes[i - 1]);
+      }
+    }
+    List<PTable<Pair<K, Long>, A>> levels = Lists.newArrayList();
+    levels.add(rollup(states, bucketSizes[0], aggregator));
+    for (int i = 1; i < bucketSizes.length; i++) {
+      levels.add(coarsen(levels.get(i - 1), bucketSizes[i], aggregator));
+    }
+    return levels;
+  }
+
+  private static void checkBucketSize(long bucketSize) {
+    if (bucketSize <= 0) {
+      throw new PlanTimeException("Bucket size must be positive, was " + bucketSize);
+    }
+  }
+
+  static long bucketStart(long timestamp, long bucketSize) {
+    long start = timestamp - timestamp % bucketSize;
+    return start > timestamp ? start - bucketSize : start;
+  }
+}
@@ -15,10 +15,66 @@
  */
 package com.spotify.crunch.lib;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import org.apache.crunch.Aggregator;
+import org.apache.crunch.CrunchRuntimeException;
+import org.apache.crunch.DoFn;
+import org.apache.crunch.Emitter;
+import org.apache.crunch.GroupingOptions;
 import org.apache.crunch.MapFn;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.PGroupedTable;
 import org.apache.crunch.PTable;
 import org.apache.crunch.Pair;
+import org.apache.crunch.ParallelDoOptions;
+import org.apache.crunch.ReadableData;
+import org.apache.crunch.Tuple3;
+import org.apache.crunch.Tuple4;
+import org.apache.crunch.lib.SecondarySort;
+import org.apache.crunch.lib.join.DefaultJoinStrategy;
+import org.apache.crunch.lib.join.JoinType;
+import org.apache.crunch.lib.join.MapsideJoinStrategy;
+import org.apache.crunch.lib.sort.ReverseAvroComparator;
+import org.apache.crunch.lib.sort.ReverseWritableComparator;
+import org.apache.crunch.types.PType;
 import org.apache.crunch.types.PTypeFamily;
+import org.apache.crunch.types.avro.AvroType;
+import org.apache.crunch.types.writable.WritableTypeFamily;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+
+import static org.apache.crunch.fn.Aggregators.MAX_LONGS;
+import static org.apache.crunch.fn.Aggregators.MIN_LONGS;
+import static org.apache.crunch.fn.Aggregators.SUM_LONGS;
+import static org.apache.crunch.fn.Aggregators.pairAggregator;
+import static org.apache.crunch.fn.Aggregators.tripAggregator;
 
 /**
  * Extra high-level operations for working with PTables
@@ -34,28 +90,1400 @@ public class SPTables {
    */
   public static <K, V> PTable<V, K> swapKeyValue(PTable<K, V> table) {
     PTypeFamily ptf = table.getTypeFamily();
-    return table.parallelDo(new MapFn<Pair<K, V>, Pair<V, K>>() {
+    return table.parallelDo(MapFns.instrumentIfEnabled(table, new MapFn<Pair<K, V>, Pair<V, K>>() {
       @Override
       public Pair<V, K> map(Pair<K, V> input) {
         return Pair.of(input.second(), input.first());
       }
-    }, ptf.tableOf(table.getValueType(), table.getKeyType()));
+    }, "SPTables.swapKeyValue"), ptf.tableOf(table.getValueType(), table.getKeyType()));
+  }
+
+  /**
+   * Like swapKeyValue, but writes each output into a single mutable Pair per task instead of allocating one per record.
+   * This is only safe when the result is serialized straight away (such as by a groupByKey or a write to a target) and
+   * no later stage in the same task keeps references to its records, see MapFns.pairFnReusing. On a MemPipeline, which
+   * keeps the emitted objects as they are, a new Pair is emitted for every record like swapKeyValue.
+   * @param table PTable to process
+   * @param <K> Key type (will become value type)
+   * @param <V> Value type (will become key type)
+   * @return PType&lt;V, K&gt; containing the same data as the original
+   */
+  public static <K, V> PTable<V, K> swapKeyValueReusing(PTable<K, V> table) {
+    PTypeFamily ptf = table.getTypeFamily();
+    return table.parallelDo(MapFns.instrumentIfEnabled(table, new MapFn<Pair<K, V>, Pair<V, K>>() {
+      private transient MapFns.ReusablePair<V, K> output;
+
+      @Override
+      public void initialize() {
+        output = DoFns.runsInMemory(getContext()) ? null : new MapFns.ReusablePair<V, K>();
+      }
+
+      @Override
+      public Pair<V, K> map(Pair<K, V> input) {
+        if (output == null) {
+          return Pair.of(input.second(), input.first());
+        }
+        return output.set(input.second(), input.first());
+      }
+    }, "SPTables.swapKeyValueReusing"), ptf.tableOf(table.getValueType(), table.getKeyType()));
   }
 
   /**
    * When creating toplists, it is often required to sort by count descending. As some sort operations don't support
    * order (such as SecondarySort), this method will negate counts so that a natural-ordered sort will produce a
-   * descending order.
+   * descending order. When grouping by a count, groupByKeyDescending does the same without the extra passes.
    * @param table PTable to process
    * @param <K> key type
    * @return PTable of the same format with the value negated
    */
   public static <K> PTable<K, Long> negateCounts(PTable<K, Long> table) {
-    return table.parallelDo(new MapFn<Pair<K, Long>, Pair<K, Long>>() {
+    return table.parallelDo(MapFns.instrumentIfEnabled(table, new MapFn<Pair<K, Long>, Pair<K, Long>>() {
       @Override
       public Pair<K, Long> map(Pair<K, Long> input) {
         return Pair.of(input.first(), -input.second());
       }
-    }, table.getPTableType());
+    }, "SPTables.negateCounts"), table.getPTableType());
+  }
+
+  /**
+   * Like negateCounts, but writes each output into a single mutable Pair per task instead of allocating one per record,
+   * with the same contract as swapKeyValueReusing.
+   * @param table PTable to process
+   * @param <K> key type
+   * @return PTable of the same format with the value negated
+   */
+  public static <K> PTable<K, Long> negateCountsReusing(PTable<K, Long> table) {
+    return table.parallelDo(MapFns.instrumentIfEnabled(table, new MapFn<Pair<K, Long>, Pair<K, Long>>() {
+      private transient MapFns.ReusablePair<K, Long> output;
+
+      @Override
+      public void initialize() {
+        output = DoFns.runsInMemory(getContext()) ? null : new MapFns.ReusablePair<K, Long>();
+      }
+
+      @Override
+      public Pair<K, Long> map(Pair<K, Long> input) {
+        if (output == null) {
+          return Pair.of(input.first(), -input.second());
+        }
+        return output.set(input.first(), -input.second());
+      }
+    }, "SPTables.negateCountsReusing"), table.getPTableType());
+  }
+
+  /**
+   * Group a table by key with the keys sorted in descending order, by reversing the raw comparator used in the shuffle.
+   * This avoids negating the keys before and after the group (see negateCounts) to get a descending order.
+   * @param table PTable to group
+   * @param numReducers Number of reducers to use
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return PGroupedTable whose keys are in descending order in each partition
+   */
+  public static <K, V> PGroupedTable<K, V> groupByKeyDescending(PTable<K, V> table, int numReducers) {
+    GroupingOptions.Builder options = GroupingOptions.builder().numReducers(numReducers);
+    if (table.getKeyType() instanceof AvroType) {
+      options.conf("crunch.schema", ((AvroType<K>) table.getKeyType()).getSchema().toString())
+              .sortComparatorClass(ReverseAvroComparator.class);
+    } else if (table.getTypeFamily() == WritableTypeFamily.getInstance()) {
+      options.sortComparatorClass(ReverseWritableComparator.class);
+    } else {
+      throw new PlanTimeException("Can not sort keys of type " + table.getKeyType() + " in descending order");
+    }
+    return table.groupByKey(options.build());
+  }
+
+  /**
+   * Estimate how the records of a table are distributed between its keys, to find the keys which are likely to cause
+   * problems for operations that group by key (such as Percentiles.inMemory, TopLists.topNYbyX or Averages.meanValue).
+   *
+   * A random sample of the records is taken map-side and counted per key, with a combiner, so only the sampled data is
+   * shuffled. Each key's sampled count and serialized size is then folded into a small mergeable report per task, and
+   * these are merged into a single report by a single reducer. Counts and sizes in the report are scaled back up by
+   * the sample rate, so they are estimates for the whole table.
+   *
+   * @param table PTable to profile. Key and value types must be from the Avro or Writable type family
+   * @param sampleRate Fraction of records to sample (in the range 0.0 - 1.0)
+   * @param topKeys Number of heaviest keys to include in the report
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return PCollection containing a single SkewReport
+   */
+  public static <K, V> PCollection<SkewReport<K>> skewReport(PTable<K, V> table, double sampleRate, int topKeys) {
+    if (sampleRate <= 0.0 || sampleRate > 1.0) {
+      throw new PlanTimeException("Sample rate must be in the range (0.0, 1.0], was " + sampleRate);
+    }
+    PTypeFamily ptf = table.getTypeFamily();
+    PType<SkewReport<K>> reportType = SkewReport.pType(table.getKeyType());
+    PTable<K, Pair<Long, Long>> sampled = table.parallelDo(
+            DoFns.instrumentIfEnabled(table, new SampleSizesFn<K, V>(sampleRate, table.getKeyType(),
+                    table.getValueType()), "SPTables.skewReport.sample"),
+            ptf.tableOf(table.getKeyType(), ptf.pairs(ptf.longs(), ptf.longs())));
+    return sampled
+            .groupByKey()
+            .combineValues(pairAggregator(SUM_LONGS(), SUM_LONGS()))
+            .parallelDo(new PartialSkewReportFn<K>(sampleRate, topKeys, table.getKeyType()),
+                    ptf.tableOf(ptf.ints(), reportType))
+            .groupByKey(1)
+            .parallelDo(new MergeSkewReportsFn<K>(), reportType);
+  }
+
+  /**
+   * Inner join a large table to a smaller one when a few keys of the large table have far more records than the rest,
+   * without sending all the records of those keys to a single reducer.
+   *
+   * The heaviest keys of the large table are found with skewReport. Records of the large table with one of those keys
+   * are spread over a number of shards (by salting the key with a shard number), and the records of the small table
+   * with the same key are replicated to every shard, so each hot key is joined by several reducers in parallel. All
+   * other keys are joined as normal. Everything happens in a single join, after the job which samples the large table.
+   *
+   * @param large The table with skewed keys
+   * @param small The other table, whose records for the hot keys will be replicated
+   * @param sampleRate Fraction of the records of the large table to sample to find the hot keys (in the range 0.0 - 1.0)
+   * @param maxHotKeys Maximum number of keys to treat as hot
+   * @param shards Number of shards to split each hot key into
+   * @param <K> Key type
+   * @param <U> Value type of the large table
+   * @param <V> Value type of the small table
+   * @return PTable of the same format as PTable.join
+   */
+  public static <K, U, V> PTable<K, Pair<U, V>> skewJoin(PTable<K, U> large, PTable<K, V> small, double sampleRate,
+          int maxHotKeys, int shards) {
+    return skewJoin(large, small, sampleRate, maxHotKeys, shards, null);
+  }
+
+  /**
+   * Inner join a large table with a few very heavy keys to a smaller one like skewJoin(large, small, sampleRate,
+   * maxHotKeys, shards), with the given options for the join. The join only takes the number of reducers from them.
+   *
+   * @param large The table with skewed keys
+   * @param small The other table, whose records for the hot keys will be replicated
+   * @param sampleRate Fraction of the records of the large table to sample to find the hot keys (in the range 0.0 - 1.0)
+   * @param maxHotKeys Maximum number of keys to treat as hot
+   * @param shards Number of shards to split each hot key into
+   * @param options GroupingOptions for the join, or null to plan it (see Parallelism)
+   * @param <K> Key type
+   * @param <U> Value type of the large table
+   * @param <V> Value type of the small table
+   * @return PTable of the same format as PTable.join
+   */
+  public static <K, U, V> PTable<K, Pair<U, V>> skewJoin(PTable<K, U> large, PTable<K, V> small, double sampleRate,
+          int maxHotKeys, int shards, GroupingOptions options) {
+    if (shards < 1) {
+      throw new PlanTimeException("Number of shards must be positive, was " + shards);
+    }
+    PTypeFamily ptf = large.getTypeFamily();
+    ReadableData<SkewReport<K>> hotKeys = skewReport(large, sampleRate, maxHotKeys).asReadable(true);
+    ParallelDoOptions afterSampling = ParallelDoOptions.builder().sourceTargets(hotKeys.getSourceTargets()).build();
+    PType<Pair<K, Integer>> saltedKeyType = ptf.pairs(large.getKeyType(), ptf.ints());
+
+    PTable<Pair<K, Integer>, U> saltedLarge = large.parallelDo("skewJoin salt",
+            DoFns.instrumentIfEnabled(large, new SaltHotKeysFn<K, U>(hotKeys, shards, false), "SPTables.skewJoin.salt"),
+            ptf.tableOf(saltedKeyType, large.getValueType()), afterSampling);
+    PTable<Pair<K, Integer>, V> saltedSmall = small.parallelDo("skewJoin replicate",
+            DoFns.instrumentIfEnabled(small, new SaltHotKeysFn<K, V>(hotKeys, shards, true), "SPTables.skewJoin.replicate"),
+            ptf.tableOf(saltedKeyType, small.getValueType()), afterSampling);
+
+    int numReducers = Parallelism.plan(large, false, options).getNumReducers();
+    PTable<Pair<K, Integer>, Pair<U, V>> joined = new DefaultJoinStrategy<Pair<K, Integer>, U, V>(numReducers)
+            .join(saltedLarge, saltedSmall, JoinType.INNER_JOIN);
+    return joined.parallelDo("skewJoin unsalt",
+            MapFns.instrumentIfEnabled(large, new MapFn<Pair<Pair<K, Integer>, Pair<U, V>>, Pair<K, Pair<U, V>>>() {
+              @Override
+              public Pair<K, Pair<U, V>> map(Pair<Pair<K, Integer>, Pair<U, V>> input) {
+                return Pair.of(input.first().first(), input.second());
+              }
+            }, "SPTables.skewJoin.unsalt"),
+            ptf.tableOf(large.getKeyType(), ptf.pairs(large.getValueType(), small.getValueType())));
+  }
+
+  /**
+   * Salts the keys of a table with a shard number. Hot keys are either spread round-robin over all shards, or
+   * replicated to every shard; all other keys go to shard 0.
+   */
+  private static class SaltHotKeysFn<K, V> extends DoFn<Pair<K, V>, Pair<Pair<K, Integer>, V>> {
+    private final ReadableData<SkewReport<K>> hotKeyReports;
+    private final int shards;
+    private final boolean replicate;
+    private transient Set<K> hotKeys;
+    private transient int nextShard;
+
+    public SaltHotKeysFn(ReadableData<SkewReport<K>> hotKeyReports, int shards, boolean replicate) {
+      this.hotKeyReports = hotKeyReports;
+      this.shards = shards;
+      this.replicate = replicate;
+    }
+
+    @Override
+    public void configure(Configuration conf) {
+      hotKeyReports.configure(conf);
+    }
+
+    @Override
+    public void initialize() {
+      hotKeys = Sets.newHashSet();
+      nextShard = 0;
+      try {
+        for (SkewReport<K> report: hotKeyReports.read(getContext())) {
+          for (Tuple3<K, Long, Long> key: report.getHeavyKeys()) {
+            hotKeys.add(key.first());
+          }
+        }
+      } catch (IOException e) {
+        throw new CrunchRuntimeException("Could not read hot keys", e);
+      }
+    }
+
+    @Override
+    public void process(Pair<K, V> input, Emitter<Pair<Pair<K, Integer>, V>> emitter) {
+      if (!hotKeys.contains(input.first())) {
+        emitter.emit(Pair.of(Pair.of(input.first(), 0), input.second()));
+      } else if (replicate) {
+        for (int shard = 0; shard < shards; shard++) {
+          emitter.emit(Pair.of(Pair.of(input.first(), shard), input.second()));
+        }
+      } else {
+        emitter.emit(Pair.of(Pair.of(input.first(), nextShard), input.second()));
+        nextShard = (nextShard + 1) % shards;
+      }
+    }
+  }
+
+  /**
+   * Keep only the records of a large table whose key is in a much smaller collection of keys, without shuffling most
+   * of the records of the large table which have no match.
+   *
+   * A Bloom filter over the keys is built in separate jobs over the small side, and is used to drop records of the
+   * large table map-side. The survivors are then checked exactly against the keys with an ordinary reduce-side join,
+   * so the shuffle volume of the large table scales with the number of matching records, plus a fraction fpp of the
+   * others.
+   *
+   * @param large The table to filter
+   * @param keys Keys to keep, serialized with the same PType as the key of the large table (duplicates are allowed)
+   * @param fpp Desired false positive probability of the Bloom filter (in the range 0.0 - 1.0, exclusive)
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return PTable with the records of the large table whose key is in keys
+   */
+  public static <K, V> PTable<K, V> semiJoin(PTable<K, V> large, PCollection<K> keys, double fpp) {
+    return semiJoin(large, keys, fpp, null);
+  }
+
+  /**
+   * Keep only the records of a large table whose key is in a much smaller collection of keys like semiJoin(large,
+   * keys, fpp), with the given options for the shuffles. The count of the distinct keys uses the options as they are,
+   * while the join only takes the number of reducers from them.
+   *
+   * @param large The table to filter
+   * @param keys Keys to keep, serialized with the same PType as the key of the large table (duplicates are allowed)
+   * @param fpp Desired false positive probability of the Bloom filter (in the range 0.0 - 1.0, exclusive)
+   * @param options GroupingOptions for the shuffles, or null to plan them (see Parallelism)
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return PTable with the records of the large table whose key is in keys
+   */
+  public static <K, V> PTable<K, V> semiJoin(PTable<K, V> large, PCollection<K> keys, double fpp,
+          GroupingOptions options) {
+    if (fpp <= 0.0 || fpp >= 1.0) {
+      throw new PlanTimeException("False positive probability must be between 0.0 and 1.0, was " + fpp);
+    }
+    PTypeFamily ptf = large.getTypeFamily();
+    PTable<K, Long> distinctKeys = Parallelism.count(keys, options);
+
+    ReadableData<Long> keyCount = distinctKeys
+            .parallelDo("semiJoin count", new MapFn<Pair<K, Long>, Pair<Integer, Long>>() {
+              @Override
+              public Pair<Integer, Long> map(Pair<K, Long> input) {
+                return Pair.of(0, 1L);
+              }
+            }, ptf.tableOf(ptf.ints(), ptf.longs()))
+            .groupByKey(1)
+            .combineValues(SUM_LONGS())
+            .values()
+            .asReadable(true);
+
+    ReadableData<ByteBuffer> filter = distinctKeys.keys()
+            .parallelDo("semiJoin hash",
+                    DoFns.instrumentIfEnabled(large, new HashKeysFn<K>(large.getKeyType()), "SPTables.semiJoin.hash"),
+                    ptf.tableOf(ptf.ints(), ptf.bytes()))
+            .groupByKey(1)
+            .parallelDo("semiJoin build filter", new BuildBloomFilterFn(keyCount, fpp), ptf.bytes(),
+                    ParallelDoOptions.builder().sourceTargets(keyCount.getSourceTargets()).build())
+            .asReadable(true);
+
+    PTable<K, V> candidates = large.parallelDo("semiJoin filter",
+            DoFns.instrumentIfEnabled(large, new BloomFilterFn<K, V>(filter, large.getKeyType()), "SPTables.semiJoin.filter"),
+            large.getPTableType(),
+            ParallelDoOptions.builder().sourceTargets(filter.getSourceTargets()).build());
+
+    int numReducers = Parallelism.plan(candidates, false, options).getNumReducers();
+    PTable<K, Pair<Long, V>> joined = new DefaultJoinStrategy<K, Long, V>(numReducers)
+            .join(distinctKeys, candidates, JoinType.INNER_JOIN);
+    return joined.parallelDo("semiJoin unpair",
+            MapFns.instrumentIfEnabled(large, new MapFn<Pair<K, Pair<Long, V>>, Pair<K, V>>() {
+              @Override
+              public Pair<K, V> map(Pair<K, Pair<Long, V>> input) {
+                return Pair.of(input.first(), input.second().second());
+              }
+            }, "SPTables.semiJoin.unpair"),
+            large.getPTableType());
+  }
+
+  /**
+   * Inner join a large table to a medium-sized one map-side, looking the keys of the large table up in a memory-mapped
+   * copy of the smaller table which is shared by the tasks on each node (see DoFns.withLookup). Unlike a mapside join,
+   * the smaller table does not need to fit in the heap of every task, and unlike a reduce-side join neither side is
+   * shuffled.
+   *
+   * @param large The larger table, which is streamed
+   * @param lookup The smaller table, which is looked up in. If it has several values for a key, one is picked
+   * @param <K> Key type
+   * @param <U> Value type of the larger table
+   * @param <V> Value type of the smaller table
+   * @return PTable with the joined records
+   */
+  public static <K, U, V> PTable<K, Pair<U, V>> lookupJoin(PTable<K, U> large, PTable<K, V> lookup) {
+    PTypeFamily ptf = large.getTypeFamily();
+    DoFns.LookupDoFn<Pair<K, U>, K, V, Pair<K, Pair<U, V>>> fn = DoFns.withLookup(
+            new DoFn<Pair<Pair<K, U>, V>, Pair<K, Pair<U, V>>>() {
+              @Override
+              public void process(Pair<Pair<K, U>, V> input, Emitter<Pair<K, Pair<U, V>>> emitter) {
+                if (input.second() != null) {
+                  emitter.emit(Pair.of(input.first().first(), Pair.of(input.first().second(), input.second())));
+                }
+              }
+            },
+            new MapFn<Pair<K, U>, K>() {
+              @Override
+              public K map(Pair<K, U> input) {
+                return input.first();
+              }
+            }, lookup);
+    return large.parallelDo("lookupJoin", DoFns.instrumentIfEnabled(large, fn, "SPTables.lookupJoin"),
+            ptf.tableOf(large.getKeyType(), ptf.pairs(large.getValueType(), lookup.getValueType())),
+            fn.getParallelDoOptions());
+  }
+
+  /**
+   * 128-bit hash of the serialized form of a key, which is what goes into the Bloom filters of semiJoin and the MinHash
+   * signatures of Similarity
+   */
+  static class KeyHasher<K> implements Serializable {
+    private final DoFns.SpillSerializer<K> serializer;
+    private final int seed;
+    private transient DataOutputBuffer buffer;
+
+    public KeyHasher(PType<K> keyType) {
+      this(keyType, 0);
+    }
+
+    public KeyHasher(PType<K> keyType, int seed) {
+      this.serializer = DoFns.spillSerializer(keyType);
+      this.seed = seed;
+    }
+
+    public void initialize(Configuration conf) {
+      serializer.initialize(conf == null ? new Configuration() : conf);
+      buffer = new DataOutputBuffer();
+    }
+
+    public byte[] hash(K key) {
+      buffer.reset();
+      try {
+        serializer.write(key, buffer);
+      } catch (IOException e) {
+        throw new CrunchRuntimeException(e);
+      }
+      return Hashing.murmur3_128(seed).hashBytes(buffer.getData(), 0, buffer.getLength()).asBytes();
+    }
+
+    public long hash64(K key) {
+      return Longs.fromByteArray(hash(key));
+    }
+
+    public int bucket(K key, int numBuckets) {
+      return (Ints.fromByteArray(hash(key)) & Integer.MAX_VALUE) % numBuckets;
+    }
+  }
+
+  private static class HashKeysFn<K> extends DoFn<K, Pair<Integer, ByteBuffer>> {
+    private final KeyHasher<K> hasher;
+
+    public HashKeysFn(PType<K> keyType) {
+      this.hasher = new KeyHasher<K>(keyType);
+    }
+
+    @Override
+    public void initialize() {
+      hasher.initialize(getConfiguration());
+    }
+
+    @Override
+    public void process(K input, Emitter<Pair<Integer, ByteBuffer>> emitter) {
+      emitter.emit(Pair.of(0, ByteBuffer.wrap(hasher.hash(input))));
+    }
+  }
+
+  /**
+   * Builds a single Bloom filter out of all key hashes, sized by the number of distinct keys, and emits it serialized
+   */
+  private static class BuildBloomFilterFn extends DoFn<Pair<Integer, Iterable<ByteBuffer>>, ByteBuffer> {
+    private final ReadableData<Long> keyCount;
+    private final double fpp;
+
+    public BuildBloomFilterFn(ReadableData<Long> keyCount, double fpp) {
+      this.keyCount = keyCount;
+      this.fpp = fpp;
+    }
+
+    @Override
+    public void configure(Configuration conf) {
+      keyCount.configure(conf);
+    }
+
+    @Override
+    public void process(Pair<Integer, Iterable<ByteBuffer>> input, Emitter<ByteBuffer> emitter) {
+      try {
+        long count = 0;
+        for (Long c: keyCount.read(getContext())) {
+          count += c;
+        }
+        BloomFilter<byte[]> filter = BloomFilter.create(Funnels.byteArrayFunnel(),
+                (int) Math.max(1, Math.min(Integer.MAX_VALUE, count)), fpp);
+        for (ByteBuffer hash: input.second()) {
+          byte[] bytes = new byte[hash.remaining()];
+          hash.duplicate().get(bytes);
+          filter.put(bytes);
+        }
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(filter);
+        out.close();
+        emitter.emit(ByteBuffer.wrap(serialized.toByteArray()));
+      } catch (IOException e) {
+        throw new CrunchRuntimeException("Could not build Bloom filter", e);
+      }
+    }
+  }
+
+  private static class BloomFilterFn<K, V> extends DoFn<Pair<K, V>, Pair<K, V>> {
+    private final ReadableData<ByteBuffer> serializedFilter;
+    private final KeyHasher<K> hasher;
+    private transient BloomFilter<byte[]> filter;
+
+    public BloomFilterFn(ReadableData<ByteBuffer> serializedFilter, PType<K> keyType) {
+      this.serializedFilter = serializedFilter;
+      this.hasher = new KeyHasher<K>(keyType);
+    }
+
+    @Override
+    public void configure(Configuration conf) {
+      serializedFilter.configure(conf);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void initialize() {
+      hasher.initialize(getConfiguration());
+      filter = null;
+      try {
+        for (ByteBuffer serialized: serializedFilter.read(getContext())) {
+          byte[] bytes = new byte[serialized.remaining()];
+          serialized.duplicate().get(bytes);
+          ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+          filter = (BloomFilter<byte[]>) in.readObject();
+          in.close();
+        }
+      } catch (IOException e) {
+        throw new CrunchRuntimeException("Could not read Bloom filter", e);
+      } catch (ClassNotFoundException e) {
+        throw new CrunchRuntimeException("Could not read Bloom filter", e);
+      }
+    }
+
+    @Override
+    public void process(Pair<K, V> input, Emitter<Pair<K, V>> emitter) {
+      // no filter means there were no keys at all
+      if (filter != null && filter.mightContain(hasher.hash(input.first()))) {
+        emitter.emit(input);
+      }
+    }
+  }
+
+  /**
+   * Emits (key, (1, serialized size)) for a random sample of the records of a table
+   */
+  private static class SampleSizesFn<K, V> extends DoFn<Pair<K, V>, Pair<K, Pair<Long, Long>>> {
+    private final double sampleRate;
+    private final DoFns.SpillSerializer<K> keySerializer;
+    private final DoFns.SpillSerializer<V> valueSerializer;
+    private transient Random random;
+    private transient CountingOutputStream bytes;
+    private transient DataOutputStream sizer;
+
+    public SampleSizesFn(double sampleRate, PType<K> keyType, PType<V> valueType) {
+      this.sampleRate = sampleRate;
+      this.keySerializer = DoFns.spillSerializer(keyType);
+      this.valueSerializer = DoFns.spillSerializer(valueType);
+    }
+
+    @Override
+    public void initialize() {
+      Configuration conf = getConfiguration() == null ? new Configuration() : getConfiguration();
+      keySerializer.initialize(conf);
+      valueSerializer.initialize(conf);
+      random = new Random();
+      bytes = new CountingOutputStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+      });
+      sizer = new DataOutputStream(bytes);
+    }
+
+    @Override
+    public void process(Pair<K, V> input, Emitter<Pair<K, Pair<Long, Long>>> emitter) {
+      if (random.nextDouble() >= sampleRate) {
+        return;
+      }
+      long start = bytes.getCount();
+      try {
+        keySerializer.write(input.first(), sizer);
+        valueSerializer.write(input.second(), sizer);
+      } catch (IOException e) {
+        throw new CrunchRuntimeException(e);
+      }
+      emitter.emit(Pair.of(input.first(), Pair.of(1L, bytes.getCount() - start)));
+    }
+  }
+
+  private static class PartialSkewReportFn<K> extends DoFn<Pair<K, Pair<Long, Long>>, Pair<Integer, SkewReport<K>>> {
+    private final double sampleRate;
+    private final int topKeys;
+    private final PType<K> keyType;
+    private transient SkewReport<K> report;
+
+    public PartialSkewReportFn(double sampleRate, int topKeys, PType<K> keyType) {
+      this.sampleRate = sampleRate;
+      this.topKeys = topKeys;
+      this.keyType = keyType;
+    }
+
+    @Override
+    public void initialize() {
+      keyType.initialize(getConfiguration() == null ? new Configuration() : getConfiguration());
+      report = new SkewReport<K>(sampleRate, topKeys);
+    }
+
+    @Override
+    public void process(Pair<K, Pair<Long, Long>> input, Emitter<Pair<Integer, SkewReport<K>>> emitter) {
+      report.add(keyType.getDetachedValue(input.first()), input.second().first(), input.second().second());
+    }
+
+    @Override
+    public void cleanup(Emitter<Pair<Integer, SkewReport<K>>> emitter) {
+      emitter.emit(Pair.of(0, report));
+    }
+  }
+
+  private static class MergeSkewReportsFn<K> extends MapFn<Pair<Integer, Iterable<SkewReport<K>>>, SkewReport<K>> {
+    @Override
+    public SkewReport<K> map(Pair<Integer, Iterable<SkewReport<K>>> input) {
+      SkewReport<K> merged = null;
+      for (SkewReport<K> report: input.second()) {
+        if (merged == null) {
+          merged = new SkewReport<K>(report.sampleRate, report.topKeys);
+        }
+        merged.merge(report);
+      }
+      return merged;
+    }
+  }
+
+  /**
+   * Replace the (wide) keys of a table with dense long ids from 0 to the number of distinct keys - 1, so that the
+   * expensive operations which follow (such as Percentiles, TopLists or Averages) shuffle and compare 8-byte keys.
+   * Use dictionaryDecode to map the results back to the original keys. Uses 100 buckets, see
+   * dictionaryEncode(table, numBuckets).
+   * @param table PTable to encode
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return The encoded table and the dictionary from ids to keys
+   */
+  public static <K, V> DictionaryEncoded<K, V> dictionaryEncode(PTable<K, V> table) {
+    return dictionaryEncode(table, 100);
+  }
+
+  /**
+   * Replace the (wide) keys of a table with dense long ids from 0 to the number of distinct keys - 1, so that the
+   * expensive operations which follow (such as Percentiles, TopLists or Averages) shuffle and compare 8-byte keys.
+   * Use dictionaryDecode to map the results back to the original keys.
+   *
+   * The distinct keys are hashed into buckets, and numbered in sorted order within each bucket by a secondary sort.
+   * A key's id is its number within the bucket plus the total size of all buckets before it, so the ids are the same
+   * every time the dictionary is computed from the same keys. The table is then encoded map-side with lookupJoin, so
+   * it is not shuffled on its wide keys; only the distinct keys are. Building the dictionary still takes a few jobs of
+   * its own, so encoding pays off when the encoded table goes through several expensive operations, or one which
+   * shuffles it more than once.
+   *
+   * @param table PTable to encode
+   * @param numBuckets Number of buckets, which is the maximum number of reducers used for numbering the keys
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return The encoded table and the dictionary from ids to keys
+   */
+  public static <K, V> DictionaryEncoded<K, V> dictionaryEncode(PTable<K, V> table, int numBuckets) {
+    return dictionaryEncode(table, numBuckets, null);
+  }
+
+  /**
+   * Replace the (wide) keys of a table with dense long ids like dictionaryEncode(table, numBuckets), with the given
+   * options for the count of the distinct keys. The numbering of the keys still uses up to numBuckets reducers.
+   *
+   * @param table PTable to encode
+   * @param numBuckets Number of buckets, which is the maximum number of reducers used for numbering the keys
+   * @param options GroupingOptions for counting the distinct keys, or null to plan it (see Parallelism)
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return The encoded table and the dictionary from ids to keys
+   */
+  public static <K, V> DictionaryEncoded<K, V> dictionaryEncode(PTable<K, V> table, int numBuckets,
+          GroupingOptions options) {
+    if (numBuckets < 1) {
+      throw new PlanTimeException("Number of buckets must be positive, was " + numBuckets);
+    }
+    PTypeFamily ptf = table.getTypeFamily();
+    PType<K> keyType = table.getKeyType();
+
+    PTable<K, Long> distinctKeys = Parallelism.count(Derived.keys(table), options);
+    PTable<Integer, Pair<K, Long>> bucketed = distinctKeys.parallelDo("dictionaryEncode bucket",
+            MapFns.instrumentIfEnabled(table, new BucketKeysFn<K>(keyType, numBuckets), "SPTables.dictionaryEncode.bucket"),
+            ptf.tableOf(ptf.ints(), ptf.pairs(keyType, ptf.longs())));
+    PTable<Integer, Pair<Long, K>> numbered = SecondarySort.sortAndApply(bucketed,
+            DoFns.instrumentGroupedIfEnabled(table, new NumberKeysFn<K>(), "SPTables.dictionaryEncode.number"),
+            ptf.tableOf(ptf.ints(), ptf.pairs(ptf.longs(), keyType)), numBuckets);
+
+    ReadableData<Pair<Integer, Long>> bucketSizes = numbered
+            .mapValues(new MapFn<Pair<Long, K>, Long>() {
+              @Override
+              public Long map(Pair<Long, K> input) {
+                return input.first() + 1;
+              }
+            }, ptf.longs())
+            .groupByKey(1)
+            .combineValues(MAX_LONGS())
+            .asReadable(true);
+
+    PTable<Long, K> dictionary = numbered.parallelDo("dictionaryEncode assign",
+            DoFns.instrumentIfEnabled(table, new AssignIdsFn<K>(bucketSizes), "SPTables.dictionaryEncode.assign"),
+            ptf.tableOf(ptf.longs(), keyType),
+            ParallelDoOptions.builder().sourceTargets(bucketSizes.getSourceTargets()).build());
+
+    PTable<Long, V> encoded = lookupJoin(table, swapKeyValue(dictionary)).parallelDo("dictionaryEncode encode",
+            MapFns.instrumentIfEnabled(table, new MapFn<Pair<K, Pair<V, Long>>, Pair<Long, V>>() {
+              @Override
+              public Pair<Long, V> map(Pair<K, Pair<V, Long>> input) {
+                return Pair.of(input.second().second(), input.second().first());
+              }
+            }, "SPTables.dictionaryEncode.encode"),
+            ptf.tableOf(ptf.longs(), table.getValueType()));
+
+    return new DictionaryEncoded<K, V>(encoded, dictionary);
+  }
+
+  /**
+   * Map the ids of a table encoded by dictionaryEncode (or computed from one) back to the original keys.
+   * @param encoded PTable keyed by ids
+   * @param dictionary The dictionary from dictionaryEncode
+   * @param dictionaryFitsInMemory If true, the dictionary is loaded into memory in every map task and joined map-side,
+   *                               otherwise a reduce-side join is used
+   * @param <K> Original key type
+   * @param <T> Value type
+   * @return PTable keyed by the original keys
+   */
+  public static <K, T> PTable<K, T> dictionaryDecode(PTable<Long, T> encoded, PTable<Long, K> dictionary,
+          boolean dictionaryFitsInMemory) {
+    PTypeFamily ptf = encoded.getTypeFamily();
+    PTable<Long, Pair<T, K>> joined;
+    if (dictionaryFitsInMemory) {
+      joined = MapsideJoinStrategy.<Long, T, K>create().join(encoded, dictionary, JoinType.INNER_JOIN);
+    } else {
+      joined = new DefaultJoinStrategy<Long, T, K>().join(encoded, dictionary, JoinType.INNER_JOIN);
+    }
+    return joined.parallelDo("dictionaryDecode",
+            MapFns.instrumentIfEnabled(encoded, new MapFn<Pair<Long, Pair<T, K>>, Pair<K, T>>() {
+              @Override
+              public Pair<K, T> map(Pair<Long, Pair<T, K>> input) {
+                return Pair.of(input.second().second(), input.second().first());
+              }
+            }, "SPTables.dictionaryDecode"),
+            ptf.tableOf(dictionary.getValueType(), encoded.getValueType()));
+  }
+
+  private static class BucketKeysFn<K> extends MapFn<Pair<K, Long>, Pair<Integer, Pair<K, Long>>> {
+    private final KeyHasher<K> hasher;
+    private final int numBuckets;
+
+    public BucketKeysFn(PType<K> keyType, int numBuckets) {
+      this.hasher = new KeyHasher<K>(keyType);
+      this.numBuckets = numBuckets;
+    }
+
+    @Override
+    public void initialize() {
+      hasher.initialize(getConfiguration());
+    }
+
+    @Override
+    public Pair<Integer, Pair<K, Long>> map(Pair<K, Long> input) {
+      return Pair.of(hasher.bucket(input.first(), numBuckets), input);
+    }
+  }
+
+  private static class NumberKeysFn<K> extends DoFn<Pair<Integer, Iterable<Pair<K, Long>>>, Pair<Integer, Pair<Long, K>>> {
+    @Override
+    public void process(Pair<Integer, Iterable<Pair<K, Long>>> input, Emitter<Pair<Integer, Pair<Long, K>>> emitter) {
+      long index = 0;
+      for (Pair<K, Long> key: input.second()) {
+        emitter.emit(Pair.of(input.first(), Pair.of(index++, key.first())));
+      }
+    }
+  }
+
+  private static class AssignIdsFn<K> extends DoFn<Pair<Integer, Pair<Long, K>>, Pair<Long, K>> {
+    private final ReadableData<Pair<Integer, Long>> bucketSizes;
+    private transient Map<Integer, Long> offsets;
+
+    public AssignIdsFn(ReadableData<Pair<Integer, Long>> bucketSizes) {
+      this.bucketSizes = bucketSizes;
+    }
+
+    @Override
+    public void configure(Configuration conf) {
+      bucketSizes.configure(conf);
+    }
+
+    @Override
+    public void initialize() {
+      SortedMap<Integer, Long> sizes = Maps.newTreeMap();
+      try {
+        for (Pair<Integer, Long> size: bucketSizes.read(getContext())) {
+          sizes.put(size.first(), size.second());
+        }
+      } catch (IOException e) {
+        throw new CrunchRuntimeException("Could not read dictionary bucket sizes", e);
+      }
+      offsets = Maps.newHashMap();
+      long offset = 0;
+      for (Map.Entry<Integer, Long> size: sizes.entrySet()) {
+        offsets.put(size.getKey(), offset);
+        offset += size.getValue();
+      }
+    }
+
+    @Override
+    public void process(Pair<Integer, Pair<Long, K>> input, Emitter<Pair<Long, K>> emitter) {
+      emitter.emit(Pair.of(offsets.get(input.first()) + input.second().first(), input.second().second()));
+    }
+  }
+
+  /**
+   * Take a uniform random sample of at most k records for each key of a table, keeping at most 10000 keys in memory
+   * in each map task. See sampleByKey(table, k, seed, maxKeysInMemory).
+   * @param table PTable to sample
+   * @param k Maximum number of records to keep per key
+   * @param seed Seed for the random sampling
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return PTable with at most k records per key
+   */
+  public static <K, V> PTable<K, V> sampleByKey(PTable<K, V> table, int k, int seed) {
+    return sampleByKey(table, k, seed, 10000);
+  }
+
+  /**
+   * Take a uniform random sample of at most k records for each key of a table.
+   *
+   * Every record is given a pseudo-random priority by hashing its serialized form with the seed, and the k records
+   * with the lowest priority are kept for each key. Copies of the same record are told apart by mixing the hash with
+   * how many copies of it the map task has seen before, so they are sampled independently of each other. This is done
+   * map-side for up to maxKeysInMemory keys at a time, and again in a combiner and reducer, so at most about k records
+   * per key and map task are shuffled. The sample of distinct records only depends on the records and the seed, not
+   * on how they are split between tasks or how often the reservoirs are flushed; only which copies of a repeated
+   * record are kept depends on the splits. Each map task counts the copies of up to 100000 distinct records at a time.
+   *
+   * @param table PTable to sample. Key and value types must be from the Avro or Writable type family
+   * @param k Maximum number of records to keep per key
+   * @param seed Seed for the random sampling
+   * @param maxKeysInMemory Maximum number of keys to keep samples for in memory in each map task, after which the
+   *                        samples are emitted and started over
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return PTable with at most k records per key
+   */
+  public static <K, V> PTable<K, V> sampleByKey(PTable<K, V> table, int k, int seed, int maxKeysInMemory) {
+    return sampleByKey(table, k, seed, maxKeysInMemory, null);
+  }
+
+  /**
+   * Take a uniform random sample of at most k records for each key of a table like sampleByKey(table, k, seed,
+   * maxKeysInMemory), grouping with the given options.
+   *
+   * @param table PTable to sample. Key and value types must be from the Avro or Writable type family
+   * @param k Maximum number of records to keep per key
+   * @param seed Seed for the random sampling
+   * @param maxKeysInMemory Maximum number of keys to keep samples for in memory in each map task, after which the
+   *                        samples are emitted and started over
+   * @param options GroupingOptions for the shuffle, or null to plan it (see Parallelism)
+   * @param <K> Key type
+   * @param <V> Value type
+   * @return PTable with at most k records per key
+   */
+  public static <K, V> PTable<K, V> sampleByKey(PTable<K, V> table, int k, int seed, int maxKeysInMemory,
+          GroupingOptions options) {
+    if (k < 1) {
+      throw new PlanTimeException("Sample size must be positive, was " + k);
+    }
+    PTypeFamily ptf = table.getTypeFamily();
+    PType<Pair<Long, V>> prioritizedType = ptf.pairs(ptf.longs(), table.getValueType());
+    return table
+            .parallelDo("sampleByKey", DoFns.instrumentIfEnabled(table,
+                    new ReservoirFn<K, V>(table.getKeyType(), table.getValueType(), k, seed, maxKeysInMemory),
+                    "SPTables.sampleByKey.reservoir"),
+                    ptf.tableOf(table.getKeyType(), prioritizedType))
+            .groupByKey(Parallelism.plan(table, true, options))
+            .combineValues(new ReservoirAggregator<V>(prioritizedType, k))
+            .parallelDo(MapFns.instrumentIfEnabled(table, new MapFn<Pair<K, Pair<Long, V>>, Pair<K, V>>() {
+              @Override
+              public Pair<K, V> map(Pair<K, Pair<Long, V>> input) {
+                return Pair.of(input.first(), input.second().second());
+              }
+            }, "SPTables.sampleByKey.strip"), table.getPTableType());
+  }
+
+  /**
+   * The k values with the lowest priority seen so far
+   */
+  private static class Reservoir<V> {
+    private static final Comparator<Pair<Long, ?>> HIGHEST_PRIORITY_FIRST = new Comparator<Pair<Long, ?>>() {
+      @Override
+      public int compare(Pair<Long, ?> o1, Pair<Long, ?> o2) {
+        return o2.first().compareTo(o1.first());
+      }
+    };
+
+    private final int k;
+    private final PriorityQueue<Pair<Long, V>> values;
+
+    public Reservoir(int k) {
+      this.k = k;
+      this.values = new PriorityQueue<Pair<Long, V>>(k + 1, HIGHEST_PRIORITY_FIRST);
+    }
+
+    public boolean accepts(long priority) {
+      return values.size() < k || priority < values.peek().first();
+    }
+
+    public void add(Pair<Long, V> value) {
+      values.add(value);
+      if (values.size() > k) {
+        values.poll();
+      }
+    }
+
+    public Collection<Pair<Long, V>> values() {
+      return values;
+    }
+  }
+
+  private static class ReservoirFn<K, V> extends DoFn<Pair<K, V>, Pair<K, Pair<Long, V>>> {
+    private static final int MAX_OCCURRENCES = 100000;
+
+    private final PType<K> keyType;
+    private final PType<V> valueType;
+    private final KeyHasher<Pair<K, V>> hasher;
+    private final int k;
+    private final int maxKeysInMemory;
+    private transient Map<K, Reservoir<V>> reservoirs;
+    private transient Map<Long, Integer> occurrences;
+
+    public ReservoirFn(PType<K> keyType, PType<V> valueType, int k, int seed, int maxKeysInMemory) {
+      this.keyType = keyType;
+      this.valueType = valueType;
+      this.hasher = new KeyHasher<Pair<K, V>>(keyType.getFamily().pairs(keyType, valueType), seed);
+      this.k = k;
+      this.maxKeysInMemory = maxKeysInMemory;
+    }
+
+    @Override
+    public void initialize() {
+      Configuration conf = getConfiguration() == null ? new Configuration() : getConfiguration();
+      keyType.initialize(conf);
+      valueType.initialize(conf);
+      hasher.initialize(conf);
+      reservoirs = Maps.newHashMap();
+      occurrences = Maps.newHashMap();
+    }
+
+    @Override
+    public void process(Pair<K, V> input, Emitter<Pair<K, Pair<Long, V>>> emitter) {
+      // the hash alone would keep or drop all copies of a record together
+      long hash = hasher.hash64(input);
+      Integer occurrence = occurrences.get(hash);
+      if (occurrence == null) {
+        if (occurrences.size() >= MAX_OCCURRENCES) {
+          occurrences.clear();
+        }
+        occurrence = 0;
+      }
+      occurrences.put(hash, occurrence + 1);
+      long priority = Similarity.hash(hash, occurrence);
+      Reservoir<V> reservoir = reservoirs.get(input.first());
+      if (reservoir == null) {
+        if (reservoirs.size() >= maxKeysInMemory) {
+          flush(emitter);
+        }
+        reservoir = new Reservoir<V>(k);
+        reservoirs.put(keyType.getDetachedValue(input.first()), reservoir);
+      }
+      if (reservoir.accepts(priority)) {
+        reservoir.add(Pair.of(priority, valueType.getDetachedValue(input.second())));
+      }
+    }
+
+    @Override
+    public void cleanup(Emitter<Pair<K, Pair<Long, V>>> emitter) {
+      flush(emitter);
+    }
+
+    private void flush(Emitter<Pair<K, Pair<Long, V>>> emitter) {
+      for (Map.Entry<K, Reservoir<V>> reservoir: reservoirs.entrySet()) {
+        for (Pair<Long, V> value: reservoir.getValue().values()) {
+          emitter.emit(Pair.of(reservoir.getKey(), value));
+        }
+      }
+      reservoirs.clear();
+    }
+  }
+
+  private static class ReservoirAggregator<V> implements Aggregator<Pair<Long, V>> {
+    private final PType<Pair<Long, V>> prioritizedType;
+    private final int k;
+    private transient Reservoir<V> reservoir;
+
+    public ReservoirAggregator(PType<Pair<Long, V>> prioritizedType, int k) {
+      this.prioritizedType = prioritizedType;
+      this.k = k;
+    }
+
+    @Override
+    public void initialize(Configuration conf) {
+      prioritizedType.initialize(conf == null ? new Configuration() : conf);
+    }
+
+    @Override
+    public void reset() {
+      reservoir = new Reservoir<V>(k);
+    }
+
+    @Override
+    public void update(Pair<Long, V> value) {
+      if (reservoir.accepts(value.first())) {
+        reservoir.add(prioritizedType.getDetachedValue(value));
+      }
+    }
+
+    @Override
+    public Iterable<Pair<Long, V>> results() {
+      return Lists.newArrayList(reservoir.values());
+    }
+  }
+
+  /**
+   * Split the events of each key (such as a user) into sessions: runs of events, ordered by time, where no two
+   * consecutive events are more than gap apart. The events of each key are sorted by timestamp in the shuffle with a
+   * secondary sort and streamed through the reducer, so only the events of the current session are held in memory.
+   * Use sessionSummaries if only the start, end and size of the sessions are needed.
+   * @param table PTable of keys to events
+   * @param timestampFn Extracts the timestamp of an event
+   * @param gap Largest gap between two consecutive events of the same session, in the unit of the timestamps
+   * @param <K> Key type
+   * @param <E> Event type
+   * @return PTable with a record per session, with the events of the session in time order
+   */
+  public static <K, E> PTable<K, Collection<E>> sessionize(PTable<K, E> table, MapFn<E, Long> timestampFn, long gap) {
+    return sessionize(table, timestampFn, gap, null);
+  }
+
+  /**
+   * Split the events of each key into sessions like sessionize(table, timestampFn, gap), with the given options for
+   * the secondary sort, which only takes the number of reducers from them.
+   * @param table PTable of keys to events
+   * @param timestampFn Extracts the timestamp of an event
+   * @param gap Largest gap between two consecutive events of the same session, in the unit of the timestamps
+   * @param options GroupingOptions for the shuffle, or null to plan it (see Parallelism)
+   * @param <K> Key type
+   * @param <E> Event type
+   * @return PTable with a record per session, with the events of the session in time order
+   */
+  public static <K, E> PTable<K, Collection<E>> sessionize(PTable<K, E> table, MapFn<E, Long> timestampFn, long gap,
+          GroupingOptions options) {
+    PTypeFamily ptf = table.getTypeFamily();
+    return SecondarySort.sortAndApply(byTimestamp(table, timestampFn),
+            DoFns.instrumentGroupedIfEnabled(table, new SessionizeFn<K, E>(table.getValueType(), gap),
+                    "SPTables.sessionize"),
+            ptf.tableOf(table.getKeyType(), ptf.collections(table.getValueType())),
+            Parallelism.plan(table, false, options).getNumReducers());
+  }
+
+  /**
+   * Like sessionize, but only emits the start time, end time and number of events of each session, so the memory used
+   * per key is constant no matter how long the sessions are.
+   * @param table PTable of keys to events
+   * @param timestampFn Extracts the timestamp of an event
+   * @param gap Largest gap between two consecutive events of the same session, in the unit of the timestamps
+   * @param <K> Key type
+   * @param <E> Event type
+   * @return PTable with a (start timestamp, end timestamp, number of events) record per session, in time order
+   */
+  public static <K, E> PTable<K, Tuple3<Long, Long, Long>> sessionSummaries(PTable<K, E> table,
+                                                                          MapFn<E, Long> timestampFn, long gap) {
+    PTypeFamily ptf = table.getTypeFamily();
+    return sessionSummaries(table, timestampFn, gap, new MapFn<Pair<Long, E>, Tuple3<Long, Long, Long>>() {
+      @Override
+      public Tuple3<Long, Long, Long> map(Pair<Long, E> input) {
+        return Tuple3.of(input.first(), input.first(), 1L);
+      }
+    }, tripAggregator(MIN_LONGS(), MAX_LONGS(), SUM_LONGS()), ptf.triples(ptf.longs(), ptf.longs(), ptf.longs()));
+  }
+
+  /**
+   * Like sessionize, but folds the events of each session into a summary instead of collecting them, so the memory
+   * used per key only depends on the aggregator. Each event is mapped to a value with valueFn, and the values of a
+   * session are combined with the aggregator, which is reset at the start of every session. Each of its results is
+   * emitted as a record for the session.
+   * @param table PTable of keys to events
+   * @param timestampFn Extracts the timestamp of an event
+   * @param gap Largest gap between two consecutive events of the same session, in the unit of the timestamps
+   * @param valueFn Maps the timestamp and an event to the value to aggregate
+   * @param aggregator Combines the values of the events of a session into a summary
+   * @param summaryType PType of the summary
+   * @param <K> Key type
+   * @param <E> Event type
+   * @param <A> Summary type
+   * @return PTable with the summaries of each session, in time order
+   */
+  public static <K, E, A> PTable<K, A> sessionSummaries(PTable<K, E> table, MapFn<E, Long> timestampFn, long gap,
+          MapFn<Pair<Long, E>, A> valueFn, Aggregator<A> aggregator, PType<A> summaryType) {
+    return sessionSummaries(table, timestampFn, gap, valueFn, aggregator, summaryType, null);
+  }
+
+  /**
+   * Fold the events of each session into a summary like sessionSummaries(table, timestampFn, gap, valueFn, aggregator,
+   * summaryType), with the given options for the secondary sort, which only takes the number of reducers from them.
+   * @param table PTable of keys to events
+   * @param timestampFn Extracts the timestamp of an event
+   * @param gap Largest gap between two consecutive events of the same session, in the unit of the timestamps
+   * @param valueFn Maps the timestamp and an event to the value to aggregate
+   * @param aggregator Combines the values of the events of a session into a summary
+   * @param summaryType PType of the summary
+   * @param options GroupingOptions for the shuffle, or null to plan it (see Parallelism)
+   * @param <K> Key type
+   * @param <E> Event type
+   * @param <A> Summary type
+   * @return PTable with the summaries of each session, in time order
+   */
+  public static <K, E, A> PTable<K, A> sessionSummaries(PTable<K, E> table, MapFn<E, Long> timestampFn, long gap,
+          MapFn<Pair<Long, E>, A> valueFn, Aggregator<A> aggregator, PType<A> summaryType, GroupingOptions options) {
+    PTypeFamily ptf = table.getTypeFamily();
+    return SecondarySort.sortAndApply(byTimestamp(table, timestampFn),
+            DoFns.instrumentGroupedIfEnabled(table, new SessionSummaryFn<K, E, A>(gap, valueFn, aggregator),
+                    "SPTables.sessionSummaries"),
+            ptf.tableOf(table.getKeyType(), summaryType),
+            Parallelism.plan(table, false, options).getNumReducers());
+  }
+
+  private static <K, E> PTable<K, Pair<Long, E>> byTimestamp(PTable<K, E> table, final MapFn<E, Long> timestampFn) {
+    PTypeFamily ptf = table.getTypeFamily();
+    return table.parallelDo(MapFns.instrumentIfEnabled(table, new MapFn<Pair<K, E>, Pair<K, Pair<Long, E>>>() {
+      @Override
+      public void configure(Configuration conf) {
+        timestampFn.configure(conf);
+      }
+
+      @Override
+      public void initialize() {
+        timestampFn.setContext(getContext());
+        timestampFn.initialize();
+      }
+
+      @Override
+      public Pair<K, Pair<Long, E>> map(Pair<K, E> input) {
+        return Pair.of(input.first(), Pair.of(timestampFn.map(input.second()), input.second()));
+      }
+    }, "SPTables.sessionize.timestamp"), ptf.tableOf(table.getKeyType(), ptf.pairs(ptf.longs(), table.getValueType())));
+  }
+
+  private static class SessionizeFn<K, E> extends DoFn<Pair<K, Iterable<Pair<Long, E>>>, Pair<K, Collection<E>>> {
+    private final PType<E> eventType;
+    private final long gap;
+
+    public SessionizeFn(PType<E> eventType, long gap) {
+      this.eventType = eventType;
+      this.gap = gap;
+    }
+
+    @Override
+    public void initialize() {
+      eventType.initialize(getConfiguration() == null ? new Configuration() : getConfiguration());
+    }
+
+    @Override
+    public void process(Pair<K, Iterable<Pair<Long, E>>> input, Emitter<Pair<K, Collection<E>>> emitter) {
+      List<E> session = Lists.newArrayList();
+      long last = 0;
+      for (Pair<Long, E> event: input.second()) {
+        if (!session.isEmpty() && event.first() - last > gap) {
+          emitter.emit(Pair.<K, Collection<E>>of(input.first(), session));
+          session = Lists.newArrayList();
+        }
+        session.add(eventType.getDetachedValue(event.second()));
+        last = event.first();
+      }
+      if (!session.isEmpty()) {
+        emitter.emit(Pair.<K, Collection<E>>of(input.first(), session));
+      }
+    }
+  }
+
+  private static class SessionSummaryFn<K, E, A> extends DoFn<Pair<K, Iterable<Pair<Long, E>>>, Pair<K, A>> {
+    private final long gap;
+    private final MapFn<Pair<Long, E>, A> valueFn;
+    private final Aggregator<A> aggregator;
+
+    public SessionSummaryFn(long gap, MapFn<Pair<Long, E>, A> valueFn, Aggregator<A> aggregator) {
+      this.gap = gap;
+      this.valueFn = valueFn;
+      this.aggregator = aggregator;
+    }
+
+    @Override
+    public void configure(Configuration conf) {
+      valueFn.configure(conf);
+    }
+
+    @Override
+    public void initialize() {
+      valueFn.setContext(getContext());
+      valueFn.initialize();
+      aggregator.initialize(getConfiguration() == null ? new Configuration() : getConfiguration());
+    }
+
+    @Override
+    public void process(Pair<K, Iterable<Pair<Long, E>>> input, Emitter<Pair<K, A>> emitter) {
+      long last = 0;
+      boolean inSession = false;
+      for (Pair<Long, E> event: input.second()) {
+        if (inSession && event.first() - last > gap) {
+          emitSession(input.first(), emitter);
+          inSession = false;
+        }
+        if (!inSession) {
+          aggregator.reset();
+          inSession = true;
+        }
+        aggregator.update(valueFn.map(event));
+        last = event.first();
+      }
+      if (inSession) {
+        emitSession(input.first(), emitter);
+      }
+    }
+
+    private void emitSession(K key, Emitter<Pair<K, A>> emitter) {
+      for (A summary: aggregator.results()) {
+        emitter.emit(Pair.of(key, summary));
+      }
+    }
+  }
+
+  /**
+   * Output type of skewReport: the heaviest keys of a table and the distribution of the number of records per key,
+   * estimated from a sample. Partial reports over disjoint sets of keys can be merged together.
+   * @param <K> Key type
+   */
+  public static class SkewReport<K> {
+    private final double sampleRate;
+    private final int topKeys;
+    private long sampledRecords = 0;
+    private long sampledBytes = 0;
+    private final PriorityQueue<Tuple3<K, Long, Long>> heaviest;
+    private final SortedMap<Long, Long> keysBySampledCount = Maps.newTreeMap();
+
+    public SkewReport(double sampleRate, int topKeys) {
+      this.sampleRate = sampleRate;
+      this.topKeys = topKeys;
+      this.heaviest = new PriorityQueue<Tuple3<K, Long, Long>>(Math.max(1, topKeys + 1), BY_COUNT);
+    }
+
+    void add(K key, long records, long bytes) {
+      sampledRecords += records;
+      sampledBytes += bytes;
+      addCount(records, 1L);
+      addHeavyKey(Tuple3.of(key, records, bytes));
+    }
+
+    private void addCount(long sampledCount, long keys) {
+      Long existing = keysBySampledCount.get(sampledCount);
+      keysBySampledCount.put(sampledCount, existing == null ? keys : existing + keys);
+    }
+
+    private void addHeavyKey(Tuple3<K, Long, Long> key) {
+      heaviest.add(key);
+      if (heaviest.size() > topKeys) {
+        heaviest.poll();
+      }
+    }
+
+    /**
+     * Merge another report, covering a disjoint set of keys sampled at the same rate, into this one
+     */
+    public void merge(SkewReport<K> other) {
+      sampledRecords += other.sampledRecords;
+      sampledBytes += other.sampledBytes;
+      for (Map.Entry<Long, Long> entry: other.keysBySampledCount.entrySet()) {
+        addCount(entry.getKey(), entry.getValue());
+      }
+      for (Tuple3<K, Long, Long> key: other.heaviest) {
+        addHeavyKey(key);
+      }
+    }
+
+    public double getSampleRate() {
+      return sampleRate;
+    }
+
+    public long getEstimatedRecords() {
+      return scale(sampledRecords);
+    }
+
+    public long getEstimatedBytes() {
+      return scale(sampledBytes);
+    }
+
+    /**
+     * @return the heaviest keys with their estimated number of records and serialized bytes, heaviest first
+     */
+    public List<Tuple3<K, Long, Long>> getHeavyKeys() {
+      List<Tuple3<K, Long, Long>> keys = Lists.newArrayList();
+      for (Tuple3<K, Long, Long> key: heaviest) {
+        keys.add(Tuple3.of(key.first(), scale(key.second()), scale(key.third())));
+      }
+      Collections.sort(keys, Collections.reverseOrder(BY_COUNT));
+      return keys;
+    }
+
+    /**
+     * Estimate a percentile of the number of records per key, using the "nearest rank" definition as in Percentiles.
+     * Only keys which appear in the sample are taken into account, so at low sample rates this is biased towards the
+     * larger groups.
+     * @param percentile Percentile to estimate (in the range 0.0 - 1.0)
+     * @return estimated number of records per key at that percentile
+     */
+    public long getGroupSizePercentile(double percentile) {
+      long keys = 0;
+      for (long count: keysBySampledCount.values()) {
+        keys += count;
+      }
+      long rank = Math.max((long) Math.ceil(percentile * keys) - 1, 0);
+      long seen = 0;
+      for (Map.Entry<Long, Long> entry: keysBySampledCount.entrySet()) {
+        seen += entry.getValue();
+        if (seen > rank) {
+          return scale(entry.getKey());
+        }
+      }
+      return 0;
+    }
+
+    private long scale(long sampled) {
+      return Math.round(sampled / sampleRate);
+    }
+
+    private static final Comparator<Tuple3<?, Long, Long>> BY_COUNT = new Comparator<Tuple3<?, Long, Long>>() {
+      @Override
+      public int compare(Tuple3<?, Long, Long> a, Tuple3<?, Long, Long> b) {
+        return a.second().compareTo(b.second());
+      }
+    };
+
+    /**
+     * Create a PType for the report type, to be stored as a derived type from Crunch primitives
+     * @param keyPType PType for the K type, whose family will also be used to create the derived type
+     * @param <K> Key type
+     * @return PType for serializing SkewReport&lt;K&gt;
+     */
+    public static <K> PType<SkewReport<K>> pType(PType<K> keyPType) {
+      PTypeFamily ptf = keyPType.getFamily();
+
+      @SuppressWarnings("unchecked")
+      Class<SkewReport<K>> reportClass = (Class<SkewReport<K>>)(Class)SkewReport.class;
+
+      return ptf.derived(reportClass,
+              new MapFn<Tuple4<Pair<Double, Integer>, Pair<Long, Long>, Collection<Tuple3<K, Long, Long>>, Collection<Pair<Long, Long>>>, SkewReport<K>>() {
+        @Override
+        public SkewReport<K> map(Tuple4<Pair<Double, Integer>, Pair<Long, Long>, Collection<Tuple3<K, Long, Long>>, Collection<Pair<Long, Long>>> input) {
+          SkewReport<K> report = new SkewReport<K>(input.first().first(), input.first().second());
+          report.sampledRecords = input.second().first();
+          report.sampledBytes = input.second().second();
+          for (Tuple3<K, Long, Long> key: input.third()) {
+            report.addHeavyKey(key);
+          }
+          for (Pair<Long, Long> count: input.fourth()) {
+            report.addCount(count.first(), count.second());
+          }
+          return report;
+        }
+      }, new MapFn<SkewReport<K>, Tuple4<Pair<Double, Integer>, Pair<Long, Long>, Collection<Tuple3<K, Long, Long>>, Collection<Pair<Long, Long>>>>() {
+        @Override
+        public Tuple4<Pair<Double, Integer>, Pair<Long, Long>, Collection<Tuple3<K, Long, Long>>, Collection<Pair<Long, Long>>> map(SkewReport<K> input) {
+          Collection<Pair<Long, Long>> counts = Lists.newArrayList();
+          for (Map.Entry<Long, Long> entry: input.keysBySampledCount.entrySet()) {
+            counts.add(Pair.of(entry.getKey(), entry.getValue()));
+          }
+          return Tuple4.of(Pair.of(input.sampleRate, input.topKeys), Pair.of(input.sampledRecords, input.sampledBytes),
+                  (Collection<Tuple3<K, Long, Long>>) Lists.newArrayList(input.heaviest), counts);
+        }
+      }, ptf.quads(ptf.pairs(ptf.doubles(), ptf.ints()), ptf.pairs(ptf.longs(), ptf.longs()),
+              ptf.collections(ptf.triples(keyPType, ptf.longs(), ptf.longs())),
+              ptf.collections(ptf.pairs(ptf.longs(), ptf.longs()))));
+    }
+  }
+
+  /**
+   * Output type of dictionaryEncode: a table whose keys have been replaced by dense long ids, and the dictionary from
+   * the ids back to the original keys
+   * @param <K> Original key type
+   * @param <V> Value type
+   */
+  public static class DictionaryEncoded<K, V> {
+    public final PTable<Long, V> table;
+    public final PTable<Long, K> dictionary;
+
+    public DictionaryEncoded(PTable<Long, V> table, PTable<Long, K> dictionary) {
+      this.table = table;
+      this.dictionary = dictionary;
+    }
+
+    /**
+     * Map a table computed from the encoded table back to the original keys, see SPTables.dictionaryDecode
+     */
+    public <T> PTable<K, T> decode(PTable<Long, T> encoded, boolean dictionaryFitsInMemory) {
+      return dictionaryDecode(encoded, dictionary, dictionaryFitsInMemory);
+    }
   }
 }
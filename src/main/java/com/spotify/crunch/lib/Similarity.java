@@ -0,0 +1,428 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.crunch.Aggregator;
+import org.apache.crunch.CrunchRuntimeException;
+import org.apache.crunch.DoFn;
+import org.apache.crunch.Emitter;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.MapFn;
+import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
+import org.apache.crunch.lib.join.DefaultJoinStrategy;
+import org.apache.crunch.lib.join.JoinType;
+import org.apache.crunch.types.PType;
+import org.apache.crunch.types.PTypeFamily;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.crunch.fn.Aggregators.MAX_DOUBLES;
+import static org.apache.crunch.fn.Aggregators.SUM_LONGS;
+import static org.apache.crunch.fn.Aggregators.pairAggregator;
+
+/**
+ * Approximate similarity of items by the overlap of their members, such as tracks by their listeners
+ */
+public class Similarity {
+
+  /**
+   * Find pairs of items whose sets of members are similar, without comparing all pairs of items.
+   *
+   * Each item gets a MinHash signature of bands * rowsPerBand hashes of its members, built map-side and in a combiner,
+   * so only about one signature per item and map task is shuffled. The signatures are split into bands, and items
+   * sharing all the rows of any band become candidates, whose Jaccard similarity is estimated as the fraction of
+   * equal hashes in their signatures. A pair with Jaccard similarity s becomes a candidate with probability
+   * 1 - (1 - s^rowsPerBand)^bands, so more rows per band find fewer dissimilar pairs and more bands miss fewer similar
+   * ones. Use rescore to get the exact similarity of the candidates.
+   *
+   * LSH buckets with more than 1000 items (usually caused by items with very few members) are skipped, and counted
+   * in the counter "crunch-lib: Similarity" / "skippedBuckets".
+   *
+   * @param memberships PTable of (item, member) pairs, such as (track, listener). Duplicates are allowed
+   * @param bands Number of bands
+   * @param rowsPerBand Number of hashes in each band
+   * @param minSimilarity Smallest estimated similarity of the pairs to keep (in the range 0.0 - 1.0)
+   * @param <I> Item type
+   * @param <M> Member type
+   * @return PTable of candidate pairs of items with their estimated Jaccard similarity. Each pair is only emitted
+   * once, in an arbitrary but consistent order
+   */
+  public static <I, M> PTable<Pair<I, I>, Double> similarItems(PTable<I, M> memberships, int bands, int rowsPerBand,
+          double minSimilarity) {
+    return similarItems(memberships, bands, rowsPerBand, minSimilarity, 1000);
+  }
+
+  /**
+   * Find pairs of items whose sets of members are similar, like similarItems(memberships, bands, rowsPerBand,
+   * minSimilarity), skipping LSH buckets of more than maxBucketSize items.
+   *
+   * @param memberships PTable of (item, member) pairs, such as (track, listener). Duplicates are allowed
+   * @param bands Number of bands
+   * @param rowsPerBand Number of hashes in each band
+   * @param minSimilarity Smallest estimated similarity of the pairs to keep (in the range 0.0 - 1.0)
+   * @param maxBucketSize Largest number of items in an LSH bucket to compare pairwise
+   * @param <I> Item type
+   * @param <M> Member type
+   * @return PTable of candidate pairs of items with their estimated Jaccard similarity
+   */
+  public static <I, M> PTable<Pair<I, I>, Double> similarItems(PTable<I, M> memberships, int bands, int rowsPerBand,
+          double minSimilarity, int maxBucketSize) {
+    return similarItems(memberships, bands, rowsPerBand, minSimilarity, maxBucketSize, null);
+  }
+
+  /**
+   * Find pairs of items whose sets of members are similar, like similarItems(memberships, bands, rowsPerBand,
+   * minSimilarity, maxBucketSize), grouping with the given options.
+   *
+   * @param memberships PTable of (item, member) pairs, such as (track, listener). Duplicates are allowed
+   * @param bands Number of bands
+   * @param rowsPerBand Number of hashes in each band
+   * @param minSimilarity Smallest estimated similarity of the pairs to keep (in the range 0.0 - 1.0)
+   * @param maxBucketSize Largest number of items in an LSH bucket to compare pairwise
+   * @param options GroupingOptions for the shuffles, or null to plan them (see Parallelism)
+   * @param <I> Item type
+   * @param <M> Member type
+   * @return PTable of candidate pairs of items with their estimated Jaccard similarity
+   */
+  public static <I, M> PTable<Pair<I, I>, Double> similarItems(PTable<I, M> memberships, int bands, int rowsPerBand,
+          double minSimilarity, int maxBucketSize, GroupingOptions options) {
+    if (bands < 1 || rowsPerBand < 1) {
+      throw new PlanTimeException("Bands and rows per band must be positive, were " + bands + " and " + rowsPerBand);
+    }
+    PTypeFamily ptf = memberships.getTypeFamily();
+    PType<I> itemType = memberships.getKeyType();
+    PTable<I, ByteBuffer> signatures = memberships
+            .parallelDo("similarItems signatures", DoFns.instrumentIfEnabled(memberships,
+                    new PartialSignaturesFn<I, M>(itemType, memberships.getValueType(), bands * rowsPerBand, 10000),
+                    "Similarity.similarItems.signatures"),
+                    ptf.tableOf(itemType, ptf.bytes()))
+            .groupByKey(Parallelism.plan(memberships, true, options))
+            .combineValues(new MinSignatures());
+
+    PTable<Pair<Integer, Long>, Pair<I, ByteBuffer>> banded = signatures
+            .parallelDo("similarItems bands", DoFns.instrumentIfEnabled(memberships,
+                    new BandsFn<I>(bands, rowsPerBand), "Similarity.similarItems.bands"),
+                    ptf.tableOf(ptf.pairs(ptf.ints(), ptf.longs()), ptf.pairs(itemType, ptf.bytes())));
+    PTable<Pair<I, I>, Double> candidates = banded
+            .groupByKey(Parallelism.plan(banded, false, options))
+            .parallelDo("similarItems candidates", DoFns.instrumentGroupedIfEnabled(memberships,
+                    new CandidatesFn<I>(itemType, minSimilarity, maxBucketSize), "Similarity.similarItems.candidates"),
+                    ptf.tableOf(ptf.pairs(itemType, itemType), ptf.doubles()));
+    return candidates
+            .groupByKey(Parallelism.plan(candidates, true, options))
+            .combineValues(MAX_DOUBLES());
+  }
+
+  /**
+   * Compute the exact Jaccard similarity of candidate pairs of items, such as those found by similarItems. The
+   * memberships are first filtered down to the items of some candidate pair with SPTables.semiJoin, so the memberships
+   * of the other items are mostly dropped map-side, and no set of members is held in memory.
+   *
+   * @param candidates PTable of pairs of items, whose values are ignored. A pair may occur more than once
+   * @param memberships PTable of (item, member) pairs the candidates were found from. Duplicates are allowed
+   * @param <I> Item type
+   * @param <M> Member type
+   * @param <V> Value type of the candidates
+   * @return PTable of the candidate pairs with their exact Jaccard similarity
+   */
+  public static <I, M, V> PTable<Pair<I, I>, Double> rescore(PTable<Pair<I, I>, V> candidates,
+          PTable<I, M> memberships) {
+    return rescore(candidates, memberships, null);
+  }
+
+  /**
+   * Compute the exact Jaccard similarity of candidate pairs of items like rescore(candidates, memberships), grouping
+   * with the given options. The join only takes the number of reducers from them.
+   *
+   * @param candidates PTable of pairs of items, whose values are ignored. A pair may occur more than once
+   * @param memberships PTable of (item, member) pairs the candidates were found from. Duplicates are allowed
+   * @param options GroupingOptions for the shuffles, or null to plan them (see Parallelism)
+   * @param <I> Item type
+   * @param <M> Member type
+   * @param <V> Value type of the candidates
+   * @return PTable of the candidate pairs with their exact Jaccard similarity
+   */
+  public static <I, M, V> PTable<Pair<I, I>, Double> rescore(PTable<Pair<I, I>, V> candidates,
+          PTable<I, M> memberships, GroupingOptions options) {
+    PTypeFamily ptf = memberships.getTypeFamily();
+    PType<I> itemType = memberships.getKeyType();
+    PType<Pair<I, I>> pairType = candidates.getKeyType();
+
+    // a pair occurring twice would count every member of either item twice, as if it belonged to both
+    PTable<I, Pair<I, I>> itemsOfCandidates = Parallelism.count(candidates.keys(), options).parallelDo(
+            "rescore candidates",
+            DoFns.instrumentIfEnabled(memberships, new DoFn<Pair<Pair<I, I>, Long>, Pair<I, Pair<I, I>>>() {
+              @Override
+              public void process(Pair<Pair<I, I>, Long> input, Emitter<Pair<I, Pair<I, I>>> emitter) {
+                emitter.emit(Pair.of(input.first().first(), input.first()));
+                emitter.emit(Pair.of(input.first().second(), input.first()));
+              }
+            }, "Similarity.rescore.candidates"), ptf.tableOf(itemType, pairType));
+
+    PTable<I, M> candidateMemberships = SPTables.semiJoin(memberships, itemsOfCandidates.keys(), 0.01, options);
+    PTable<I, M> distinctMemberships = Parallelism.count(candidateMemberships, options).parallelDo("rescore distinct",
+            MapFns.instrumentIfEnabled(memberships, new MapFn<Pair<Pair<I, M>, Long>, Pair<I, M>>() {
+              @Override
+              public Pair<I, M> map(Pair<Pair<I, M>, Long> input) {
+                return input.first();
+              }
+            }, "Similarity.rescore.distinct"), memberships.getPTableType());
+
+    // each member of the pair is seen once if it belongs to one of the items and twice if it belongs to both
+    int numReducers = Parallelism.plan(distinctMemberships, false, options).getNumReducers();
+    PTable<Pair<I, I>, M> members = new DefaultJoinStrategy<I, Pair<I, I>, M>(numReducers)
+            .join(itemsOfCandidates, distinctMemberships, JoinType.INNER_JOIN)
+            .parallelDo("rescore members", MapFns.instrumentIfEnabled(memberships,
+                    new MapFn<Pair<I, Pair<Pair<I, I>, M>>, Pair<Pair<I, I>, M>>() {
+                      @Override
+                      public Pair<Pair<I, I>, M> map(Pair<I, Pair<Pair<I, I>, M>> input) {
+                        return input.second();
+                      }
+                    }, "Similarity.rescore.members"), ptf.tableOf(pairType, memberships.getValueType()));
+    PTable<Pair<I, I>, Pair<Long, Long>> overlaps = Parallelism.count(members, options)
+            .parallelDo("rescore overlap", MapFns.instrumentIfEnabled(memberships,
+                    new MapFn<Pair<Pair<Pair<I, I>, M>, Long>, Pair<Pair<I, I>, Pair<Long, Long>>>() {
+                      @Override
+                      public Pair<Pair<I, I>, Pair<Long, Long>> map(Pair<Pair<Pair<I, I>, M>, Long> input) {
+                        return Pair.of(input.first().first(), Pair.of(input.second() > 1 ? 1L : 0L, 1L));
+                      }
+                    }, "Similarity.rescore.overlap"), ptf.tableOf(pairType, ptf.pairs(ptf.longs(), ptf.longs())));
+    return overlaps
+            .groupByKey(Parallelism.plan(overlaps, true, options))
+            .combineValues(pairAggregator(SUM_LONGS(), SUM_LONGS()))
+            .mapValues(MapFns.instrumentIfEnabled(memberships, new MapFn<Pair<Long, Long>, Double>() {
+              @Override
+              public Double map(Pair<Long, Long> input) {
+                return (double) input.first() / input.second();
+              }
+            }, "Similarity.rescore.jaccard"), ptf.doubles());
+  }
+
+  /**
+   * The i-th of a family of hash functions of a member hash
+   */
+  static long hash(long memberHash, int i) {
+    long h = memberHash + (i + 1) * 0x9E3779B97F4A7C15L;
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+
+  private static ByteBuffer toBytes(long[] signature) {
+    ByteBuffer bytes = ByteBuffer.allocate(8 * signature.length);
+    bytes.asLongBuffer().put(signature);
+    return bytes;
+  }
+
+  private static long[] fromBytes(ByteBuffer bytes) {
+    long[] signature = new long[bytes.remaining() / 8];
+    bytes.duplicate().asLongBuffer().get(signature);
+    return signature;
+  }
+
+  /**
+   * Builds MinHash signatures for the items seen map-side, emitting them when there are too many items or the task ends
+   */
+  private static class PartialSignaturesFn<I, M> extends DoFn<Pair<I, M>, Pair<I, ByteBuffer>> {
+    private final PType<I> itemType;
+    private final SPTables.KeyHasher<M> hasher;
+    private final int numHashes;
+    private final int maxItemsInMemory;
+    private transient Map<I, long[]> signatures;
+
+    public PartialSignaturesFn(PType<I> itemType, PType<M> memberType, int numHashes, int maxItemsInMemory) {
+      this.itemType = itemType;
+      this.hasher = new SPTables.KeyHasher<M>(memberType);
+      this.numHashes = numHashes;
+      this.maxItemsInMemory = maxItemsInMemory;
+    }
+
+    @Override
+    public void initialize() {
+      Configuration conf = getConfiguration() == null ? new Configuration() : getConfiguration();
+      itemType.initialize(conf);
+      hasher.initialize(conf);
+      signatures = Maps.newHashMap();
+    }
+
+    @Override
+    public void process(Pair<I, M> input, Emitter<Pair<I, ByteBuffer>> emitter) {
+      long[] signature = signatures.get(input.first());
+      if (signature == null) {
+        if (signatures.size() >= maxItemsInMemory) {
+          cleanup(emitter);
+        }
+        signature = new long[numHashes];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        signatures.put(itemType.getDetachedValue(input.first()), signature);
+      }
+      long memberHash = hasher.hash64(input.second());
+      for (int i = 0; i < numHashes; i++) {
+        signature[i] = Math.min(signature[i], hash(memberHash, i));
+      }
+    }
+
+    @Override
+    public void cleanup(Emitter<Pair<I, ByteBuffer>> emitter) {
+      for (Map.Entry<I, long[]> signature: signatures.entrySet()) {
+        emitter.emit(Pair.of(signature.getKey(), toBytes(signature.getValue())));
+      }
+      signatures.clear();
+    }
+  }
+
+  private static class MinSignatures implements Aggregator<ByteBuffer> {
+    private transient long[] signature;
+
+    @Override
+    public void initialize(Configuration conf) {
+    }
+
+    @Override
+    public void reset() {
+      signature = null;
+    }
+
+    @Override
+    public void update(ByteBuffer value) {
+      long[] other = fromBytes(value);
+      if (signature == null) {
+        signature = other;
+      } else {
+        for (int i = 0; i < signature.length; i++) {
+          signature[i] = Math.min(signature[i], other[i]);
+        }
+      }
+    }
+
+    @Override
+    public Iterable<ByteBuffer> results() {
+      return Collections.singletonList(toBytes(signature));
+    }
+  }
+
+  /**
+   * Emits each signature once for every band, keyed by the band and a hash of its rows
+   */
+  private static class BandsFn<I> extends DoFn<Pair<I, ByteBuffer>, Pair<Pair<Integer, Long>, Pair<I, ByteBuffer>>> {
+    private final int bands;
+    private final int rowsPerBand;
+
+    public BandsFn(int bands, int rowsPerBand) {
+      this.bands = bands;
+      this.rowsPerBand = rowsPerBand;
+    }
+
+    @Override
+    public void process(Pair<I, ByteBuffer> input, Emitter<Pair<Pair<Integer, Long>, Pair<I, ByteBuffer>>> emitter) {
+      long[] signature = fromBytes(input.second());
+      for (int band = 0; band < bands; band++) {
+        long bucket = 0;
+        for (int row = band * rowsPerBand; row < (band + 1) * rowsPerBand; row++) {
+          bucket = hash(bucket ^ signature[row], row);
+        }
+        emitter.emit(Pair.of(Pair.of(band, bucket), input));
+      }
+    }
+  }
+
+  /**
+   * Compares all pairs of items in an LSH bucket, emitting those whose estimated similarity is high enough
+   */
+  private static class CandidatesFn<I>
+          extends DoFn<Pair<Pair<Integer, Long>, Iterable<Pair<I, ByteBuffer>>>, Pair<Pair<I, I>, Double>> {
+    private final PType<I> itemType;
+    private final DoFns.SpillSerializer<I> serializer;
+    private final double minSimilarity;
+    private final int maxBucketSize;
+
+    public CandidatesFn(PType<I> itemType, double minSimilarity, int maxBucketSize) {
+      this.itemType = itemType;
+      this.serializer = DoFns.spillSerializer(itemType);
+      this.minSimilarity = minSimilarity;
+      this.maxBucketSize = maxBucketSize;
+    }
+
+    @Override
+    public void initialize() {
+      Configuration conf = getConfiguration() == null ? new Configuration() : getConfiguration();
+      itemType.initialize(conf);
+      serializer.initialize(conf);
+    }
+
+    @Override
+    public void process(Pair<Pair<Integer, Long>, Iterable<Pair<I, ByteBuffer>>> input,
+            Emitter<Pair<Pair<I, I>, Double>> emitter) {
+      List<I> items = Lists.newArrayList();
+      List<byte[]> serialized = Lists.newArrayList();
+      List<long[]> signatures = Lists.newArrayList();
+      for (Pair<I, ByteBuffer> item: input.second()) {
+        if (items.size() == maxBucketSize) {
+          increment("crunch-lib: Similarity", "skippedBuckets");
+          return;
+        }
+        items.add(itemType.getDetachedValue(item.first()));
+        serialized.add(serialize(item.first()));
+        signatures.add(fromBytes(item.second()));
+      }
+      for (int i = 0; i < items.size(); i++) {
+        for (int j = i + 1; j < items.size(); j++) {
+          double similarity = similarity(signatures.get(i), signatures.get(j));
+          if (similarity >= minSimilarity) {
+            byte[] a = serialized.get(i);
+            byte[] b = serialized.get(j);
+            if (WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length) < 0) {
+              emitter.emit(Pair.of(Pair.of(items.get(i), items.get(j)), similarity));
+            } else {
+              emitter.emit(Pair.of(Pair.of(items.get(j), items.get(i)), similarity));
+            }
+          }
+        }
+      }
+    }
+
+    private byte[] serialize(I item) {
+      DataOutputBuffer buffer = new DataOutputBuffer();
+      try {
+        serializer.write(item, buffer);
+      } catch (IOException e) {
+        throw new CrunchRuntimeException(e);
+      }
+      return Arrays.copyOf(buffer.getData(), buffer.getLength());
+    }
+
+    private static double similarity(long[] a, long[] b) {
+      int equal = 0;
+      for (int i = 0; i < a.length; i++) {
+        if (a[i] == b[i]) {
+          equal++;
+        }
+      }
+      return (double) equal / a.length;
+    }
+  }
+}
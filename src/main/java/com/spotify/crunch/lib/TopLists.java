@@ -16,12 +16,17 @@
 package com.spotify.crunch.lib;
 
 import com.google.common.collect.Lists;
+import org.apache.crunch.DoFn;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.Emitter;
 import org.apache.crunch.MapFn;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.PTable;
 import org.apache.crunch.Pair;
+import org.apache.crunch.impl.mem.MemPipeline;
 import org.apache.crunch.lib.PTables;
 import org.apache.crunch.lib.SecondarySort;
+import org.apache.crunch.lib.Sort;
 import org.apache.crunch.types.PTableType;
 import org.apache.crunch.types.PType;
 import org.apache.crunch.types.PTypeFamily;
@@ -45,40 +50,71 @@ public class TopLists {
    * @return table of each unique X value mapped to a collection of (count, Y) pairs
    */
   public static <X, Y> PTable<X, Collection<Pair<Long, Y>>> topNYbyX(PTable<X, Y> input, final int n) {
+    return topNYbyX(input, n, null);
+  }
+
+  /**
+   * Create a top-list of elements in the provided PTable like topNYbyX(input, n), grouping with the given options. The
+   * counting shuffle uses the options as they are, while the sort only takes the number of reducers from them.
+   * @param input table of X Y pairs
+   * @param n How many Y values to include in the toplist per X (this will be in memory, so don't make this ridiculous)
+   * @param options GroupingOptions for the shuffles, or null to plan them (see Parallelism)
+   * @param <X> group type
+   * @param <Y> value type
+   * @return table of each unique X value mapped to a collection of (count, Y) pairs
+   */
+  public static <X, Y> PTable<X, Collection<Pair<Long, Y>>> topNYbyX(PTable<X, Y> input, final int n,
+          GroupingOptions options) {
     final PType<X> xType = input.getKeyType();
     final PType<Y> yType = input.getValueType();
     PTypeFamily f = xType.getFamily();
-    PTable<X, Pair<Long, Y>> counted = input.count().parallelDo(new MapFn<Pair<Pair<X, Y>, Long>, Pair<X, Pair<Long, Y>>>() {
+    PTable<Pair<X, Y>, Long> counts = Parallelism.count(input, options);
+    PTable<X, Pair<Long, Y>> counted = counts.parallelDo(MapFns.instrumentIfEnabled(input, new MapFn<Pair<Pair<X, Y>, Long>, Pair<X, Pair<Long, Y>>>() {
       @Override
       public Pair<X, Pair<Long, Y>> map(Pair<Pair<X, Y>, Long> input) {
         return Pair.of(input.first().first(), Pair.of(-input.second(), input.first().second()));
       }
-    }, f.tableOf(xType, f.pairs(f.longs(), yType)));
-    return SecondarySort.sortAndApply(counted, new MapFn<Pair<X, Iterable<Pair<Long, Y>>>, Pair<X, Collection<Pair<Long, Y>>>>() {
+    }, "TopLists.topNYbyX.negate"), f.tableOf(xType, f.pairs(f.longs(), yType)));
+    return SecondarySort.sortAndApply(counted,
+            DoFns.instrumentGroupedIfEnabled(input, new TopNFn<X, Y>(yType, n), "TopLists.topNYbyX"),
+            f.tableOf(xType, f.collections(f.pairs(f.longs(), yType))),
+            Parallelism.plan(counts, false, options).getNumReducers());
+  }
 
-      private PTableType<Long, Y> tableType;
+  /**
+   * Takes the first n (negated count, Y) pairs of each group, which are sorted by the secondary sort, and un-negates
+   * the counts
+   */
+  static class TopNFn<X, Y> extends MapFn<Pair<X, Iterable<Pair<Long, Y>>>, Pair<X, Collection<Pair<Long, Y>>>> {
+    private final PType<Y> yType;
+    private final int n;
+    private PTableType<Long, Y> tableType;
 
-      @Override
-      public void initialize() {
-        PTypeFamily ptf = yType.getFamily();
-        tableType = ptf.tableOf(ptf.longs(), yType);
-        tableType.initialize(getConfiguration());
-      }
+    public TopNFn(PType<Y> yType, int n) {
+      this.yType = yType;
+      this.n = n;
+    }
 
-      @Override
-      public Pair<X, Collection<Pair<Long, Y>>> map(Pair<X, Iterable<Pair<Long, Y>>> input) {
-        Collection<Pair<Long, Y>> values = Lists.newArrayList();
-        Iterator<Pair<Long, Y>> iter = input.second().iterator();
-        for (int i = 0; i < n; i++) {
-          if (!iter.hasNext()) {
-            break;
-          }
-          Pair<Long, Y> pair = PTables.getDetachedValue(tableType, iter.next());
-          values.add(Pair.of(-pair.first(), pair.second()));
+    @Override
+    public void initialize() {
+      PTypeFamily ptf = yType.getFamily();
+      tableType = ptf.tableOf(ptf.longs(), yType);
+      tableType.initialize(getConfiguration());
+    }
+
+    @Override
+    public Pair<X, Collection<Pair<Long, Y>>> map(Pair<X, Iterable<Pair<Long, Y>>> input) {
+      Collection<Pair<Long, Y>> values = Lists.newArrayList();
+      Iterator<Pair<Long, Y>> iter = input.second().iterator();
+      for (int i = 0; i < n; i++) {
+        if (!iter.hasNext()) {
+          break;
         }
-        return Pair.of(input.first(), values);
+        Pair<Long, Y> pair = PTables.getDetachedValue(tableType, iter.next());
+        values.add(Pair.of(-pair.first(), pair.second()));
       }
-    }, f.tableOf(xType, f.collections(f.pairs(f.longs(), yType))));
+      return Pair.of(input.first(), values);
+    }
   }
 
   /**
@@ -88,6 +124,38 @@ public class TopLists {
    * @return global toplist
    */
   public static <X> PTable<X, Long> globalToplist(PCollection<X> input) {
-    return SPTables.negateCounts(SPTables.negateCounts(input.count()).groupByKey(1).ungroup());
+    return globalToplist(input, null);
+  }
+
+  /**
+   * Create a list of unique items in the input collection with their count, sorted descending by their frequency,
+   * grouping with the given options. The counting shuffle uses the options as they are. If they ask for more than one
+   * reducer, the sort is spread over that many reducers with a total order partitioning, so that the output is still
+   * sorted across all its files; otherwise the sort runs in a single reducer.
+   * @param input input collection
+   * @param options GroupingOptions for the shuffles, or null to plan them (see Parallelism)
+   * @param <X> record type
+   * @return global toplist
+   */
+  public static <X> PTable<X, Long> globalToplist(PCollection<X> input, GroupingOptions options) {
+    PTable<X, Long> counts = Parallelism.count(input, options);
+    PTypeFamily f = counts.getTypeFamily();
+    int numReducers = Parallelism.plan(counts, false, options).getNumReducers();
+    // a MemPipeline can't sort with a total order partitioning, but doesn't need to
+    if (numReducers > 1 && !(input.getPipeline() instanceof MemPipeline)) {
+      return SPTables.swapKeyValue(Sort.sort(SPTables.swapKeyValue(counts), numReducers, Sort.Order.DESCENDING));
+    }
+    return SPTables.groupByKeyDescending(SPTables.swapKeyValue(counts), 1)
+            .parallelDo(DoFns.instrumentGroupedIfEnabled(input, new UngroupAndSwapFn<Long, X>(), "TopLists.globalToplist"),
+                    f.tableOf(input.getPType(), f.longs()));
+  }
+
+  private static class UngroupAndSwapFn<K, V> extends DoFn<Pair<K, Iterable<V>>, Pair<V, K>> {
+    @Override
+    public void process(Pair<K, Iterable<V>> input, Emitter<Pair<V, K>> emitter) {
+      for (V value: input.second()) {
+        emitter.emit(Pair.of(value, input.first()));
+      }
+    }
   }
 }
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Closeables;
+import com.spotify.crunch.test.TestAvroRecord;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.crunch.FilterFn;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.MapFn;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
+import org.apache.crunch.Pipeline;
+import org.apache.crunch.PipelineResult;
+import org.apache.crunch.fn.Aggregators;
+import org.apache.crunch.fn.IdentityFn;
+import org.apache.crunch.impl.mr.MRPipeline;
+import org.apache.crunch.io.From;
+import org.apache.crunch.io.To;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.apache.crunch.types.avro.Avros.*;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the operations of the library with the local MapReduce runner on a generated input, and compares the number of
+ * MapReduce jobs and the shuffle and spill counters of each operation against the baselines in
+ * src/perf/resources/baselines.properties. The bytes shuffled are measured by the map output as written to disk
+ * (MAP_OUTPUT_MATERIALIZED_BYTES), as the local runner doesn't count the bytes fetched by the reducers. An operation fails if it runs more jobs than its baseline, or if a counter
+ * grows by more than perf.tolerance (default 0.1) over its baseline. An operation without a baseline fails as well.
+ *
+ * Only built and run with the perf profile: mvn -P perf test -Dtest=LibraryPerfTest
+ *
+ * Baselines are only valid for the number of rows they were measured with (perf.rows, default 2000000), and every
+ * operation fails when run with another number of rows. After an intended change in cost, re-measure them with
+ * -Dperf.updateBaselines=true and check in the result.
+ */
+public class LibraryPerfTest {
+  private static final String BASELINES = "src/perf/resources/baselines.properties";
+  private static final int ROWS = Integer.getInteger("perf.rows", 2000000);
+  private static final int KEYS = 10000;
+  private static final double TOLERANCE = Double.parseDouble(System.getProperty("perf.tolerance", "0.1"));
+  private static final boolean UPDATE = Boolean.getBoolean("perf.updateBaselines");
+  private static final TaskCounter[] COUNTERS = {
+          TaskCounter.MAP_OUTPUT_RECORDS, TaskCounter.MAP_OUTPUT_BYTES, TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES,
+          TaskCounter.SPILLED_RECORDS
+  };
+
+  @ClassRule
+  public static TemporaryFolder tmp = new TemporaryFolder();
+
+  private static String input;
+  private static Properties baselines = new Properties();
+  private static Properties measured = new Properties();
+
+  private interface Operation {
+    PCollection<?> apply(PCollection<TestAvroRecord> records);
+  }
+
+  private static class OnePercentOfKeys extends FilterFn<String> {
+    @Override
+    public boolean accept(String input) {
+      return (input.hashCode() & Integer.MAX_VALUE) % 100 == 0;
+    }
+  }
+
+  private static class EvenValues extends FilterFn<Pair<String, Long>> {
+    private final boolean even;
+
+    public EvenValues(boolean even) {
+      this.even = even;
+    }
+
+    @Override
+    public boolean accept(Pair<String, Long> input) {
+      return (input.second() % 2 == 0) == even;
+    }
+  }
+
+  private static class OneEventFn extends MapFn<Pair<String, Long>, Pair<String, Pair<Long, Long>>> {
+    @Override
+    public Pair<String, Pair<Long, Long>> map(Pair<String, Long> input) {
+      return Pair.of(input.first(), Pair.of(input.second(), 1L));
+    }
+  }
+
+  @BeforeClass
+  public static void generateInput() throws IOException {
+    File file = new File(tmp.newFolder("input"), "records.avro");
+    DataFileWriter<TestAvroRecord> writer = new DataFileWriter<TestAvroRecord>(
+            new SpecificDatumWriter<TestAvroRecord>(TestAvroRecord.class));
+    writer.create(TestAvroRecord.SCHEMA$, file);
+    Random random = new Random(42);
+    for (int i = 0; i < ROWS; i++) {
+      // keys are skewed towards the low numbers, like most real-world keys
+      int key = (int) (Math.pow(random.nextDouble(), 3) * KEYS);
+      writer.append(TestAvroRecord.newBuilder()
+              .setFieldA("key-" + key)
+              .setFieldB("key-" + random.nextInt(KEYS))
+              .setFieldC(random.nextInt(100000))
+              .build());
+    }
+    writer.close();
+    input = file.getParent();
+
+    File baselinesFile = new File(BASELINES);
+    if (baselinesFile.exists()) {
+      InputStream in = new FileInputStream(baselinesFile);
+      try {
+        baselines.load(in);
+      } finally {
+        Closeables.closeQuietly(in);
+      }
+    }
+  }
+
+  @AfterClass
+  public static void writeBaselines() throws IOException {
+    if (UPDATE) {
+      baselines.putAll(measured);
+      baselines.setProperty("rows", String.valueOf(ROWS));
+      // written sorted rather than with Properties.store, so that re-measuring gives a readable diff
+      Writer out = new OutputStreamWriter(new FileOutputStream(BASELINES), Charsets.ISO_8859_1);
+      try {
+        out.write("# Measured by LibraryPerfTest with -Dperf.updateBaselines=true\n");
+        for (String key: Ordering.natural().sortedCopy(baselines.stringPropertyNames())) {
+          out.write(key + "=" + baselines.getProperty(key) + "\n");
+        }
+      } finally {
+        Closeables.closeQuietly(out);
+      }
+    }
+  }
+
+  private static PTable<String, Long> keyValues(PCollection<TestAvroRecord> records) {
+    return AvroCollections.extract(records, "fieldA", "fieldC", tableOf(strings(), longs()));
+  }
+
+  private static PTable<String, String> keyKeys(PCollection<TestAvroRecord> records) {
+    return AvroCollections.extract(records, "fieldA", "fieldB", tableOf(strings(), strings()));
+  }
+
+  /**
+   * Events of a count of one for each record, timestamped with fieldC
+   */
+  private static PTable<String, Pair<Long, Long>> events(PCollection<TestAvroRecord> records) {
+    return keyValues(records).parallelDo(new OneEventFn(), tableOf(strings(), pairs(longs(), longs())));
+  }
+
+  private static Pipeline pipeline(String name) {
+    Configuration conf = new Configuration();
+    conf.set("mapreduce.framework.name", "local");
+    conf.set("fs.defaultFS", "file:///");
+    return new MRPipeline(LibraryPerfTest.class, name, conf);
+  }
+
+  private static PCollection<TestAvroRecord> records(Pipeline pipeline) {
+    return pipeline.read(From.avroFile(input, specifics(TestAvroRecord.class)));
+  }
+
+  private static String output(String name) {
+    return new File(tmp.getRoot(), "output-" + name).getPath();
+  }
+
+  private void run(String name, Operation operation) throws IOException {
+    Pipeline pipeline = pipeline(name);
+    pipeline.write(operation.apply(records(pipeline)), To.avroFile(output(name)));
+    measure(name, pipeline);
+  }
+
+  /**
+   * Run a pipeline which has been set up to perform an operation, and check its costs against the baselines
+   */
+  private void measure(String name, Pipeline pipeline) {
+    PipelineResult result = pipeline.done();
+    assertTrue(name + " failed", result.succeeded());
+
+    Map<String, Long> values = Maps.newLinkedHashMap();
+    values.put("jobs", (long) result.getStageResults().size());
+    for (TaskCounter counter: COUNTERS) {
+      long sum = 0;
+      for (PipelineResult.StageResult stage: result.getStageResults()) {
+        sum += stage.getCounterValue(counter);
+      }
+      values.put(counter.name(), sum);
+    }
+    check(name, values);
+  }
+
+  private void check(String name, Map<String, Long> values) {
+    for (Map.Entry<String, Long> value: values.entrySet()) {
+      measured.setProperty(name + "." + value.getKey(), String.valueOf(value.getValue()));
+    }
+    if (UPDATE) {
+      return;
+    }
+    assertEquals("Baselines in " + BASELINES + " were measured with another perf.rows, run with "
+            + "-Dperf.updateBaselines=true", String.valueOf(ROWS), baselines.getProperty("rows"));
+    for (Map.Entry<String, Long> value: values.entrySet()) {
+      String key = name + "." + value.getKey();
+      String baseline = baselines.getProperty(key);
+      assertNotNull("No baseline for " + key + ", run with -Dperf.updateBaselines=true", baseline);
+      long limit = value.getKey().equals("jobs")
+              ? Long.parseLong(baseline)
+              : (long) (Long.parseLong(baseline) * (1 + TOLERANCE));
+      assertTrue(key + " was " + value.getValue() + ", baseline " + baseline, value.getValue() <= limit);
+    }
+  }
+
+  @Test
+  public void averagesMeanValue() throws IOException {
+    run("Averages.meanValue", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return Averages.meanValue(keyValues(records));
+      }
+    });
+  }
+
+  @Test
+  public void percentilesDistributed() throws IOException {
+    run("Percentiles.distributed", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return Percentiles.distributed(keyValues(records), 0.5, 0.99);
+      }
+    });
+  }
+
+  @Test
+  public void percentilesInMemory() throws IOException {
+    run("Percentiles.inMemory", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return Percentiles.inMemory(keyValues(records), 0.5, 0.99);
+      }
+    });
+  }
+
+  @Test
+  public void topListsTopNYbyX() throws IOException {
+    run("TopLists.topNYbyX", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return TopLists.topNYbyX(keyKeys(records), 10);
+      }
+    });
+  }
+
+  @Test
+  public void topListsGlobalToplist() throws IOException {
+    run("TopLists.globalToplist", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return TopLists.globalToplist(AvroCollections.extract(records, "fieldA", strings()));
+      }
+    });
+  }
+
+  @Test
+  public void topListsGlobalToplistTotalOrder() throws IOException {
+    // MemPipeline sorts in one reducer, so the total order sort is only run here
+    Pipeline pipeline = pipeline("TopLists.globalToplist.totalOrder");
+    PTable<String, Long> toplist = TopLists.globalToplist(AvroCollections.extract(records(pipeline), "fieldA",
+            strings()), GroupingOptions.builder().numReducers(4).build());
+    File output = new File(output("TopLists.globalToplist.totalOrder"));
+    pipeline.write(toplist, To.avroFile(output.getPath()));
+    measure("TopLists.globalToplist.totalOrder", pipeline);
+
+    // the counts must be descending across the files of all the reducers, in the order of their names. The local
+    // runner of Hadoop 2.2 only runs a single reducer, but the sort still samples and partitions the counts
+    File[] parts = output.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".avro");
+      }
+    });
+    Arrays.sort(parts);
+    long previous = Long.MAX_VALUE;
+    long total = 0;
+    for (File part: parts) {
+      DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(part,
+              new GenericDatumReader<GenericRecord>());
+      try {
+        for (GenericRecord record: reader) {
+          long count = (Long) record.get("value");
+          assertTrue(record + " after a count of " + previous, count <= previous);
+          previous = count;
+          total += count;
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    assertEquals(ROWS, total);
+  }
+
+  @Test
+  public void spTablesNegateCounts() throws IOException {
+    run("SPTables.negateCounts", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return SPTables.negateCounts(SPTables.swapKeyValue(keyKeys(records)).keys().count());
+      }
+    });
+  }
+
+  @Test
+  public void spTablesGroupByKeyDescending() throws IOException {
+    run("SPTables.groupByKeyDescending", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return SPTables.groupByKeyDescending(SPTables.swapKeyValue(keyValues(records)), 1).ungroup();
+      }
+    });
+  }
+
+  @Test
+  public void spTablesSkewReport() throws IOException {
+    run("SPTables.skewReport", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return SPTables.skewReport(keyValues(records), 0.01, 100);
+      }
+    });
+  }
+
+  @Test
+  public void spTablesSkewJoin() throws IOException {
+    run("SPTables.skewJoin", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        PTable<String, Long> table = keyValues(records);
+        return SPTables.skewJoin(table, table.keys().count(), 0.01, 10, 8);
+      }
+    });
+  }
+
+  @Test
+  public void spTablesSemiJoin() throws IOException {
+    run("SPTables.semiJoin", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        PCollection<String> keys = AvroCollections.extract(records, "fieldB", strings()).filter(new OnePercentOfKeys());
+        return SPTables.semiJoin(keyValues(records), keys, 0.01);
+      }
+    });
+  }
+
+  @Test
+  public void spTablesLookupJoin() throws IOException {
+    run("SPTables.lookupJoin", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        PTable<String, Long> table = keyValues(records);
+        return SPTables.lookupJoin(table, table.keys().count());
+      }
+    });
+  }
+
+  @Test
+  public void spTablesDictionaryEncode() throws IOException {
+    run("SPTables.dictionaryEncode", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        SPTables.DictionaryEncoded<String, Long> encoded = SPTables.dictionaryEncode(keyValues(records));
+        return encoded.decode(Averages.meanValue(encoded.table), true);
+      }
+    });
+  }
+
+  @Test
+  public void spTablesSampleByKey() throws IOException {
+    run("SPTables.sampleByKey", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return SPTables.sampleByKey(keyValues(records), 100, 42);
+      }
+    });
+  }
+
+  @Test
+  public void spTablesSessionize() throws IOException {
+    run("SPTables.sessionize", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return SPTables.sessionize(keyValues(records), IdentityFn.<Long>getInstance(), 100);
+      }
+    });
+  }
+
+  @Test
+  public void histogramsHistograms() throws IOException {
+    run("Histograms.histograms", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return Histograms.histograms(keyValues(records), Histograms.Layout.hdr(7));
+      }
+    });
+  }
+
+  @Test
+  public void histogramsMerge() throws IOException {
+    run("Histograms.merge", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        // histograms of the two halves of the keys' values, as if of two days
+        PTable<String, Long> values = keyValues(records);
+        return Histograms.merge(Histograms.histograms(values.filter(new EvenValues(true)), Histograms.Layout.hdr(7))
+                .union(Histograms.histograms(values.filter(new EvenValues(false)), Histograms.Layout.hdr(7))));
+      }
+    });
+  }
+
+  @Test
+  public void rollupsRollup() throws IOException {
+    run("Rollups.rollup", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return Rollups.rollup(events(records), 60, Aggregators.SUM_LONGS());
+      }
+    });
+  }
+
+  @Test
+  public void rollupsCoarsen() throws IOException {
+    run("Rollups.coarsen", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return Rollups.coarsen(Rollups.rollup(events(records), 60, Aggregators.SUM_LONGS()), 3600,
+                Aggregators.SUM_LONGS());
+      }
+    });
+  }
+
+  @Test
+  public void rollupsLevels() throws IOException {
+    Pipeline pipeline = pipeline("Rollups.levels");
+    List<PTable<Pair<String, Long>, Long>> levels =
+            Rollups.levels(events(records(pipeline)), Aggregators.SUM_LONGS(), 60, 3600, 86400);
+    for (int i = 0; i < levels.size(); i++) {
+      pipeline.write(levels.get(i), To.avroFile(output("Rollups.levels-" + i)));
+    }
+    measure("Rollups.levels", pipeline);
+  }
+
+  @Test
+  public void similaritySimilarItems() throws IOException {
+    run("Similarity.similarItems", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        // the most frequent keys share most of their fieldB values, so there are pairs to find
+        return Similarity.similarItems(keyKeys(records), 20, 5, 0.5);
+      }
+    });
+  }
+
+  @Test
+  public void similarityRescore() throws IOException {
+    run("Similarity.rescore", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        PTable<String, String> memberships = keyKeys(records);
+        return Similarity.rescore(Similarity.similarItems(memberships, 20, 5, 0.5), memberships);
+      }
+    });
+  }
+
+  @Test
+  public void avroCollectionsKeyByAvroField() throws IOException {
+    run("AvroCollections.keyByAvroField", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return AvroCollections.keyByAvroField(records, "fieldA", strings()).groupByKey().ungroup();
+      }
+    });
+  }
+
+  @Test
+  public void avroCollectionsBucketByAvroField() throws IOException {
+    run("AvroCollections.bucketByAvroField", new Operation() {
+      @Override
+      public PCollection<?> apply(PCollection<TestAvroRecord> records) {
+        return AvroCollections.bucketByAvroField(records, "fieldA", strings(), 8);
+      }
+    });
+  }
+
+  @Test
+  public void avroCollectionsWriteBucketed() throws IOException {
+    Pipeline pipeline = pipeline("AvroCollections.writeBucketed");
+    AvroCollections.writeBucketed(records(pipeline), "fieldA", strings(), 8, output("AvroCollections.writeBucketed"));
+    measure("AvroCollections.writeBucketed", pipeline);
+  }
+
+  @Test
+  public void avroCollectionsSortMergeJoin() throws IOException {
+    // the right side is a dimension table with one record per key, bucketed the same way as the left side
+    String left = new File(tmp.getRoot(), "bucketed-left").getPath();
+    String right = new File(tmp.getRoot(), "bucketed-right").getPath();
+    Pipeline setup = pipeline("AvroCollections.sortMergeJoin setup");
+    PCollection<TestAvroRecord> records = records(setup);
+    AvroCollections.writeBucketed(records, "fieldA", strings(), 8, left);
+    PCollection<TestAvroRecord> dimension = AvroCollections.keyByAvroField(records, "fieldA", strings())
+            .groupByKey()
+            .combineValues(Aggregators.<TestAvroRecord>FIRST_N(1))
+            .values();
+    AvroCollections.writeBucketed(dimension, "fieldA", strings(), 8, right);
+    assertTrue(setup.done().succeeded());
+
+    Pipeline pipeline = pipeline("AvroCollections.sortMergeJoin");
+    pipeline.write(AvroCollections.sortMergeJoin(pipeline, left, TestAvroRecord.class, "fieldA",
+            right, TestAvroRecord.class, "fieldA", strings()), To.avroFile(output("AvroCollections.sortMergeJoin")));
+    measure("AvroCollections.sortMergeJoin", pipeline);
+  }
+}
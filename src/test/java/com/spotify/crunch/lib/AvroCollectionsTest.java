@@ -15,18 +15,36 @@
  */
 package com.spotify.crunch.lib;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.spotify.crunch.test.NestAvroRecord;
 import com.spotify.crunch.test.TestAvroRecord;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.avro.util.Utf8;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
 import org.apache.crunch.Tuple3;
 import org.apache.crunch.impl.mem.MemPipeline;
+import org.apache.crunch.types.writable.Writables;
 import static org.apache.crunch.types.avro.Avros.*;
 
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -85,4 +103,139 @@ public class AvroCollectionsTest {
     Tuple3<String, String, String> actual = coll.materialize().iterator().next();
     assertEquals(Tuple3.of("hello", "world", "eggs"), actual);
   }
-}
\ No newline at end of file
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  private static TestAvroRecord record(String a, long c) {
+    return TestAvroRecord.newBuilder().setFieldA(a).setFieldB(null).setFieldC(c).build();
+  }
+
+  private File writeBucketed(String name, TestAvroRecord... records) throws IOException {
+    PCollection<TestAvroRecord> collection = MemPipeline.typedCollectionOf(specifics(TestAvroRecord.class), records);
+    Map<String, List<TestAvroRecord>> buckets = Maps.newTreeMap();
+    for (Pair<String, TestAvroRecord> pair: AvroCollections.bucketByAvroField(collection, "fieldA", strings(), 3).materialize()) {
+      if (!buckets.containsKey(pair.first())) {
+        buckets.put(pair.first(), Lists.<TestAvroRecord>newArrayList());
+      }
+      buckets.get(pair.first()).add(pair.second());
+    }
+
+    File dir = tmpDir.newFolder(name);
+    for (Map.Entry<String, List<TestAvroRecord>> bucket: buckets.entrySet()) {
+      File bucketDir = new File(dir, bucket.getKey());
+      assertTrue(bucketDir.mkdirs());
+      DataFileWriter<TestAvroRecord> writer =
+              new DataFileWriter<TestAvroRecord>(new SpecificDatumWriter<TestAvroRecord>(TestAvroRecord.class));
+      writer.create(TestAvroRecord.SCHEMA$, new File(bucketDir, "part-r-00000.avro"));
+      for (TestAvroRecord rec: bucket.getValue()) {
+        writer.append(rec);
+      }
+      writer.close();
+    }
+    return dir;
+  }
+
+  @Test
+  public void testBucketByAvroField() {
+    PCollection<TestAvroRecord> collection = MemPipeline.typedCollectionOf(specifics(TestAvroRecord.class),
+            record("b", 1L), record("a", 2L), record("b", 3L), record("c", 4L));
+    Map<String, String> bucketOfKey = Maps.newHashMap();
+    for (Pair<String, TestAvroRecord> pair: AvroCollections.bucketByAvroField(collection, "fieldA", strings(), 4).materialize()) {
+      String key = pair.second().getFieldA().toString();
+      assertEquals(AvroCollections.bucketName(AvroCollections.bucketOf(key, 4), 4), pair.first());
+      assertTrue(pair.first().endsWith("-of-00004"));
+      if (bucketOfKey.containsKey(key)) {
+        assertEquals(bucketOfKey.get(key), pair.first());
+      }
+      bucketOfKey.put(key, pair.first());
+    }
+    assertEquals(3, bucketOfKey.size());
+  }
+
+  @Test
+  public void testSortMergeJoin() throws IOException {
+    File left = writeBucketed("left",
+            record("a", 1L), record("b", 2L), record("a", 3L), record("c", 4L), record("d", 5L));
+    File right = writeBucketed("right",
+            record("a", 10L), record("a", 11L), record("c", 12L), record("z", 13L));
+
+    PTable<String, Pair<TestAvroRecord, TestAvroRecord>> joined = AvroCollections.sortMergeJoin(
+            MemPipeline.getInstance(),
+            left.getAbsolutePath(), TestAvroRecord.class, "fieldA",
+            right.getAbsolutePath(), TestAvroRecord.class, "fieldA",
+            strings());
+
+    Set<Pair<String, Pair<Long, Long>>> actual = Sets.newHashSet();
+    for (Pair<String, Pair<TestAvroRecord, TestAvroRecord>> pair: joined.materialize()) {
+      actual.add(Pair.of(pair.first(), Pair.of(pair.second().first().getFieldC(), pair.second().second().getFieldC())));
+    }
+    Set<Pair<String, Pair<Long, Long>>> expected = Sets.newHashSet(
+            Pair.of("a", Pair.of(1L, 10L)),
+            Pair.of("a", Pair.of(1L, 11L)),
+            Pair.of("a", Pair.of(3L, 10L)),
+            Pair.of("a", Pair.of(3L, 11L)),
+            Pair.of("c", Pair.of(4L, 12L)));
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testSortMergeJoinRejectsWritableKeys() throws IOException {
+    File left = writeBucketed("left", record("a", 1L));
+    File right = writeBucketed("right", record("a", 10L));
+    try {
+      AvroCollections.sortMergeJoin(MemPipeline.getInstance(),
+              left.getAbsolutePath(), TestAvroRecord.class, "fieldA",
+              right.getAbsolutePath(), TestAvroRecord.class, "fieldA",
+              Writables.strings());
+      fail("Expected a Writable key type to be rejected");
+    } catch (PlanTimeException e) {
+      assertTrue(e.getMessage().contains("Avro PType"));
+    }
+  }
+
+  @Test
+  public void testBucketByNullField() {
+    PCollection<TestAvroRecord> collection = MemPipeline.typedCollectionOf(specifics(TestAvroRecord.class),
+            record("a", 1L));
+    try {
+      AvroCollections.bucketByAvroField(collection, "fieldB", strings(), 4).materialize().iterator().next();
+      fail("Expected a null field value to be rejected");
+    } catch (RuntimeException e) {
+      assertTrue(Throwables.getStackTraceAsString(e).contains("null value for fieldB"));
+    }
+  }
+
+  @Test
+  public void testCompareKeysWithNulls() {
+    assertEquals(0, AvroCollections.compareKeys(null, null));
+    assertTrue(AvroCollections.compareKeys(null, "a") < 0);
+    assertTrue(AvroCollections.compareKeys(new Utf8("a"), null) > 0);
+    assertEquals(0, AvroCollections.bucketOf(null, 4));
+  }
+
+  @Test
+  public void testSeekBefore() throws IOException {
+    File file = tmpDir.newFile("sorted.avro");
+    DataFileWriter<TestAvroRecord> writer =
+            new DataFileWriter<TestAvroRecord>(new SpecificDatumWriter<TestAvroRecord>(TestAvroRecord.class));
+    writer.setSyncInterval(64);
+    writer.create(TestAvroRecord.SCHEMA$, file);
+    for (int i = 0; i < 10000; i++) {
+      writer.append(record(String.format("k%05d", i), i));
+    }
+    writer.close();
+
+    AvroCollections.AvroExtractMapFn<TestAvroRecord, String> keyFn =
+            new AvroCollections.AvroExtractMapFn<TestAvroRecord, String>(TestAvroRecord.class, "fieldA");
+    for (int target: new int[] { 0, 1, 5000, 9999 }) {
+      DataFileReader<TestAvroRecord> reader = new DataFileReader<TestAvroRecord>(file,
+              new SpecificDatumReader<TestAvroRecord>(TestAvroRecord.class));
+      AvroCollections.seekBefore(reader, file.length(), keyFn, String.format("k%05d", target), 256);
+      long first = reader.next().getFieldC();
+      assertTrue(first <= target);
+      assertTrue(first > target - 100);
+      reader.close();
+    }
+  }
+}
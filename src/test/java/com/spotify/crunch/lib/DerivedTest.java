@@ -0,0 +1,67 @@
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.PTable;
+import org.apache.crunch.impl.mem.MemPipeline;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import static org.apache.crunch.types.avro.Avros.ints;
+import static org.apache.crunch.types.avro.Avros.strings;
+import static org.apache.crunch.types.avro.Avros.tableOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class DerivedTest {
+
+  @Test
+  public void testCountShared() {
+    PCollection<String> input = MemPipeline.typedCollectionOf(strings(), "a", "b", "a");
+    PTable<String, Long> counts = Parallelism.count(input, null);
+    assertSame(counts, Parallelism.count(input, null));
+    assertEquals(ImmutableMap.of("a", 2L, "b", 1L), counts.materializeToMap());
+
+    GroupingOptions options = GroupingOptions.builder().numReducers(2).build();
+    assertNotSame(counts, Parallelism.count(input, options));
+    assertSame(Parallelism.count(input, options), Parallelism.count(input, options));
+    assertNotSame(counts, Parallelism.count(MemPipeline.typedCollectionOf(strings(), "a", "b", "a"), null));
+  }
+
+  @Test
+  public void testKeysShared() {
+    PTable<String, Integer> table = MemPipeline.typedTableOf(tableOf(strings(), ints()), "a", 1, "b", 2);
+    assertSame(Derived.keys(table), Derived.keys(table));
+  }
+
+  @Test
+  public void testInMapperKeysNotShared() {
+    PCollection<String> input = MemPipeline.typedCollectionOf(strings(), "a", "b", "a");
+    PTable<String, Long> counts = Parallelism.count(input, null);
+    Configuration conf = input.getPipeline().getConfiguration();
+    int keys = DoFns.inMapperKeys(input);
+    conf.setInt(DoFns.IN_MAPPER_KEYS_PROPERTY, 0);
+    try {
+      PTable<String, Long> uncombined = Parallelism.count(input, null);
+      assertNotSame(counts, uncombined);
+      assertEquals(counts.materializeToMap(), uncombined.materializeToMap());
+    } finally {
+      conf.setInt(DoFns.IN_MAPPER_KEYS_PROPERTY, keys);
+    }
+    assertSame(counts, Parallelism.count(input, null));
+  }
+
+  @Test
+  public void testDisabled() {
+    PCollection<String> input = MemPipeline.typedCollectionOf(strings(), "a", "b", "a");
+    Configuration conf = input.getPipeline().getConfiguration();
+    conf.setBoolean(Derived.ENABLED_PROPERTY, false);
+    try {
+      assertNotSame(Parallelism.count(input, null), Parallelism.count(input, null));
+    } finally {
+      conf.setBoolean(Derived.ENABLED_PROPERTY, true);
+    }
+  }
+}
@@ -2,19 +2,33 @@ package com.spotify.crunch.lib;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.spotify.crunch.test.TestAvroRecord;
 import org.apache.avro.util.Utf8;
 import org.apache.crunch.DoFn;
+import org.apache.crunch.Emitter;
 import org.apache.crunch.MapFn;
+import org.apache.crunch.PTable;
 import org.apache.crunch.Pair;
+import org.apache.crunch.fn.Aggregators;
+import org.apache.crunch.fn.IdentityFn;
+import org.apache.crunch.impl.mem.MemPipeline;
 import org.apache.crunch.impl.mem.emit.InMemoryEmitter;
 import org.apache.crunch.types.avro.Avros;
+import org.apache.crunch.types.writable.Writables;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counters;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -45,6 +59,16 @@ public class DoFnsTest {
     }
   }
 
+  private static class TwoPassMapFn<V> extends MapFn<Pair<String, Iterable<V>>, Collection<V>> {
+
+    @Override
+    public Collection<V> map(Pair<String, Iterable<V>> input) {
+      Collection<V> values = Lists.newArrayList(input.second());
+      values.addAll(Lists.newArrayList(input.second()));
+      return values;
+    }
+  }
+
   @Test
   public void testDetach() {
     Collection<TestAvroRecord> expected = Lists.newArrayList(
@@ -65,4 +89,433 @@ public class DoFnsTest {
     assertEquals(expected, emitter.getOutput().get(0));
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testDetachSpillsToDisk() {
+    TestAvroRecord one = new TestAvroRecord(new Utf8("something"), new Utf8("*"), 1L);
+    TestAvroRecord two = new TestAvroRecord(new Utf8("something"), new Utf8("**"), 1L);
+    TestAvroRecord three = new TestAvroRecord(new Utf8("something"), new Utf8("***"), 1L);
+    Collection<TestAvroRecord> expected = Lists.newArrayList(one, two, three, one, two, three);
+    DoFn<Pair<String, Iterable<TestAvroRecord>>, Collection<TestAvroRecord>> doFn =
+            DoFns.detach(new TwoPassMapFn<TestAvroRecord>(), Avros.specifics(TestAvroRecord.class), 1);
+    Pair<String, Iterable<TestAvroRecord>> input = Pair.of("key", (Iterable<TestAvroRecord>) new AvroIterable());
+    InMemoryEmitter<Collection<TestAvroRecord>> emitter = new InMemoryEmitter<Collection<TestAvroRecord>>();
+
+    doFn.configure(new Configuration());
+    doFn.initialize();
+    doFn.process(input, emitter);
+    doFn.process(input, emitter);
+    doFn.cleanup(emitter);
+
+    assertEquals(expected, emitter.getOutput().get(0));
+    assertEquals(expected, emitter.getOutput().get(1));
+  }
+
+  @Test
+  public void testDetachSpillsWritablesToDisk() {
+    DoFn<Pair<String, Iterable<String>>, Collection<String>> doFn =
+            DoFns.detach(new TwoPassMapFn<String>(), Writables.strings(), 2);
+    Pair<String, Iterable<String>> input = Pair.of("key", (Iterable<String>) Lists.newArrayList("a", "b", "c", "d"));
+    InMemoryEmitter<Collection<String>> emitter = new InMemoryEmitter<Collection<String>>();
+
+    doFn.configure(new Configuration());
+    doFn.initialize();
+    doFn.process(input, emitter);
+    doFn.cleanup(emitter);
+
+    assertEquals(Lists.newArrayList("a", "b", "c", "d", "a", "b", "c", "d"), emitter.getOutput().get(0));
+  }
+
+  @Test
+  public void testSpillableIterableClosesAbandonedIterators() {
+    DoFns.SpillableIterable<String> group = new DoFns.SpillableIterable<String>(Writables.strings(),
+            DoFns.spillSerializer(Writables.strings()), 1);
+    group.reset(Lists.newArrayList("a", "b", "c"));
+    Iterator<String> first = group.iterator();
+    assertEquals("a", first.next());
+    assertEquals("b", first.next());
+    assertEquals(1, group.openStreams());
+    assertEquals(Lists.newArrayList("a", "b", "c"), Lists.newArrayList(group));
+    assertEquals(1, group.openStreams());
+
+    group.reset(Lists.newArrayList("d", "e"));
+    assertEquals(0, group.openStreams());
+    assertEquals("e", Iterables.get(group, 1));
+    group.close();
+    assertEquals(0, group.openStreams());
+  }
+
+  @Test
+  public void testDetachPooled() {
+    Collection<TestAvroRecord> expected = Lists.newArrayList(
+            new TestAvroRecord(new Utf8("something"), new Utf8("*"), 1L),
+            new TestAvroRecord(new Utf8("something"), new Utf8("**"), 1L),
+            new TestAvroRecord(new Utf8("something"), new Utf8("***"), 1L)
+    );
+    DoFn<Pair<String, Iterable<TestAvroRecord>>, Collection<TestAvroRecord>> doFn =
+            DoFns.detachPooled(new CollectingMapFn(), Avros.specifics(TestAvroRecord.class));
+    Pair<String, Iterable<TestAvroRecord>> input = Pair.of("key", (Iterable<TestAvroRecord>) new AvroIterable());
+    InMemoryEmitter<Collection<TestAvroRecord>> emitter = new InMemoryEmitter<Collection<TestAvroRecord>>();
+
+    doFn.configure(new Configuration());
+    doFn.initialize();
+    doFn.process(input, emitter);
+    assertEquals(expected, emitter.getOutput().get(0));
+
+    doFn.process(input, emitter);
+    doFn.cleanup(emitter);
+    assertEquals(expected, emitter.getOutput().get(1));
+    Iterator<TestAvroRecord> first = emitter.getOutput().get(0).iterator();
+    for (TestAvroRecord record: emitter.getOutput().get(1)) {
+      assertSame(first.next(), record);
+    }
+  }
+
+  @Test
+  public void testDetachPooledCapped() {
+    DoFn<Pair<String, Iterable<TestAvroRecord>>, Collection<TestAvroRecord>> doFn =
+            DoFns.detachPooled(new CollectingMapFn(), Avros.specifics(TestAvroRecord.class), 2);
+    Pair<String, Iterable<TestAvroRecord>> input = Pair.of("key", (Iterable<TestAvroRecord>) new AvroIterable());
+    InMemoryEmitter<Collection<TestAvroRecord>> emitter = new InMemoryEmitter<Collection<TestAvroRecord>>();
+
+    doFn.configure(new Configuration());
+    doFn.initialize();
+    doFn.process(input, emitter);
+    doFn.process(input, emitter);
+    doFn.cleanup(emitter);
+
+    List<TestAvroRecord> first = Lists.newArrayList(emitter.getOutput().get(0));
+    List<TestAvroRecord> second = Lists.newArrayList(emitter.getOutput().get(1));
+    assertSame(first.get(1), second.get(1));
+    assertNotSame(first.get(2), second.get(2));
+    assertEquals(new Utf8("***"), first.get(2).getFieldB());
+  }
+
+  @Test
+  public void testDetachPooledOnMemPipeline() {
+    PTable<String, TestAvroRecord> table = MemPipeline.typedTableOf(
+            Avros.tableOf(Avros.strings(), Avros.specifics(TestAvroRecord.class)),
+            "a", new TestAvroRecord(new Utf8("a"), new Utf8("*"), 1L),
+            "b", new TestAvroRecord(new Utf8("b"), new Utf8("**"), 2L));
+    List<Collection<TestAvroRecord>> groups = Lists.newArrayList(table.groupByKey()
+            .parallelDo(DoFns.detachPooled(new CollectingMapFn(), Avros.specifics(TestAvroRecord.class)),
+                    Avros.collections(Avros.specifics(TestAvroRecord.class)))
+            .materialize());
+    assertEquals(2, groups.size());
+    assertNotSame(groups.get(0).iterator().next(), groups.get(1).iterator().next());
+    assertFalse(groups.get(0).equals(groups.get(1)));
+  }
+
+  private static class BatchSizeFn extends DoFn<List<String>, Integer> {
+    private int batches = 0;
+
+    @Override
+    public void process(List<String> input, Emitter<Integer> emitter) {
+      batches++;
+      emitter.emit(input.size());
+    }
+
+    @Override
+    public void cleanup(Emitter<Integer> emitter) {
+      emitter.emit(-batches);
+    }
+  }
+
+  @Test
+  public void testBatch() {
+    DoFn<String, Integer> doFn = DoFns.batch(new BatchSizeFn(), 2);
+    InMemoryEmitter<Integer> emitter = new InMemoryEmitter<Integer>();
+
+    doFn.configure(new Configuration());
+    doFn.initialize();
+    for (String s: Lists.newArrayList("a", "b", "c", "d", "e")) {
+      doFn.process(s, emitter);
+    }
+    doFn.cleanup(emitter);
+
+    assertEquals(Lists.newArrayList(2, 2, 1, -3), emitter.getOutput());
+  }
+
+  @Test
+  public void testBatchDetaches() {
+    DoFn<TestAvroRecord, Collection<TestAvroRecord>> doFn = DoFns.batch(
+            new MapFn<List<TestAvroRecord>, Collection<TestAvroRecord>>() {
+              @Override
+              public Collection<TestAvroRecord> map(List<TestAvroRecord> input) {
+                return input;
+              }
+            }, 3, Avros.specifics(TestAvroRecord.class));
+    InMemoryEmitter<Collection<TestAvroRecord>> emitter = new InMemoryEmitter<Collection<TestAvroRecord>>();
+
+    doFn.configure(new Configuration());
+    doFn.initialize();
+    for (TestAvroRecord record: new AvroIterable()) {
+      doFn.process(record, emitter);
+    }
+    doFn.cleanup(emitter);
+
+    Collection<TestAvroRecord> expected = Lists.newArrayList(
+            new TestAvroRecord(new Utf8("something"), new Utf8("*"), 1L),
+            new TestAvroRecord(new Utf8("something"), new Utf8("**"), 1L),
+            new TestAvroRecord(new Utf8("something"), new Utf8("***"), 1L)
+    );
+    assertEquals(expected, emitter.getOutput().get(0));
+  }
+
+  private static class SquareWithCleanupFn extends DoFn<Integer, Integer> {
+    @Override
+    public void process(Integer input, Emitter<Integer> emitter) {
+      emitter.emit(input * input);
+    }
+
+    @Override
+    public void cleanup(Emitter<Integer> emitter) {
+      emitter.emit(-1);
+    }
+  }
+
+  private static List<Integer> runParallel(DoFn<Integer, Integer> doFn, int n) {
+    InMemoryEmitter<Integer> emitter = new InMemoryEmitter<Integer>();
+    doFn.configure(new Configuration());
+    doFn.initialize();
+    for (int i = 0; i < n; i++) {
+      doFn.process(i, emitter);
+    }
+    doFn.cleanup(emitter);
+    return emitter.getOutput();
+  }
+
+  @Test
+  public void testParallelOrdered() {
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      expected.add(i * i);
+    }
+    expected.addAll(Collections.nCopies(4, -1));
+
+    assertEquals(expected, runParallel(DoFns.parallel(new SquareWithCleanupFn(), 4, 8), 100));
+  }
+
+  @Test
+  public void testParallelUnordered() {
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      expected.add(i * i);
+    }
+    expected.addAll(Collections.nCopies(3, -1));
+    Collections.sort(expected);
+
+    List<Integer> actual = runParallel(
+            DoFns.parallel(new SquareWithCleanupFn(), 3, 3, Avros.ints(), false), 100);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+  }
+
+  private static class CountingSquareFn extends DoFn<Integer, Integer> {
+    @Override
+    public void process(Integer input, Emitter<Integer> emitter) {
+      increment("parallel", "processed");
+      emitter.emit(input * input);
+    }
+  }
+
+  @Test
+  public void testParallelCounters() {
+    MemPipeline.clearCounters();
+    List<Integer> input = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      input.add(i);
+    }
+    List<Integer> actual = Lists.newArrayList(MemPipeline.typedCollectionOf(Avros.ints(), input)
+            .parallelDo(DoFns.parallel(new CountingSquareFn(), 4, 16), Avros.ints())
+            .materialize());
+    assertEquals(1000, actual.size());
+    assertEquals(1000, MemPipeline.getCounters().findCounter("parallel", "processed").getValue());
+  }
+
+  private static class ReusingRecordFn extends DoFn<Integer, TestAvroRecord> {
+    private transient TestAvroRecord output;
+
+    @Override
+    public void initialize() {
+      output = new TestAvroRecord(new Utf8("reused"), null, 0L);
+    }
+
+    @Override
+    public void process(Integer input, Emitter<TestAvroRecord> emitter) {
+      output.setFieldC((long) input);
+      emitter.emit(output);
+    }
+  }
+
+  @Test
+  public void testParallelDetachesOutputs() {
+    InMemoryEmitter<TestAvroRecord> emitter = new InMemoryEmitter<TestAvroRecord>();
+    DoFn<Integer, TestAvroRecord> doFn = DoFns.parallel(new ReusingRecordFn(), 2, 8, Avros.ints(),
+            Avros.specifics(TestAvroRecord.class), true);
+    doFn.configure(new Configuration());
+    doFn.initialize();
+    for (int i = 0; i < 20; i++) {
+      doFn.process(i, emitter);
+    }
+    doFn.cleanup(emitter);
+    for (int i = 0; i < 20; i++) {
+      assertEquals(Long.valueOf(i), emitter.getOutput().get(i).getFieldC());
+    }
+  }
+
+  private static class GroupSizeFn extends MapFn<Pair<String, Iterable<Integer>>, Integer> {
+    @Override
+    public Integer map(Pair<String, Iterable<Integer>> input) {
+      return Lists.newArrayList(input.second()).size();
+    }
+  }
+
+  @Test
+  public void testInstrumentGrouped() {
+    MemPipeline.clearCounters();
+    PTable<String, Integer> table = MemPipeline.typedTableOf(Avros.tableOf(Avros.strings(), Avros.ints()),
+            "a", 1, "a", 2, "a", 3, "b", 4);
+    table.groupByKey()
+            .parallelDo(DoFns.instrumentGrouped(new GroupSizeFn(), "test"), Avros.ints())
+            .materialize().iterator().next();
+
+    Counters counters = MemPipeline.getCounters();
+    assertEquals(2, counters.findCounter("crunch-lib: test", "inputRecords").getValue());
+    assertEquals(2, counters.findCounter("crunch-lib: test", "outputRecords").getValue());
+    assertEquals(4, counters.findCounter("crunch-lib: test", "groupedValues").getValue());
+    assertEquals(0, counters.findCounter("crunch-lib: test", "largeGroups").getValue());
+  }
+
+  private static class FirstValueFn extends MapFn<Pair<String, Iterable<Integer>>, Integer> {
+    @Override
+    public Integer map(Pair<String, Iterable<Integer>> input) {
+      return input.second().iterator().next();
+    }
+
+    @Override
+    public float scaleFactor() {
+      return 0.5f;
+    }
+  }
+
+  @Test
+  public void testInstrumentGroupedCountsUnreadValues() {
+    MemPipeline.clearCounters();
+    PTable<String, Integer> table = MemPipeline.typedTableOf(Avros.tableOf(Avros.strings(), Avros.ints()),
+            "a", 1, "a", 2, "a", 3, "b", 4);
+    table.getPipeline().getConfiguration().setLong(DoFns.Instrumentation.LARGE_GROUP_PROPERTY, 3);
+    DoFn<Pair<String, Iterable<Integer>>, Integer> doFn = DoFns.instrumentGrouped(new FirstValueFn(), "first");
+    try {
+      table.groupByKey().parallelDo(doFn, Avros.ints()).materialize().iterator().next();
+    } finally {
+      table.getPipeline().getConfiguration().unset(DoFns.Instrumentation.LARGE_GROUP_PROPERTY);
+    }
+
+    Counters counters = MemPipeline.getCounters();
+    assertEquals(4, counters.findCounter("crunch-lib: first", "groupedValues").getValue());
+    assertEquals(1, counters.findCounter("crunch-lib: first", "largeGroups").getValue());
+    assertEquals(0.5f, doFn.scaleFactor(), 0.0f);
+  }
+
+  private static class LookupFn extends DoFn<Pair<String, Integer>, String> {
+    @Override
+    public void process(Pair<String, Integer> input, Emitter<String> emitter) {
+      emitter.emit(input.first() + "=" + input.second());
+    }
+  }
+
+  @Test
+  public void testWithLookup() {
+    PTable<String, Integer> table = MemPipeline.typedTableOf(Avros.tableOf(Avros.strings(), Avros.ints()),
+            "a", 1, "b", 2, "c", 3);
+    DoFns.LookupDoFn<String, String, Integer, String> fn = DoFns.withLookup(new LookupFn(),
+            IdentityFn.<String>getInstance(), table);
+    List<String> actual = Lists.newArrayList(MemPipeline.typedCollectionOf(Avros.strings(), "c", "d", "a")
+            .parallelDo("lookup", fn, Avros.strings(), fn.getParallelDoOptions())
+            .materialize());
+    assertEquals(Lists.newArrayList("c=3", "d=null", "a=1"), actual);
+  }
+
+  @Test
+  public void testMappedTableAcrossSegments() throws Exception {
+    List<Pair<Integer, String>> entries = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      entries.add(Pair.of(i, Strings.repeat("x", i % 50)));
+    }
+    DoFns.MappedTable<Integer, String> table =
+            new DoFns.MappedTable<Integer, String>(Avros.ints(), Avros.strings(), 8);
+    File file = File.createTempFile("crunch-lib-test", ".lookup");
+    try {
+      table.initialize(new Configuration());
+      table.write(entries, entries, file);
+      table.open(file, new Configuration());
+      for (Pair<Integer, String> entry: entries) {
+        assertEquals(entry.second(), table.get(entry.first()));
+      }
+      assertNull(table.get(1000));
+      table.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testMappedTableDirectory() {
+    Configuration conf = new Configuration();
+    conf.set("hadoop.tmp.dir", "/tmp/hadoop");
+    if (System.getenv("LOCAL_DIRS") == null) {
+      assertEquals(new File("/tmp/hadoop/crunch-lib-lookup"), DoFns.MappedTable.directory(conf));
+    }
+    conf.set("crunch.lib.lookup.dir", "/data/lookup");
+    assertEquals(new File("/data/lookup"), DoFns.MappedTable.directory(conf));
+  }
+
+  @Test
+  public void testCountInMapper() {
+    List<String> input = Lists.newArrayList("a", "b", "a", "c", "a", "b", "d", "a");
+    for (int maxKeys: new int[] { 0, 2, 100 }) {
+      DoFn<String, Pair<String, Long>> doFn = DoFns.countInMapper(Avros.strings(), maxKeys);
+      InMemoryEmitter<Pair<String, Long>> emitter = new InMemoryEmitter<Pair<String, Long>>();
+
+      doFn.configure(new Configuration());
+      doFn.initialize();
+      for (String s: input) {
+        doFn.process(s, emitter);
+      }
+      doFn.cleanup(emitter);
+
+      Map<String, Long> counts = Maps.newHashMap();
+      for (Pair<String, Long> pair: emitter.getOutput()) {
+        Long count = counts.get(pair.first());
+        counts.put(pair.first(), (count == null ? 0 : count) + pair.second());
+      }
+      assertEquals(ImmutableMap.of("a", 4L, "b", 2L, "c", 1L, "d", 1L), counts);
+    }
+    assertEquals(4, outputSize(DoFns.countInMapper(Avros.strings(), 100), input));
+    assertEquals(input.size(), outputSize(DoFns.countInMapper(Avros.strings(), 0), input));
+  }
+
+  private static <S, T> int outputSize(DoFn<S, T> doFn, List<S> input) {
+    InMemoryEmitter<T> emitter = new InMemoryEmitter<T>();
+    doFn.configure(new Configuration());
+    doFn.initialize();
+    for (S s: input) {
+      doFn.process(s, emitter);
+    }
+    doFn.cleanup(emitter);
+    return emitter.getOutput().size();
+  }
+
+  @Test
+  public void testSumAndCountInMapper() {
+    PTable<String, Integer> table = MemPipeline.typedTableOf(Avros.tableOf(Avros.strings(), Avros.ints()),
+            "a", 1, "b", 2, "a", 3, "c", 4, "b", 6);
+    Map<String, Pair<Double, Long>> sums = table
+            .parallelDo(DoFns.<String, Integer>sumAndCountInMapper(Avros.strings(), 2),
+                    Avros.tableOf(Avros.strings(), Avros.pairs(Avros.doubles(), Avros.longs())))
+            .groupByKey()
+            .combineValues(Aggregators.pairAggregator(Aggregators.SUM_DOUBLES(), Aggregators.SUM_LONGS()))
+            .materializeToMap();
+    assertEquals(ImmutableMap.of("a", Pair.of(4.0, 2L), "b", Pair.of(8.0, 2L), "c", Pair.of(4.0, 1L)), sums);
+  }
+}
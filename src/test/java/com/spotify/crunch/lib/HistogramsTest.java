@@ -0,0 +1,86 @@
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.Lists;
+import com.spotify.crunch.lib.Histograms.Histogram;
+import com.spotify.crunch.lib.Histograms.Layout;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
+import org.apache.crunch.impl.mem.MemPipeline;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.crunch.types.avro.Avros.ints;
+import static org.apache.crunch.types.avro.Avros.strings;
+import static org.apache.crunch.types.avro.Avros.tableOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramsTest {
+
+  private static PTable<String, Integer> values(int from, int to) {
+    List<Pair<String, Integer>> rows = Lists.newArrayList();
+    for (int i = from; i < to; i++) {
+      rows.add(Pair.of("a", i));
+    }
+    rows.add(Pair.of("b", 1000));
+    return MemPipeline.typedTableOf(tableOf(strings(), ints()), rows);
+  }
+
+  @Test
+  public void testLinearHistograms() {
+    Map<String, Histogram> actual =
+            Histograms.histograms(values(0, 100), Layout.linear(0, 10, 10), 1).materializeToMap();
+    Histogram a = actual.get("a");
+    assertEquals(100, a.getTotalCount());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(10, a.getCount(i));
+    }
+    assertEquals(50.0, a.percentile(0.5), 1e-9);
+    // values above the range are counted in the last bucket
+    assertEquals(1, actual.get("b").getCount(9));
+  }
+
+  @Test
+  public void testMergeAndPercentiles() {
+    Layout layout = Layout.hdr(7);
+    PTable<String, Histogram> day1 = Histograms.histograms(values(0, 500), layout);
+    PTable<String, Histogram> day2 = Histograms.histograms(values(500, 1000), layout);
+    Map<String, Histogram> merged = Histograms.merge(day1.union(day2)).materializeToMap();
+    assertEquals(1000, merged.get("a").getTotalCount());
+    assertEquals(2, merged.get("b").getTotalCount());
+    assertEquals(merged, Histograms.merge(day1.union(day2), GroupingOptions.builder().numReducers(2).build())
+            .materializeToMap());
+
+    Map<String, Percentiles.Result<Double>> percentiles =
+            Histograms.percentiles(Histograms.merge(day1.union(day2)), 0.5, 0.99).materializeToMap();
+    assertEquals(1000, percentiles.get("a").count);
+    assertEquals(500.0, percentiles.get("a").percentiles.get(0.5), 500.0 / 128);
+    assertEquals(990.0, percentiles.get("a").percentiles.get(0.99), 990.0 / 128);
+  }
+
+  @Test
+  public void testHdrLayout() {
+    Layout layout = Layout.hdr(5);
+    assertEquals(layout, Layout.parse(layout.toString()));
+    for (long v = 1; v > 0 && v < Long.MAX_VALUE / 3; v = v * 3 + 1) {
+      int bucket = layout.bucket(v);
+      assertTrue(layout.lowerBound(bucket) <= v && v < layout.upperBound(bucket));
+      assertTrue(layout.upperBound(bucket) - layout.lowerBound(bucket) <= Math.max(1, v / 32.0));
+    }
+    assertEquals(layout.numBuckets() - 1, layout.bucket(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testSerialization() {
+    Histogram histogram = new Histogram(Layout.log(1, 2, 20));
+    histogram.add(3);
+    histogram.add(1000, 5);
+    histogram.add(0.5);
+    Histogram copy = Histogram.fromBytes(Layout.log(1, 2, 20), histogram.toBytes());
+    assertEquals(histogram, copy);
+    assertEquals(5, copy.getCount(9));
+  }
+}
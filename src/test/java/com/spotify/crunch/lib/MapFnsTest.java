@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Spotify AB. All rights reserved.
+ *
+ * The contents of this file are licensed under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.crunch.MapFn;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.Pair;
+import org.apache.crunch.TupleN;
+import org.apache.crunch.fn.CompositeMapFn;
+import org.apache.crunch.impl.mem.MemPipeline;
+import org.apache.crunch.types.avro.Avros;
+import org.junit.Test;
+
+import static org.apache.crunch.types.avro.Avros.pairs;
+import static org.apache.crunch.types.avro.Avros.strings;
+import static org.apache.crunch.types.avro.Avros.tuples;
+import static org.junit.Assert.*;
+
+public class MapFnsTest {
+
+  private static class CountingParseFn extends MapFn<String, String[]> {
+    private int calls = 0;
+
+    @Override
+    public String[] map(String input) {
+      calls++;
+      return input.split(",");
+    }
+  }
+
+  private static class FieldFn extends MapFn<String[], String> {
+    private final int index;
+
+    public FieldFn(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public String map(String[] input) {
+      return input[index];
+    }
+  }
+
+  @Test
+  public void testShared() {
+    CountingParseFn parseFn = new CountingParseFn();
+    MapFn<String, String[]> parse = MapFns.shared(parseFn);
+    MapFn<String, Pair<String, String>> fn = MapFns.pairFn(
+            new CompositeMapFn<String, String[], String>(parse, new FieldFn(0)),
+            new CompositeMapFn<String, String[], String>(parse, new FieldFn(2)));
+    fn.initialize();
+
+    assertEquals(Pair.of("a", "c"), fn.map("a,b,c"));
+    assertEquals(1, parseFn.calls);
+    assertEquals(Pair.of("d", "f"), fn.map("d,e,f"));
+    assertEquals(2, parseFn.calls);
+  }
+
+  private static class BufferParseFn extends MapFn<StringBuilder, String[]> {
+    private int calls = 0;
+
+    @Override
+    public String[] map(StringBuilder input) {
+      calls++;
+      return input.toString().split(",");
+    }
+  }
+
+  @Test
+  public void testSharedReusedInput() {
+    BufferParseFn parseFn = new BufferParseFn();
+    MapFn<StringBuilder, String[]> parse = MapFns.shared(parseFn);
+    MapFn<StringBuilder, Pair<String, String>> fn = MapFns.pairFn(
+            new CompositeMapFn<StringBuilder, String[], String>(parse, new FieldFn(0)),
+            new CompositeMapFn<StringBuilder, String[], String>(parse, new FieldFn(2)));
+    fn.initialize();
+
+    StringBuilder input = new StringBuilder("a,b,c");
+    assertEquals(Pair.of("a", "c"), fn.map(input));
+    input.setLength(0);
+    input.append("d,e,f");
+    assertEquals(Pair.of("d", "f"), fn.map(input));
+    assertEquals(2, parseFn.calls);
+
+    // outside of a combined MapFn, nothing resets the cache, so it is not used
+    assertEquals("g", parse.map(new StringBuilder("g,h"))[0]);
+    assertEquals(3, parseFn.calls);
+  }
+
+  @Test
+  public void testTupleNFn() {
+    MapFn<String[], TupleN> fn = MapFns.tupleNFn(new FieldFn(4), new FieldFn(3), new FieldFn(2), new FieldFn(1),
+            new FieldFn(0));
+    fn.initialize();
+    assertEquals(new TupleN("e", "d", "c", "b", "a"), fn.map(new String[] { "a", "b", "c", "d", "e" }));
+  }
+
+  @Test
+  public void testPairFnReusing() {
+    MapFn<String[], Pair<String, String>> fn = MapFns.pairFnReusing(new FieldFn(0), new FieldFn(1));
+    fn.initialize();
+
+    Pair<String, String> first = fn.map(new String[] { "a", "b" });
+    assertEquals(Pair.of("a", "b"), Pair.of(first.first(), first.second()));
+    assertEquals(Pair.of("a", "b").hashCode(), first.hashCode());
+
+    Pair<String, String> second = fn.map(new String[] { "c", "d" });
+    assertSame(first, second);
+    assertEquals(Pair.of("c", "d"), Pair.of(second.first(), second.second()));
+  }
+
+  @Test
+  public void testTupleNFnReusing() {
+    MapFn<String[], TupleN> fn = MapFns.tupleNFnReusing(new FieldFn(2), new FieldFn(1), new FieldFn(0));
+    fn.initialize();
+    assertArrayEquals(new Object[] { "c", "b", "a" }, fn.map(new String[] { "a", "b", "c" }).getValues());
+    assertArrayEquals(new Object[] { "f", "e", "d" }, fn.map(new String[] { "d", "e", "f" }).getValues());
+  }
+
+  @Test
+  public void testReusingOnMemPipeline() {
+    PCollection<String> lines = MemPipeline.typedCollectionOf(strings(), "a,b", "c,d");
+    PCollection<String[]> fields = lines.parallelDo(new CountingParseFn(), Avros.reflects(String[].class));
+    assertEquals(ImmutableList.of(Pair.of("a", "b"), Pair.of("c", "d")), ImmutableList.copyOf(fields.parallelDo(
+            MapFns.pairFnReusing(new FieldFn(0), new FieldFn(1)), pairs(strings(), strings())).materialize()));
+    assertEquals(ImmutableList.of(new TupleN("b", "a"), new TupleN("d", "c")), ImmutableList.copyOf(fields.parallelDo(
+            MapFns.tupleNFnReusing(new FieldFn(1), new FieldFn(0)), tuples(strings(), strings())).materialize()));
+  }
+}
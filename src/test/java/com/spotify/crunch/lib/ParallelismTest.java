@@ -0,0 +1,34 @@
+package com.spotify.crunch.lib;
+
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.PCollection;
+import org.apache.crunch.impl.mem.MemPipeline;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import static org.apache.crunch.types.avro.Avros.strings;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ParallelismTest {
+
+  @Test
+  public void testForBytes() {
+    Configuration conf = new Configuration();
+    conf.setLong("crunch.lib.bytes.per.reducer", 100);
+    assertEquals(1, Parallelism.forBytes(0, conf).getNumReducers());
+    assertEquals(1, Parallelism.forBytes(100, conf).getNumReducers());
+    assertEquals(3, Parallelism.forBytes(250, conf).getNumReducers());
+    conf.setInt("crunch.max.reducers", 2);
+    assertEquals(2, Parallelism.forBytes(250, conf).getNumReducers());
+  }
+
+  @Test
+  public void testPlan() {
+    PCollection<String> data = MemPipeline.typedCollectionOf(strings(), "a", "b");
+    GroupingOptions options = GroupingOptions.builder().numReducers(7).build();
+    assertSame(options, Parallelism.plan(data, true, options));
+    // without planning enabled, the number of reducers is left to Crunch
+    assertEquals(0, Parallelism.plan(data, true, null).getNumReducers());
+  }
+}
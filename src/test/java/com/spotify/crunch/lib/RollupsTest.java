@@ -0,0 +1,63 @@
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
+import org.apache.crunch.impl.mem.MemPipeline;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.crunch.fn.Aggregators.SUM_DOUBLES;
+import static org.apache.crunch.fn.Aggregators.SUM_LONGS;
+import static org.apache.crunch.fn.Aggregators.pairAggregator;
+import static org.apache.crunch.types.avro.Avros.doubles;
+import static org.apache.crunch.types.avro.Avros.longs;
+import static org.apache.crunch.types.avro.Avros.pairs;
+import static org.apache.crunch.types.avro.Avros.strings;
+import static org.apache.crunch.types.avro.Avros.tableOf;
+import static org.junit.Assert.assertEquals;
+
+public class RollupsTest {
+
+  @Test
+  public void testLevels() {
+    // one event per second for two hours, with a value of the minute it happened in
+    List<Pair<String, Pair<Long, Pair<Double, Long>>>> events = Lists.newArrayList();
+    for (long second = 0; second < 7200; second++) {
+      events.add(Pair.of("a", Pair.of(second, Pair.of((double) (second / 60), 1L))));
+    }
+    PTable<String, Pair<Long, Pair<Double, Long>>> states = MemPipeline.typedTableOf(
+            tableOf(strings(), pairs(longs(), pairs(doubles(), longs()))), events);
+
+    List<PTable<Pair<String, Long>, Pair<Double, Long>>> levels =
+            Rollups.levels(states, pairAggregator(SUM_DOUBLES(), SUM_LONGS()), 60, 3600);
+
+    Map<Pair<String, Long>, Pair<Double, Long>> minutes = levels.get(0).materializeToMap();
+    assertEquals(120, minutes.size());
+    assertEquals(Pair.of(59.0 * 60, 60L), minutes.get(Pair.of("a", 3540L)));
+
+    Map<Pair<String, Long>, Pair<Double, Long>> hours = levels.get(1).materializeToMap();
+    double firstHour = 60 * (59 * 60 / 2.0);
+    double secondHour = 60 * ((60 + 119) * 60 / 2.0);
+    assertEquals(ImmutableMap.of(
+            Pair.of("a", 0L), Pair.of(firstHour, 3600L),
+            Pair.of("a", 3600L), Pair.of(secondHour, 3600L)), hours);
+    assertEquals(hours, Rollups.rollup(states, 3600, pairAggregator(SUM_DOUBLES(), SUM_LONGS())).materializeToMap());
+
+    GroupingOptions options = GroupingOptions.builder().numReducers(2).build();
+    assertEquals(hours, Rollups.coarsen(
+            Rollups.rollup(states, 60, pairAggregator(SUM_DOUBLES(), SUM_LONGS()), options),
+            3600, pairAggregator(SUM_DOUBLES(), SUM_LONGS()), options).materializeToMap());
+  }
+
+  @Test
+  public void testBucketStart() {
+    assertEquals(60, Rollups.bucketStart(119, 60));
+    assertEquals(0, Rollups.bucketStart(0, 60));
+    assertEquals(-60, Rollups.bucketStart(-1, 60));
+  }
+}
@@ -15,12 +15,25 @@
  */
 package com.spotify.crunch.lib;
 
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.MapFn;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
+import org.apache.crunch.Tuple3;
+import org.apache.crunch.fn.Aggregators;
+import org.apache.crunch.fn.IdentityFn;
 import org.apache.crunch.impl.mem.MemPipeline;
 import org.junit.Test;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import static org.apache.crunch.types.avro.Avros.*;
@@ -28,6 +41,8 @@ import static org.apache.crunch.types.avro.Avros.*;
 import static org.junit.Assert.*;
 
 public class SPTablesTest {
+  private static final GroupingOptions OPTIONS = GroupingOptions.builder().numReducers(2).build();
+
   @Test
   public void testSwapKeyValue() {
     PTable<String, Long> table = MemPipeline.typedTableOf(tableOf(strings(), longs()), "hello", 14L, "goodbye", 21L);
@@ -36,6 +51,13 @@ public class SPTablesTest {
     assertEquals(expected, actual.materializeToMap());
   }
 
+  @Test
+  public void testSwapKeyValueReusing() {
+    PTable<String, Long> table = MemPipeline.typedTableOf(tableOf(strings(), longs()), "hello", 14L, "goodbye", 21L);
+    Map<Long, String> expected = ImmutableMap.of(14L, "hello", 21L, "goodbye");
+    assertEquals(expected, SPTables.swapKeyValueReusing(table).materializeToMap());
+  }
+
   @Test
   public void testNegateCounts() {
     PCollection<String> data = MemPipeline.typedCollectionOf(strings(), "a", "a", "a", "b", "b");
@@ -43,4 +65,194 @@ public class SPTablesTest {
     Map<String, Long> expected = ImmutableMap.of("a", -3L, "b", -2L);
     assertEquals(expected, actual);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testSkewReport() {
+    List<Pair<String, Integer>> rows = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      rows.add(Pair.of("hot", 1));
+    }
+    for (int i = 0; i < 10; i++) {
+      rows.add(Pair.of("warm", 1));
+    }
+    rows.add(Pair.of("a", 1));
+    rows.add(Pair.of("b", 1));
+    PTable<String, Integer> table = MemPipeline.typedTableOf(tableOf(strings(), ints()), rows);
+
+    SPTables.SkewReport<String> report = SPTables.skewReport(table, 1.0, 2).materialize().iterator().next();
+
+    List<Tuple3<String, Long, Long>> expected = Lists.newArrayList(
+            Tuple3.of("hot", 50L, 250L),
+            Tuple3.of("warm", 10L, 60L));
+    assertEquals(expected, report.getHeavyKeys());
+    assertEquals(62L, report.getEstimatedRecords());
+    assertEquals(1L, report.getGroupSizePercentile(0.5));
+    assertEquals(10L, report.getGroupSizePercentile(0.75));
+    assertEquals(50L, report.getGroupSizePercentile(1.0));
+  }
+
+  @Test
+  public void testSkewJoin() {
+    List<Pair<String, Integer>> rows = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      rows.add(Pair.of("hot", i));
+    }
+    rows.add(Pair.of("cold", 100));
+    rows.add(Pair.of("unmatched", 200));
+    PTable<String, Integer> large = MemPipeline.typedTableOf(tableOf(strings(), ints()), rows);
+    PTable<String, String> small = MemPipeline.typedTableOf(tableOf(strings(), strings()),
+            "hot", "x", "hot", "y", "cold", "z");
+
+    assertEquals(
+            HashMultiset.create(large.join(small).materialize()),
+            HashMultiset.create(SPTables.skewJoin(large, small, 1.0, 1, 4).materialize()));
+    assertEquals(
+            HashMultiset.create(large.join(small).materialize()),
+            HashMultiset.create(SPTables.skewJoin(large, small, 1.0, 1, 4, OPTIONS).materialize()));
+  }
+
+  @Test
+  public void testSemiJoin() {
+    List<Pair<String, Integer>> rows = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      rows.add(Pair.of("key" + (i % 10), i));
+    }
+    PTable<String, Integer> large = MemPipeline.typedTableOf(tableOf(strings(), ints()), rows);
+    PCollection<String> keys = MemPipeline.typedCollectionOf(strings(), "key1", "key3", "key3", "missing");
+
+    List<Pair<String, Integer>> expected = Lists.newArrayList();
+    for (Pair<String, Integer> row: rows) {
+      if (row.first().equals("key1") || row.first().equals("key3")) {
+        expected.add(row);
+      }
+    }
+    assertEquals(HashMultiset.create(expected),
+            HashMultiset.create(SPTables.semiJoin(large, keys, 0.01).materialize()));
+    assertEquals(HashMultiset.create(expected),
+            HashMultiset.create(SPTables.semiJoin(large, keys, 0.01, OPTIONS).materialize()));
+  }
+
+  @Test
+  public void testGroupByKeyDescending() {
+    PTable<Long, String> table = MemPipeline.typedTableOf(tableOf(longs(), strings()),
+            2L, "b", 10L, "c", 1L, "a");
+    assertEquals(Lists.newArrayList(10L, 2L, 1L),
+            Lists.newArrayList(SPTables.groupByKeyDescending(table, 1).ungroup().keys().materialize()));
+  }
+
+  @Test
+  public void testDictionaryEncode() {
+    List<Pair<String, Integer>> rows = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      rows.add(Pair.of("http://example.com/" + (i % 7), i));
+    }
+    PTable<String, Integer> table = MemPipeline.typedTableOf(tableOf(strings(), ints()), rows);
+    SPTables.DictionaryEncoded<String, Integer> encoded = SPTables.dictionaryEncode(table, 3);
+
+    Map<Long, String> dictionary = encoded.dictionary.materializeToMap();
+    assertEquals(7, dictionary.size());
+    for (long id = 0; id < 7; id++) {
+      assertTrue(dictionary.containsKey(id));
+    }
+    assertEquals(50, Lists.newArrayList(encoded.table.materialize()).size());
+
+    assertEquals(HashMultiset.create(rows), HashMultiset.create(encoded.decode(encoded.table, true).materialize()));
+    assertEquals(HashMultiset.create(rows), HashMultiset.create(encoded.decode(encoded.table, false).materialize()));
+
+    SPTables.DictionaryEncoded<String, Integer> grouped = SPTables.dictionaryEncode(table, 3, OPTIONS);
+    assertEquals(HashMultiset.create(rows), HashMultiset.create(grouped.decode(grouped.table, true).materialize()));
+  }
+
+  @Test
+  public void testSampleByKey() {
+    List<Pair<String, Integer>> rows = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      rows.add(Pair.of("hot", i));
+    }
+    rows.add(Pair.of("cold", 1));
+    rows.add(Pair.of("cold", 2));
+    PTable<String, Integer> table = MemPipeline.typedTableOf(tableOf(strings(), ints()), rows);
+
+    List<Pair<String, Integer>> sample = Lists.newArrayList(SPTables.sampleByKey(table, 10, 42).materialize());
+    Map<String, Integer> sizes = Maps.newHashMap();
+    for (Pair<String, Integer> row: sample) {
+      assertTrue(rows.contains(row));
+      sizes.put(row.first(), sizes.containsKey(row.first()) ? sizes.get(row.first()) + 1 : 1);
+    }
+    assertEquals(ImmutableMap.of("hot", 10, "cold", 2), sizes);
+
+    // the sample only depends on the seed, not on how often the map-side reservoirs are flushed
+    assertEquals(HashMultiset.create(sample),
+            HashMultiset.create(SPTables.sampleByKey(table, 10, 42, 1).materialize()));
+    assertEquals(HashMultiset.create(sample),
+            HashMultiset.create(SPTables.sampleByKey(table, 10, 42, 1, OPTIONS).materialize()));
+
+    // nor on the order or split of distinct records
+    PTable<String, Integer> reversed = MemPipeline.typedTableOf(tableOf(strings(), ints()), Lists.reverse(rows));
+    assertEquals(HashMultiset.create(sample),
+            HashMultiset.create(SPTables.sampleByKey(reversed, 10, 42).materialize()));
+  }
+
+  @Test
+  public void testSampleByKeyDuplicates() {
+    List<Pair<String, Integer>> rows = Lists.newArrayList();
+    for (int i = 0; i < 500; i++) {
+      rows.add(Pair.of("a", -1));
+      rows.add(Pair.of("a", i));
+    }
+    PTable<String, Integer> table = MemPipeline.typedTableOf(tableOf(strings(), ints()), rows);
+
+    // copies of a record are sampled independently, not all kept or all dropped together
+    List<Pair<String, Integer>> sample = Lists.newArrayList(SPTables.sampleByKey(table, 10, 42).materialize());
+    int copies = Collections.frequency(sample, Pair.of("a", -1));
+    assertEquals(10, sample.size());
+    assertTrue("copies sampled: " + copies, copies > 0 && copies < 10);
+  }
+
+  @Test
+  public void testSessionize() {
+    PTable<String, Long> events = MemPipeline.typedTableOf(tableOf(strings(), longs()),
+            "a", 1010L, "a", 10L, "b", 5L, "a", 0L, "a", 1000L, "a", 20L);
+
+    List<Pair<String, Collection<Long>>> sessions = Lists.newArrayList(
+            SPTables.sessionize(events, IdentityFn.<Long>getInstance(), 100).materialize());
+    assertEquals(HashMultiset.create(ImmutableList.of(
+            Pair.<String, Collection<Long>>of("a", ImmutableList.of(0L, 10L, 20L)),
+            Pair.<String, Collection<Long>>of("a", ImmutableList.of(1000L, 1010L)),
+            Pair.<String, Collection<Long>>of("b", ImmutableList.of(5L)))),
+            HashMultiset.create(sessions));
+    assertEquals(HashMultiset.create(sessions), HashMultiset.create(
+            SPTables.sessionize(events, IdentityFn.<Long>getInstance(), 100, OPTIONS).materialize()));
+
+    List<Pair<String, Tuple3<Long, Long, Long>>> summaries = Lists.newArrayList(
+            SPTables.sessionSummaries(events, IdentityFn.<Long>getInstance(), 100).materialize());
+    assertEquals(HashMultiset.create(ImmutableList.of(
+            Pair.of("a", Tuple3.of(0L, 20L, 3L)),
+            Pair.of("a", Tuple3.of(1000L, 1010L, 2L)),
+            Pair.of("b", Tuple3.of(5L, 5L, 1L)))),
+            HashMultiset.create(summaries));
+
+    PTable<String, Long> sums = SPTables.sessionSummaries(events, IdentityFn.<Long>getInstance(), 100,
+            new MapFn<Pair<Long, Long>, Long>() {
+              @Override
+              public Long map(Pair<Long, Long> input) {
+                return input.second();
+              }
+            }, Aggregators.SUM_LONGS(), longs());
+    assertEquals(HashMultiset.create(ImmutableList.of(Pair.of("a", 30L), Pair.of("a", 2010L), Pair.of("b", 5L))),
+            HashMultiset.create(sums.materialize()));
+  }
+
+  @Test
+  public void testLookupJoin() {
+    PTable<String, Integer> large = MemPipeline.typedTableOf(tableOf(strings(), ints()),
+            "track1", 1, "track2", 2, "track1", 3, "track3", 4);
+    PTable<String, String> artists = MemPipeline.typedTableOf(tableOf(strings(), strings()),
+            "track1", "artist1", "track2", "artist2");
+    assertEquals(HashMultiset.create(ImmutableList.of(
+            Pair.of("track1", Pair.of(1, "artist1")),
+            Pair.of("track2", Pair.of(2, "artist2")),
+            Pair.of("track1", Pair.of(3, "artist1")))),
+            HashMultiset.create(SPTables.lookupJoin(large, artists).materialize()));
+  }
+}
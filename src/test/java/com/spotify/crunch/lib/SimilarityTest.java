@@ -0,0 +1,66 @@
+package com.spotify.crunch.lib;
+
+import com.google.common.collect.Lists;
+import org.apache.crunch.GroupingOptions;
+import org.apache.crunch.PTable;
+import org.apache.crunch.Pair;
+import org.apache.crunch.impl.mem.MemPipeline;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.crunch.types.avro.Avros.doubles;
+import static org.apache.crunch.types.avro.Avros.ints;
+import static org.apache.crunch.types.avro.Avros.pairs;
+import static org.apache.crunch.types.avro.Avros.strings;
+import static org.apache.crunch.types.avro.Avros.tableOf;
+import static org.junit.Assert.assertEquals;
+
+public class SimilarityTest {
+
+  private static void addMembers(List<Pair<String, Integer>> rows, String item, int from, int to) {
+    for (int i = from; i < to; i++) {
+      rows.add(Pair.of(item, i));
+    }
+  }
+
+  @Test
+  public void testSimilarItems() {
+    List<Pair<String, Integer>> rows = Lists.newArrayList();
+    addMembers(rows, "a", 0, 100);
+    addMembers(rows, "b", 0, 90);
+    addMembers(rows, "b", 0, 10);
+    addMembers(rows, "c", 200, 300);
+    PTable<String, Integer> memberships = MemPipeline.typedTableOf(tableOf(strings(), ints()), rows);
+
+    Map<Pair<String, String>, Double> candidates =
+            Similarity.similarItems(memberships, 20, 5, 0.5).materializeToMap();
+    assertEquals(1, candidates.size());
+    assertEquals(0.9, candidates.get(Pair.of("a", "b")), 0.1);
+
+    Map<Pair<String, String>, Double> exact =
+            Similarity.rescore(Similarity.similarItems(memberships, 20, 5, 0.5), memberships).materializeToMap();
+    assertEquals(0.9, exact.get(Pair.of("a", "b")), 1e-9);
+
+    GroupingOptions options = GroupingOptions.builder().numReducers(2).build();
+    assertEquals(exact, Similarity.rescore(Similarity.similarItems(memberships, 20, 5, 0.5, 1000, options),
+            memberships, options).materializeToMap());
+  }
+
+  @Test
+  public void testRescoreDuplicateCandidates() {
+    List<Pair<String, Integer>> rows = Lists.newArrayList();
+    addMembers(rows, "a", 0, 100);
+    addMembers(rows, "b", 50, 150);
+    addMembers(rows, "c", 0, 100);
+    PTable<String, Integer> memberships = MemPipeline.typedTableOf(tableOf(strings(), ints()), rows);
+    PTable<Pair<String, String>, Double> candidates = MemPipeline.typedTableOf(
+            tableOf(pairs(strings(), strings()), doubles()),
+            Pair.of("a", "b"), 0.3, Pair.of("a", "b"), 0.4);
+
+    Map<Pair<String, String>, Double> exact = Similarity.rescore(candidates, memberships).materializeToMap();
+    assertEquals(1, exact.size());
+    assertEquals(50.0 / 150, exact.get(Pair.of("a", "b")), 1e-9);
+  }
+}
@@ -17,6 +17,7 @@ package com.spotify.crunch.lib;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import org.apache.crunch.GroupingOptions;
 import org.apache.crunch.PCollection;
 import org.apache.crunch.PTable;
 import org.apache.crunch.Pair;
@@ -62,4 +63,14 @@ public class TopListsTest {
     Map<String, Long> expected = ImmutableMap.of("c", 4L, "a", 3L, "b", 2L);
     assertEquals(expected, actual);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testGlobalToplistIsSortedDescending() {
+    PCollection<String> data = MemPipeline.typedCollectionOf(strings(), "a", "a", "a", "b", "b", "c", "c", "c", "c");
+    assertEquals(Lists.newArrayList(Pair.of("c", 4L), Pair.of("a", 3L), Pair.of("b", 2L)),
+            Lists.newArrayList(TopLists.globalToplist(data).materialize()));
+    assertEquals(Lists.newArrayList(Pair.of("c", 4L), Pair.of("a", 3L), Pair.of("b", 2L)),
+            Lists.newArrayList(TopLists.globalToplist(data, GroupingOptions.builder().numReducers(3).build())
+                    .materialize()));
+  }
+}